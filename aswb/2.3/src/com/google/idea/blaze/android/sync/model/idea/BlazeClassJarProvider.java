@@ -27,11 +27,13 @@ import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.io.FileAttributeProvider;
 import com.google.idea.blaze.base.io.VirtualFileSystemProvider;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.google.idea.blaze.base.targetmaps.TransitiveDependencyMap;
+import com.google.idea.blaze.java.sync.classjars.ClassJarIndex;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.module.Module;
@@ -84,12 +86,16 @@ public class BlazeClassJarProvider extends ClassJarProvider {
 
     String classNamePath = className.replace('.', File.separatorChar) + SdkConstants.DOT_CLASS;
 
+    ClassJarIndex classJarIndex = ClassJarIndex.get(blazeProjectData);
     List<File> missingClassJars = Lists.newArrayList();
     for (LibraryArtifact jar : target.javaIdeInfo.jars) {
       if (jar.classJar == null) {
         continue;
       }
       File classJarFile = decoder.decode(jar.classJar);
+      if (indexExcludesClass(classJarIndex, classJarFile, className)) {
+        continue;
+      }
       VirtualFile classJarVF =
           VirtualFileSystemProvider.getInstance().getSystem().findFileByIoFile(classJarFile);
       if (classJarVF == null) {
@@ -108,6 +114,20 @@ public class BlazeClassJarProvider extends ClassJarProvider {
     return null;
   }
 
+  /**
+   * Returns true if the class jar index is up to date for this jar, and knows it doesn't contain
+   * the class. Saves us from opening jars which can't contain the class.
+   */
+  private static boolean indexExcludesClass(
+      @Nullable ClassJarIndex classJarIndex, File classJar, String className) {
+    if (classJarIndex == null) {
+      return false;
+    }
+    long timestamp = FileAttributeProvider.getInstance().getFileModifiedTime(classJar);
+    return classJarIndex.isIndexed(classJar, timestamp)
+        && !classJarIndex.getJarsForClass(className).contains(classJar);
+  }
+
   @Nullable
   private static VirtualFile findClassInJar(final VirtualFile classJar, String classNamePath) {
     VirtualFile jarRoot = getJarRootForLocalFile(classJar);
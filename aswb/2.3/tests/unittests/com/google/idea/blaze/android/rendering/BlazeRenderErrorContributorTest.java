@@ -764,5 +764,10 @@ public class BlazeRenderErrorContributorTest extends BlazeTestCase {
     public ImmutableCollection<TargetKey> getRulesForSourceFile(File file) {
       return ImmutableList.of(sourceToTarget.get(file));
     }
+
+    @Override
+    public ImmutableCollection<TargetKey> getRulesForSourcesUnderDirectory(File directory) {
+      return ImmutableList.of();
+    }
   }
 }
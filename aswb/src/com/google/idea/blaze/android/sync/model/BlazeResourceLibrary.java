@@ -17,13 +17,13 @@ package com.google.idea.blaze.android.sync.model;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.LibraryKey;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.OrderRootType;
-import com.intellij.openapi.roots.libraries.Library;
 import javax.annotation.concurrent.Immutable;
 
 /** A library that contains sources. */
@@ -58,12 +58,13 @@ public final class BlazeResourceLibrary extends BlazeLibrary {
   }
 
   @Override
-  public void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      Library.ModifiableModel libraryModel) {
+  public ImmutableListMultimap<OrderRootType, String> getRootUrls(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder) {
+    ImmutableListMultimap.Builder<OrderRootType, String> rootUrls =
+        ImmutableListMultimap.builder();
     for (ArtifactLocation file : sources) {
-      libraryModel.addRoot(pathToUrl(artifactLocationDecoder.decode(file)), OrderRootType.SOURCES);
+      rootUrls.put(OrderRootType.SOURCES, pathToUrl(artifactLocationDecoder.decode(file)));
     }
+    return rootUrls.build();
   }
 }
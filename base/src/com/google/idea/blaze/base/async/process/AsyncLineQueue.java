@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.async.process;
+
+import com.google.idea.blaze.base.async.process.LineProcessingOutputStream.LineProcessor;
+import com.google.idea.blaze.base.async.process.LineProcessingOutputStream.OverflowPolicy;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of complete lines, processed in order on a dedicated thread.
+ *
+ * <p>Lines are added by a single writer (the thread pumping the process output).
+ */
+final class AsyncLineQueue {
+  private static final Logger logger = Logger.getInstance(AsyncLineQueue.class);
+  private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+  /** Lines processed this long after they were written are counted as late. */
+  private static final long LATE_LINE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final class Line {
+    /** Null for the end of output. */
+    final String text;
+
+    final long writtenNanos;
+
+    Line(String text, long writtenNanos) {
+      this.text = text;
+      this.writtenNanos = writtenNanos;
+    }
+  }
+
+  private static final Line END = new Line(null, 0);
+
+  private final BlockingQueue<Line> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final List<LineProcessor> lineProcessors;
+  private final Thread consumer;
+
+  private long writtenLines;
+  private long droppedLines;
+  private long blockedNanos;
+  private int maxQueueDepth;
+  private final AtomicLong lateLines = new AtomicLong(0);
+  private boolean closed;
+
+  AsyncLineQueue(int capacity, OverflowPolicy overflowPolicy, List<LineProcessor> lineProcessors) {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.overflowPolicy = overflowPolicy;
+    this.lineProcessors = lineProcessors;
+    this.consumer =
+        new Thread(this::processLines, "LineProcessor-" + threadCount.getAndIncrement());
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /** Queues the line, applying the overflow policy if the queue is full. */
+  void add(String text) {
+    Line line = new Line(text, System.nanoTime());
+    writtenLines++;
+    if (!queue.offer(line)) {
+      if (overflowPolicy == OverflowPolicy.DROP) {
+        droppedLines++;
+        return;
+      }
+      long start = System.nanoTime();
+      try {
+        queue.put(line);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        droppedLines++;
+        return;
+      } finally {
+        blockedNanos += System.nanoTime() - start;
+      }
+    }
+    maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+  }
+
+  /** Waits for all queued lines to be processed, then stops the consumer thread. */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      queue.put(END);
+      consumer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      consumer.interrupt();
+    }
+    LineProcessingOutputStream.Stats stats = getStats();
+    if (stats.droppedLines > 0 || stats.lateLines > 0 || stats.blockedMillis > 0) {
+      logger.info("Line processing fell behind the process output: " + stats);
+    }
+  }
+
+  LineProcessingOutputStream.Stats getStats() {
+    return new LineProcessingOutputStream.Stats(
+        writtenLines,
+        droppedLines,
+        lateLines.get(),
+        maxQueueDepth,
+        TimeUnit.NANOSECONDS.toMillis(blockedNanos));
+  }
+
+  private void processLines() {
+    try {
+      while (true) {
+        Line line = queue.take();
+        if (line == END) {
+          return;
+        }
+        if (System.nanoTime() - line.writtenNanos > LATE_LINE_NANOS) {
+          lateLines.incrementAndGet();
+        }
+        try {
+          LineProcessingOutputStream.processLine(lineProcessors, line.text);
+        } catch (RuntimeException e) {
+          // Keep draining, or a writer using the blocking policy would wait forever
+          logger.warn(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      // Closing was interrupted, so the remaining lines are abandoned
+    }
+  }
+}
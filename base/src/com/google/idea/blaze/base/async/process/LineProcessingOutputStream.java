@@ -15,13 +15,25 @@
  */
 package com.google.idea.blaze.base.async.process;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import javax.annotation.Nullable;
 import org.jetbrains.annotations.NotNull;
 
-/** An base output stream which marshals output into newline-delimited segments for processing. */
+/**
+ * An base output stream which marshals output into newline-delimited segments for processing.
+ *
+ * <p>Output is split into lines at the byte level, and each complete line is decoded as UTF-8.
+ * Line breaks never occur inside a multibyte character, so characters split across writes are
+ * decoded intact. Only the unterminated tail of each write is buffered.
+ *
+ * <p>An {@link #async} stream hands complete lines to a dedicated thread, so slow processors don't
+ * hold up the thread writing the output (and with it, the process filling the pipe).
+ */
 public final class LineProcessingOutputStream extends OutputStream {
 
   /** A line processor */
@@ -34,66 +46,205 @@ public final class LineProcessingOutputStream extends OutputStream {
     boolean processLine(@NotNull String line);
   }
 
-  @NotNull private final StringBuffer stringBuffer = new StringBuffer();
+  /** What an asynchronous stream does when its queue of unprocessed lines is full. */
+  public enum OverflowPolicy {
+    /** Wait for the processors to catch up. No output is lost. */
+    BLOCK,
+    /** Drop the line, so the writer is never slowed down. */
+    DROP,
+  }
+
+  /** How well the processors of an asynchronous stream kept up with the output. */
+  public static final class Stats {
+    public final long writtenLines;
+    public final long droppedLines;
+    /** Lines processed more than a second after they were written. */
+    public final long lateLines;
+
+    public final int maxQueueDepth;
+    /** Time the writer spent waiting for room in the queue. */
+    public final long blockedMillis;
+
+    Stats(
+        long writtenLines,
+        long droppedLines,
+        long lateLines,
+        int maxQueueDepth,
+        long blockedMillis) {
+      this.writtenLines = writtenLines;
+      this.droppedLines = droppedLines;
+      this.lateLines = lateLines;
+      this.maxQueueDepth = maxQueueDepth;
+      this.blockedMillis = blockedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d lines written, %d dropped, %d late, max queue depth %d, writer blocked %d ms",
+          writtenLines, droppedLines, lateLines, maxQueueDepth, blockedMillis);
+    }
+  }
+
+  /** The number of unprocessed lines an asynchronous stream holds before overflowing. */
+  public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+
+  /** Longer lines are split, so output without line breaks can't use unbounded memory. */
+  @VisibleForTesting static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  /** A buffer grown past this size by a long line is dropped once that line is processed. */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  /** The unterminated end of the output so far. */
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+  private int bufferLength;
+  /** Whether the last byte was a '\r', in which case a following '\n' ends no further line. */
+  private boolean afterCarriageReturn;
+
+  private final byte[] singleByte = new byte[1];
   private volatile boolean closed;
   @NotNull private final List<LineProcessor> lineProcessors;
+  @Nullable private final AsyncLineQueue asyncLineQueue;
 
   LineProcessingOutputStream(@NotNull LineProcessor... lineProcessors) {
     this.lineProcessors = Lists.newArrayList(lineProcessors);
+    this.asyncLineQueue = null;
+  }
+
+  private LineProcessingOutputStream(
+      int queueCapacity, OverflowPolicy overflowPolicy, LineProcessor... lineProcessors) {
+    this.lineProcessors = Lists.newArrayList(lineProcessors);
+    this.asyncLineQueue = new AsyncLineQueue(queueCapacity, overflowPolicy, this.lineProcessors);
   }
 
   public static LineProcessingOutputStream of(@NotNull LineProcessor... lineProcessors) {
     return new LineProcessingOutputStream(lineProcessors);
   }
 
-  @Override
-  public synchronized void write(byte[] b, int off, int len) {
-    if (!closed) {
-      String text = new String(b, off, len);
-      stringBuffer.append(text);
-
-      while (true) {
-        int lineBreakIndex = -1;
-        int lineBreakLength = 0;
-        for (int i = 0; i < stringBuffer.length(); ++i) {
-          char c = stringBuffer.charAt(i);
-          if (c == '\r' || c == '\n') {
-            lineBreakIndex = i;
-            lineBreakLength = 1;
-            if (c == '\r'
-                && (i + 1) < stringBuffer.length()
-                && stringBuffer.charAt(i + 1) == '\n') {
-              ++lineBreakLength;
-            }
-            break;
-          }
-        }
-
-        if (lineBreakIndex == -1) {
-          return;
-        }
+  /**
+   * Creates a stream whose processors run on a dedicated thread, fed by a bounded queue of lines.
+   * Closing the stream waits for all queued lines to be processed.
+   */
+  public static LineProcessingOutputStream async(
+      OverflowPolicy overflowPolicy, @NotNull LineProcessor... lineProcessors) {
+    return async(DEFAULT_QUEUE_CAPACITY, overflowPolicy, lineProcessors);
+  }
 
-        String line = stringBuffer.substring(0, lineBreakIndex);
+  @VisibleForTesting
+  static LineProcessingOutputStream async(
+      int queueCapacity, OverflowPolicy overflowPolicy, LineProcessor... lineProcessors) {
+    return new LineProcessingOutputStream(queueCapacity, overflowPolicy, lineProcessors);
+  }
 
-        stringBuffer.delete(0, lineBreakIndex + lineBreakLength);
+  /** For an asynchronous stream, how well its processors kept up. Null otherwise. */
+  @Nullable
+  public synchronized Stats getStats() {
+    return asyncLineQueue != null ? asyncLineQueue.getStats() : null;
+  }
 
-        for (LineProcessor lineProcessor : lineProcessors) {
-          if (!lineProcessor.processLine(line)) {
-            break;
-          }
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    if (closed) {
+      return;
+    }
+    int end = off + len;
+    int lineStart = off;
+    for (int i = off; i < end; i++) {
+      byte c = b[i];
+      if (afterCarriageReturn) {
+        afterCarriageReturn = false;
+        if (c == '\n') {
+          lineStart = i + 1;
+          continue;
         }
       }
+      if (c == '\n' || c == '\r') {
+        if (bufferLength == 0 && i - lineStart <= MAX_LINE_LENGTH) {
+          processLine(new String(b, lineStart, i - lineStart, StandardCharsets.UTF_8));
+        } else {
+          append(b, lineStart, i);
+          processBufferedLine();
+        }
+        afterCarriageReturn = c == '\r';
+        lineStart = i + 1;
+      }
     }
+    append(b, lineStart, end);
   }
 
   @Override
-  public void write(int b) throws IOException {
-    write(new byte[] {(byte) b}, 0, 1);
+  public synchronized void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
     closed = true;
+    if (asyncLineQueue != null) {
+      asyncLineQueue.close();
+    }
     super.close();
   }
+
+  /** Appends to the buffered line, splitting off and processing any part over the limit. */
+  private void append(byte[] b, int start, int end) {
+    while (bufferLength + (end - start) > MAX_LINE_LENGTH) {
+      int split = start + (MAX_LINE_LENGTH - bufferLength);
+      // Back off to the start of a UTF-8 character, unless that would leave nothing to split
+      int characterStart = split;
+      while (characterStart > start && (b[characterStart] & 0xC0) == 0x80) {
+        characterStart--;
+      }
+      if (characterStart > start || bufferLength > 0) {
+        split = characterStart;
+      }
+      copyToBuffer(b, start, split);
+      processBufferedLine();
+      start = split;
+    }
+    copyToBuffer(b, start, end);
+  }
+
+  private void copyToBuffer(byte[] b, int start, int end) {
+    int length = end - start;
+    if (length == 0) {
+      return;
+    }
+    int required = bufferLength + length;
+    if (required > buffer.length) {
+      byte[] newBuffer = new byte[Math.min(Math.max(required, buffer.length * 2), MAX_LINE_LENGTH)];
+      System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+      buffer = newBuffer;
+    }
+    System.arraycopy(b, start, buffer, bufferLength, length);
+    bufferLength = required;
+  }
+
+  private void processBufferedLine() {
+    String line = new String(buffer, 0, bufferLength, StandardCharsets.UTF_8);
+    bufferLength = 0;
+    if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+      buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+    processLine(line);
+  }
+
+  private void processLine(String line) {
+    if (asyncLineQueue != null) {
+      asyncLineQueue.add(line);
+    } else {
+      processLine(lineProcessors, line);
+    }
+  }
+
+  static void processLine(List<LineProcessor> lineProcessors, String line) {
+    for (LineProcessor lineProcessor : lineProcessors) {
+      if (!lineProcessor.processLine(line)) {
+        break;
+      }
+    }
+  }
 }
@@ -109,4 +109,14 @@ public abstract class BlazeInfo {
       BuildSystem buildSystem,
       WorkspaceRoot workspaceRoot,
       List<String> blazeFlags);
+
+  /** Discards any cached results, so the next calls run blaze info. */
+  public void clearCache() {}
+
+  /**
+   * Reruns blaze info in the background for the cached results used since they were last
+   * refreshed, flagging the affected projects for a sync if they've changed. Call this when blaze
+   * would otherwise be idle, e.g. after a sync's builds, so it doesn't hold up other commands.
+   */
+  public void refreshCachedResults() {}
 }
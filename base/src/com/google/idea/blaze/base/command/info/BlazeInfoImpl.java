@@ -15,23 +15,252 @@
  */
 package com.google.idea.blaze.base.command.info;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.command.BlazeCommand;
 import com.google.idea.blaze.base.command.BlazeCommandName;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
 import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.settings.Blaze.BuildSystem;
+import com.google.idea.blaze.base.sync.status.BlazeSyncStatus;
+import com.google.idea.common.experiments.BoolExperiment;
+import com.intellij.execution.configurations.PathEnvironmentVariableUtil;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 class BlazeInfoImpl extends BlazeInfo {
   private static final Logger logger = Logger.getInstance(BlazeInfoImpl.class);
 
+  private static final BoolExperiment CACHE_RESULTS = new BoolExperiment("blaze.info.cache", true);
+
+  /**
+   * Files which can change blaze info results, relative to the workspace or home directory, or
+   * absolute. RC files can also import others, and more can be passed with a --bazelrc flag.
+   */
+  private static final ImmutableList<String> WORKSPACE_RC_FILES =
+      ImmutableList.of(".bazelrc", ".blazerc", "tools/bazel.rc");
+
+  private static final ImmutableList<String> HOME_RC_FILES =
+      ImmutableList.of(".bazelrc", ".blazerc");
+
+  private static final ImmutableList<String> SYSTEM_RC_FILES =
+      ImmutableList.of("/etc/bazel.bazelrc");
+
+  /** A wrapper script, run by bazel in place of itself. */
+  private static final String WORKSPACE_WRAPPER = "tools/bazel";
+
+  private static final ImmutableList<String> RC_FILE_FLAGS =
+      ImmutableList.of("--bazelrc", "--blazerc");
+
+  /** An RC file's import of another, e.g. "try-import %workspace%/user.bazelrc". */
+  private static final Pattern RC_IMPORT = Pattern.compile("^(?:try-)?import\\s+(\\S+)");
+
+  /** Bounds nested RC file imports. */
+  private static final int MAX_RC_IMPORT_DEPTH = 10;
+
+  /**
+   * Keys in the full blaze info output which vary between runs, e.g. the server's heap usage, so
+   * don't show its results to have changed.
+   */
+  private static final ImmutableSet<String> VOLATILE_KEYS =
+      ImmutableSet.of(
+          "committed-heap-size",
+          "gc-count",
+          "gc-time",
+          "max-heap-size",
+          "server_log",
+          "server_pid",
+          "used-heap-size",
+          "used-heap-size-after-gc");
+
+  /** Identifies a blaze info command, and the state of the files which may change its result. */
+  @VisibleForTesting
+  static class CacheKey {
+    private final ImmutableList<String> commandLine;
+    private final WorkspaceRoot workspaceRoot;
+    private final ImmutableList<Long> fileStamps;
+
+    private CacheKey(
+        ImmutableList<String> commandLine,
+        WorkspaceRoot workspaceRoot,
+        ImmutableList<Long> fileStamps) {
+      this.commandLine = commandLine;
+      this.workspaceRoot = workspaceRoot;
+      this.fileStamps = fileStamps;
+    }
+
+    /** Returns null if the blaze binary can't be found, so its version is unknown. */
+    @Nullable
+    static CacheKey create(BlazeCommand command, WorkspaceRoot workspaceRoot) {
+      return create(command.toList(), workspaceRoot);
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static CacheKey create(ImmutableList<String> commandLine, WorkspaceRoot workspaceRoot) {
+      File binary = findBinary(commandLine.get(0));
+      if (binary == null) {
+        return null;
+      }
+      File workspace = workspaceRoot.directory();
+      ImmutableList.Builder<Long> fileStamps = ImmutableList.builder();
+      addFileStamp(fileStamps, binary);
+      addFileStamp(fileStamps, new File(workspace, WORKSPACE_WRAPPER));
+
+      List<File> rcFiles = Lists.newArrayList();
+      for (String rcFile : WORKSPACE_RC_FILES) {
+        rcFiles.add(new File(workspace, rcFile));
+      }
+      String home = System.getProperty("user.home");
+      for (String rcFile : HOME_RC_FILES) {
+        rcFiles.add(new File(home, rcFile));
+      }
+      for (String rcFile : SYSTEM_RC_FILES) {
+        rcFiles.add(new File(rcFile));
+      }
+      for (String rcFile : getRcFileFlags(commandLine)) {
+        rcFiles.add(resolveRcFile(workspace, rcFile));
+      }
+      Set<File> visited = Sets.newHashSet();
+      for (File rcFile : rcFiles) {
+        addRcFileStamps(fileStamps, workspace, rcFile, visited, 0);
+      }
+      return new CacheKey(commandLine, workspaceRoot, fileStamps.build());
+    }
+
+    /** Returns the RC files passed with --bazelrc flags. */
+    private static List<String> getRcFileFlags(ImmutableList<String> commandLine) {
+      List<String> rcFiles = Lists.newArrayList();
+      for (int i = 1; i < commandLine.size(); i++) {
+        String arg = commandLine.get(i);
+        for (String flag : RC_FILE_FLAGS) {
+          if (arg.startsWith(flag + "=")) {
+            rcFiles.add(arg.substring(flag.length() + 1));
+          } else if (arg.equals(flag) && i + 1 < commandLine.size()) {
+            rcFiles.add(commandLine.get(++i));
+          }
+        }
+      }
+      return rcFiles;
+    }
+
+    /** Adds the RC file's stamp, then those of the files it imports. */
+    private static void addRcFileStamps(
+        ImmutableList.Builder<Long> fileStamps,
+        File workspace,
+        File rcFile,
+        Set<File> visited,
+        int depth) {
+      if (!visited.add(rcFile)) {
+        return;
+      }
+      addFileStamp(fileStamps, rcFile);
+      if (depth >= MAX_RC_IMPORT_DEPTH || !rcFile.isFile()) {
+        return;
+      }
+      List<String> lines;
+      try {
+        lines = Files.readAllLines(rcFile.toPath(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        return;
+      }
+      for (String line : lines) {
+        Matcher matcher = RC_IMPORT.matcher(line.trim());
+        if (matcher.find()) {
+          File imported = resolveRcFile(workspace, matcher.group(1));
+          addRcFileStamps(fileStamps, workspace, imported, visited, depth + 1);
+        }
+      }
+    }
+
+    private static File resolveRcFile(File workspace, String path) {
+      path = path.replace("%workspace%", workspace.getPath());
+      File file = new File(path);
+      return file.isAbsolute() ? file : new File(workspace, path);
+    }
+
+    @Nullable
+    private static File findBinary(String binaryPath) {
+      File binary = new File(binaryPath);
+      if (!binary.isAbsolute()) {
+        binary = PathEnvironmentVariableUtil.findInPath(binaryPath);
+      }
+      return binary != null && binary.isFile() ? binary : null;
+    }
+
+    private static void addFileStamp(ImmutableList.Builder<Long> fileStamps, File file) {
+      fileStamps.add(file.lastModified()).add(file.length());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) o;
+      return commandLine.equals(other.commandLine)
+          && workspaceRoot.equals(other.workspaceRoot)
+          && fileStamps.equals(other.fileStamps);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(commandLine, workspaceRoot, fileStamps);
+    }
+  }
+
+  /** The output of a blaze info command, valid while its output base exists. */
+  @VisibleForTesting
+  static class CachedResult {
+    private final byte[] output;
+    /** The output base, or another directory under it. Null if not known. */
+    @Nullable private final File outputBase;
+
+    CachedResult(byte[] output, @Nullable File outputBase) {
+      this.output = output;
+      this.outputBase = outputBase;
+    }
+
+    boolean isValid() {
+      return outputBase == null || outputBase.isDirectory();
+    }
+  }
+
+  private final Map<CacheKey, CachedResult> cache = Maps.newConcurrentMap();
+  private final Set<CacheKey> refreshing = Sets.newConcurrentHashSet();
+
+  /** Refreshes of the cached results used since they were last refreshed, keyed by command. */
+  private final Map<CacheKey, Runnable> pendingRefreshes = Maps.newConcurrentMap();
+
   @Override
   public ListenableFuture<String> runBlazeInfo(
       @Nullable BlazeContext context,
@@ -39,12 +268,10 @@ class BlazeInfoImpl extends BlazeInfo {
       WorkspaceRoot workspaceRoot,
       List<String> blazeFlags,
       String key) {
-    return BlazeExecutor.getInstance()
-        .submit(
-            () ->
-                runBlazeInfo(buildSystem, workspaceRoot, key, blazeFlags, context)
-                    .toString()
-                    .trim());
+    return Futures.transform(
+        runBlazeInfoCached(buildSystem, workspaceRoot, key, blazeFlags, context),
+        output -> new String(output, StandardCharsets.UTF_8).trim(),
+        MoreExecutors.directExecutor());
   }
 
   @Override
@@ -54,9 +281,7 @@ class BlazeInfoImpl extends BlazeInfo {
       WorkspaceRoot workspaceRoot,
       List<String> blazeFlags,
       String key) {
-    return BlazeExecutor.getInstance()
-        .submit(
-            () -> runBlazeInfo(buildSystem, workspaceRoot, key, blazeFlags, context).toByteArray());
+    return runBlazeInfoCached(buildSystem, workspaceRoot, key, blazeFlags, context);
   }
 
   @Override
@@ -65,29 +290,155 @@ class BlazeInfoImpl extends BlazeInfo {
       BuildSystem buildSystem,
       WorkspaceRoot workspaceRoot,
       List<String> blazeFlags) {
+    return Futures.transform(
+        runBlazeInfoCached(buildSystem, workspaceRoot, null /* key */, blazeFlags, context),
+        output -> parseBlazeInfoResult(new String(output, StandardCharsets.UTF_8).trim()),
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void clearCache() {
+    cache.clear();
+    pendingRefreshes.clear();
+  }
+
+  @Override
+  public void refreshCachedResults() {
+    for (CacheKey cacheKey : ImmutableList.copyOf(pendingRefreshes.keySet())) {
+      Runnable refresh = pendingRefreshes.remove(cacheKey);
+      if (refresh != null) {
+        refresh.run();
+      }
+    }
+  }
+
+  /**
+   * Returns the cached output if the command and the files which may affect it are unchanged, and
+   * its output base still exists. The command is then rerun by the next {@link
+   * #refreshCachedResults}, rather than straight away, where it would hold up the blaze server.
+   */
+  private ListenableFuture<byte[]> runBlazeInfoCached(
+      BuildSystem buildSystem,
+      WorkspaceRoot workspaceRoot,
+      @Nullable String key,
+      List<String> blazeFlags,
+      @Nullable BlazeContext context) {
+    BlazeCommand command = getCommand(buildSystem, key, blazeFlags);
+    CacheKey cacheKey = CACHE_RESULTS.getValue() ? CacheKey.create(command, workspaceRoot) : null;
+    CachedResult cached = cacheKey != null ? cache.get(cacheKey) : null;
+    if (cached != null && cached.isValid()) {
+      pendingRefreshes.put(
+          cacheKey, () -> refreshInBackground(cacheKey, command, workspaceRoot, key));
+      return Futures.immediateFuture(cached.output);
+    }
     return BlazeExecutor.getInstance()
+        .submit(() -> runAndCache(cacheKey, command, workspaceRoot, key, context));
+  }
+
+  private void refreshInBackground(
+      CacheKey cacheKey, BlazeCommand command, WorkspaceRoot workspaceRoot, @Nullable String key) {
+    if (!refreshing.add(cacheKey)) {
+      return;
+    }
+    BlazeExecutor.getInstance()
         .submit(
             () -> {
-              String blazeInfoString =
-                  runBlazeInfo(buildSystem, workspaceRoot, null /* key */, blazeFlags, context)
-                      .toString()
-                      .trim();
-              return parseBlazeInfoResult(blazeInfoString);
+              try {
+                CachedResult cached = cache.get(cacheKey);
+                byte[] output =
+                    runAndCache(cacheKey, command, workspaceRoot, key, null /* context */);
+                if (cached != null && outputChanged(key, cached.output, output)) {
+                  // The stale result has already been used, e.g. to sync
+                  logger.info("Cached blaze info results changed: " + command);
+                  markProjectsDirty(workspaceRoot);
+                }
+              } catch (BlazeInfoException e) {
+                logger.warn("Failed to refresh cached blaze info results", e);
+                cache.remove(cacheKey);
+              } finally {
+                refreshing.remove(cacheKey);
+              }
+              return null;
             });
   }
 
-  private static ByteArrayOutputStream runBlazeInfo(
-      BuildSystem buildSystem,
+  private byte[] runAndCache(
+      @Nullable CacheKey cacheKey,
+      BlazeCommand command,
       WorkspaceRoot workspaceRoot,
       @Nullable String key,
-      List<String> blazeFlags,
       @Nullable BlazeContext context)
       throws BlazeInfoException {
+    byte[] output = runBlazeInfo(command, workspaceRoot, context).toByteArray();
+    if (cacheKey != null) {
+      cache.put(cacheKey, new CachedResult(output, getOutputBase(key, output)));
+    }
+    return output;
+  }
+
+  /**
+   * Whether blaze info's output has changed, ignoring values which vary between runs regardless.
+   */
+  @VisibleForTesting
+  static boolean outputChanged(@Nullable String key, byte[] cachedOutput, byte[] output) {
+    if (Arrays.equals(cachedOutput, output)) {
+      return false;
+    }
+    if (key != null) {
+      return !VOLATILE_KEYS.contains(key);
+    }
+    Map<String, String> cachedResults =
+        Maps.filterKeys(
+            parseBlazeInfoResult(new String(cachedOutput, StandardCharsets.UTF_8).trim()),
+            resultKey -> !VOLATILE_KEYS.contains(resultKey));
+    Map<String, String> results =
+        Maps.filterKeys(
+            parseBlazeInfoResult(new String(output, StandardCharsets.UTF_8).trim()),
+            resultKey -> !VOLATILE_KEYS.contains(resultKey));
+    return !cachedResults.equals(results);
+  }
+
+  /** Marks the projects in the workspace as needing a sync, to pick up the changed results. */
+  private static void markProjectsDirty(WorkspaceRoot workspaceRoot) {
+    ApplicationManager.getApplication()
+        .invokeLater(
+            () -> {
+              for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+                if (Blaze.isBlazeProject(project)
+                    && workspaceRoot.equals(WorkspaceRoot.fromProjectSafe(project))) {
+                  BlazeSyncStatus.getInstance(project).setDirty();
+                }
+              }
+            });
+  }
+
+  /** Finds the output base, or a directory under it, from the output of blaze info. */
+  @VisibleForTesting
+  @Nullable
+  static File getOutputBase(@Nullable String key, byte[] output) {
+    String path = null;
+    if (key == null) {
+      path =
+          parseBlazeInfoResult(new String(output, StandardCharsets.UTF_8).trim())
+              .get(OUTPUT_BASE_KEY);
+    } else if (key.equals(OUTPUT_BASE_KEY) || key.equals(EXECUTION_ROOT_KEY)) {
+      path = new String(output, StandardCharsets.UTF_8).trim();
+    }
+    return path != null && !path.isEmpty() ? new File(path) : null;
+  }
+
+  private static BlazeCommand getCommand(
+      BuildSystem buildSystem, @Nullable String key, List<String> blazeFlags) {
     BlazeCommand.Builder builder = BlazeCommand.builder(buildSystem, BlazeCommandName.INFO);
     if (key != null) {
       builder.addBlazeFlags(key);
     }
-    BlazeCommand command = builder.addBlazeFlags(blazeFlags).build();
+    return builder.addBlazeFlags(blazeFlags).build();
+  }
+
+  private static ByteArrayOutputStream runBlazeInfo(
+      BlazeCommand command, WorkspaceRoot workspaceRoot, @Nullable BlazeContext context)
+      throws BlazeInfoException {
     ByteArrayOutputStream stdout = new ByteArrayOutputStream();
     ByteArrayOutputStream stderr = new ByteArrayOutputStream();
     int exitCode =
@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.base.console;
 
+import com.google.idea.common.experiments.IntExperiment;
 import com.intellij.codeEditor.printing.PrintAction;
 import com.intellij.execution.impl.ConsoleViewImpl;
 import com.intellij.execution.ui.ConsoleViewContentType;
@@ -30,13 +31,17 @@ import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.DefaultActionGroup;
 import com.intellij.openapi.actionSystem.Presentation;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.ex.DocumentEx;
 import com.intellij.openapi.project.DumbAwareAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
+import com.intellij.util.Alarm;
 import java.awt.BorderLayout;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
@@ -52,8 +57,18 @@ class BlazeConsoleView implements Disposable {
     PrintAction.class
   };
 
+  /** The most console output kept, in KB. Older output is discarded. */
+  private static final IntExperiment consoleBufferSizeKb =
+      new IntExperiment("blaze.console.buffer.size.kb", 1024);
+
+  /** How long output is collected before being printed to the console. */
+  private static final int FLUSH_DELAY_MILLIS = 100;
+
   @NotNull private final Project myProject;
   @NotNull private final ConsoleViewImpl myConsoleView;
+  private final int myMaxChars;
+  @NotNull private final ConsoleOutputBuffer myOutputBuffer;
+  @NotNull private final Alarm myFlushAlarm;
 
   private JPanel myConsolePanel;
   private volatile Runnable myStopHandler;
@@ -62,6 +77,9 @@ class BlazeConsoleView implements Disposable {
     myProject = project;
     myConsoleView = new ConsoleViewImpl(myProject, false);
     Disposer.register(this, myConsoleView);
+    myMaxChars = consoleBufferSizeKb.getValue() * 1024;
+    myOutputBuffer = new ConsoleOutputBuffer(myMaxChars);
+    myFlushAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
     setupUI();
   }
 
@@ -90,6 +108,8 @@ class BlazeConsoleView implements Disposable {
     Content console =
         layoutUi.createContent(
             BlazeConsoleToolWindowFactory.ID, myConsoleView.getComponent(), "", null, null);
+    // The console's editor is created along with its component
+    limitConsoleSize();
     console.setCloseable(false);
     layoutUi.addContent(console, 0, PlaceInGrid.right, false);
 
@@ -116,11 +136,36 @@ class BlazeConsoleView implements Disposable {
   }
 
   public void clear() {
+    myOutputBuffer.clear();
     myConsoleView.clear();
   }
 
+  /**
+   * Prints the text to the console. Output is collected and printed in batches, so verbose builds
+   * don't flood the event dispatch thread.
+   */
   public void print(@NotNull String text, @NotNull ConsoleViewContentType contentType) {
-    myConsoleView.print(text, contentType);
+    if (myOutputBuffer.append(text, contentType)) {
+      myFlushAlarm.addRequest(this::flushOutput, FLUSH_DELAY_MILLIS, ModalityState.any());
+    }
+  }
+
+  private void flushOutput() {
+    for (ConsoleOutputBuffer.Chunk chunk : myOutputBuffer.drain()) {
+      myConsoleView.print(chunk.text, chunk.contentType);
+    }
+    myConsoleView.flushDeferredText();
+  }
+
+  /**
+   * Caps the console document at its maximum size. The document discards its oldest text as new
+   * text is added, and the console adjusts its highlighting and hyperlinks to match.
+   */
+  private void limitConsoleSize() {
+    Editor editor = myConsoleView.getEditor();
+    if (editor != null) {
+      ((DocumentEx) editor.getDocument()).setCyclicBufferSize(myMaxChars);
+    }
   }
 
   @Override
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.console;
+
+import com.google.common.collect.ImmutableList;
+import com.intellij.execution.ui.ConsoleViewContentType;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+
+/**
+ * Collects console output between flushes.
+ *
+ * <p>Consecutive output of the same content type is coalesced, a progress line is dropped if
+ * another one directly follows it before the next flush, and the oldest output is dropped if more
+ * than the maximum size accumulates.
+ */
+final class ConsoleOutputBuffer {
+
+  /** Output of a single content type, ready to be printed. */
+  static final class Chunk {
+    final String text;
+    final ConsoleViewContentType contentType;
+
+    Chunk(String text, ConsoleViewContentType contentType) {
+      this.text = text;
+      this.contentType = contentType;
+    }
+  }
+
+  /** Blaze's progress messages, e.g. "[1,234 / 5,678] Compiling foo/Bar.java". */
+  private static final Pattern PROGRESS_LINE = Pattern.compile("^\\[[0-9,]+ / [0-9,]+\\] ");
+
+  private final int maxChars;
+  private final Deque<Chunk> segments = new ArrayDeque<>();
+  private int pendingChars;
+  /** The number of segments, at the end of the queue, making up the unterminated line. */
+  private int currentLineSegments;
+  /** Whether the unterminated line began before the last flush. */
+  private boolean currentLineFlushed;
+  /**
+   * The number of segments directly before the unterminated line making up the last complete line,
+   * if that was a progress line. Zero otherwise.
+   */
+  private int progressLineSegments;
+
+  private int droppedChars;
+
+  ConsoleOutputBuffer(int maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  /** Adds output to the buffer. Returns true if the buffer was previously empty. */
+  synchronized boolean append(String text, ConsoleViewContentType contentType) {
+    boolean wasEmpty = segments.isEmpty() && droppedChars == 0;
+    int start = 0;
+    while (start < text.length()) {
+      int lineEnd = text.indexOf('\n', start);
+      if (lineEnd < 0) {
+        addSegment(text.substring(start), contentType);
+        break;
+      }
+      addSegment(text.substring(start, lineEnd + 1), contentType);
+      onLineEnd();
+      start = lineEnd + 1;
+    }
+    dropOldestSegments();
+    return wasEmpty;
+  }
+
+  /** Removes and returns all buffered output. */
+  synchronized ImmutableList<Chunk> drain() {
+    ImmutableList.Builder<Chunk> chunks = ImmutableList.builder();
+    if (droppedChars > 0) {
+      chunks.add(
+          new Chunk(
+              String.format("[%d characters of output skipped]\n", droppedChars),
+              ConsoleViewContentType.SYSTEM_OUTPUT));
+    }
+    StringBuilder text = new StringBuilder();
+    ConsoleViewContentType contentType = null;
+    for (Chunk segment : segments) {
+      if (segment.contentType != contentType && text.length() > 0) {
+        chunks.add(new Chunk(text.toString(), contentType));
+        text.setLength(0);
+      }
+      text.append(segment.text);
+      contentType = segment.contentType;
+    }
+    if (text.length() > 0) {
+      chunks.add(new Chunk(text.toString(), contentType));
+    }
+    boolean currentLineFlushed = this.currentLineFlushed || currentLineSegments > 0;
+    clear();
+    this.currentLineFlushed = currentLineFlushed;
+    return chunks.build();
+  }
+
+  /** Discards all buffered output. */
+  synchronized void clear() {
+    segments.clear();
+    pendingChars = 0;
+    currentLineSegments = 0;
+    currentLineFlushed = false;
+    progressLineSegments = 0;
+    droppedChars = 0;
+  }
+
+  private void addSegment(String text, ConsoleViewContentType contentType) {
+    if (text.isEmpty()) {
+      return;
+    }
+    segments.addLast(new Chunk(text, contentType));
+    pendingChars += text.length();
+    currentLineSegments++;
+  }
+
+  private void onLineEnd() {
+    boolean isProgressLine = !currentLineFlushed && isProgressLine();
+    if (isProgressLine && progressLineSegments > 0) {
+      // The previous progress line is superseded, so remove it from before this one
+      Deque<Chunk> currentLine = new ArrayDeque<>(currentLineSegments);
+      for (int i = 0; i < currentLineSegments; i++) {
+        currentLine.addFirst(segments.removeLast());
+      }
+      for (int i = 0; i < progressLineSegments; i++) {
+        pendingChars -= segments.removeLast().text.length();
+      }
+      segments.addAll(currentLine);
+    }
+    progressLineSegments = isProgressLine ? currentLineSegments : 0;
+    currentLineSegments = 0;
+    currentLineFlushed = false;
+  }
+
+  private boolean isProgressLine() {
+    String[] line = new String[currentLineSegments];
+    Iterator<Chunk> iterator = segments.descendingIterator();
+    for (int i = line.length - 1; i >= 0; i--) {
+      line[i] = iterator.next().text;
+    }
+    // Segments are never empty, so this checks the first character of the line
+    return line.length > 0
+        && line[0].startsWith("[")
+        && PROGRESS_LINE.matcher(String.join("", line)).find();
+  }
+
+  private void dropOldestSegments() {
+    while (pendingChars > maxChars
+        && segments.size() > currentLineSegments + progressLineSegments) {
+      Chunk dropped = segments.removeFirst();
+      pendingChars -= dropped.text.length();
+      droppedChars += dropped.text.length();
+    }
+  }
+}
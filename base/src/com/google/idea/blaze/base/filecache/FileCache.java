@@ -21,6 +21,8 @@ import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.sync.BlazeSyncParams;
 import com.intellij.openapi.extensions.ExtensionPointName;
 import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.util.Collection;
 
 /** A cache of files from the build output. */
 public interface FileCache {
@@ -30,14 +32,22 @@ public interface FileCache {
   /** Name of cache. Used for status messages. */
   String getName();
 
-  /** Called on sync to fully refresh the file cache. */
-  void onSync(
+  /**
+   * Called on sync to fully refresh the file cache.
+   *
+   * @return the files created, updated or deleted by the cache
+   */
+  Collection<File> onSync(
       Project project,
       BlazeContext context,
       ProjectViewSet projectViewSet,
       BlazeProjectData projectData,
       BlazeSyncParams.SyncMode syncMode);
 
-  /** Called after a build operation to refresh any updated files. */
-  void refreshFiles(Project project);
+  /**
+   * Called after a build operation to refresh any updated files.
+   *
+   * @return the files created, updated or deleted by the cache
+   */
+  Collection<File> refreshFiles(Project project);
 }
@@ -15,36 +15,102 @@
  */
 package com.google.idea.blaze.base.filecache;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.io.FileAttributeProvider;
+import com.google.idea.blaze.base.io.VirtualFileSystemProvider;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.Scope;
+import com.google.idea.blaze.base.scope.output.IssueOutput;
+import com.google.idea.blaze.base.scope.output.PrintOutput;
 import com.google.idea.blaze.base.scope.output.StatusOutput;
 import com.google.idea.blaze.base.scope.scopes.TimingScope;
 import com.google.idea.blaze.base.sync.BlazeSyncParams;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.LocalFileSystem;
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 /** Static helper methods to update file caches. */
 public class FileCaches {
-  /** Call on sync. Updates the file cache and deletes any old files. */
+  private static final Logger logger = Logger.getInstance(FileCaches.class);
+
+  /**
+   * Call on sync. Updates the file caches in parallel and deletes any old files. Copies made by the
+   * caches share the {@link FileCopyLimiter#SHARED} budget.
+   */
   public static void onSync(
       Project project,
       BlazeContext context,
       ProjectViewSet projectViewSet,
       BlazeProjectData blazeProjectData,
       BlazeSyncParams.SyncMode syncMode) {
+    List<ListenableFuture<Collection<File>>> futures = Lists.newArrayList();
     for (FileCache fileCache : FileCache.EP_NAME.getExtensions()) {
-      Scope.push(
-          context,
-          childContext -> {
-            childContext.push(new TimingScope(fileCache.getName()));
-            childContext.output(new StatusOutput("Updating " + fileCache.getName() + "..."));
-            fileCache.onSync(project, context, projectViewSet, blazeProjectData, syncMode);
-          });
+      futures.add(
+          BlazeExecutor.getInstance()
+              .submit(
+                  () ->
+                      onSync(
+                          fileCache,
+                          project,
+                          context,
+                          projectViewSet,
+                          blazeProjectData,
+                          syncMode)));
+    }
+    FutureUtil.FutureResult<List<Collection<File>>> result =
+        FutureUtil.waitForFuture(context, Futures.allAsList(futures))
+            .onError("Updating file caches failed")
+            .run();
+    if (!result.success()) {
+      return;
     }
-    LocalFileSystem.getInstance().refresh(true);
+    List<File> changedFiles = Lists.newArrayList();
+    result.result().forEach(changedFiles::addAll);
+    int refreshed = refreshVirtualFiles(changedFiles);
+    context.output(PrintOutput.log(String.format("Refreshing %d cached files", refreshed)));
+  }
+
+  /**
+   * Updates a single file cache, in its own scope. A failing cache is reported without affecting
+   * the others.
+   */
+  private static Collection<File> onSync(
+      FileCache fileCache,
+      Project project,
+      BlazeContext context,
+      ProjectViewSet projectViewSet,
+      BlazeProjectData blazeProjectData,
+      BlazeSyncParams.SyncMode syncMode) {
+    return Scope.push(
+        context,
+        childContext -> {
+          childContext.push(new TimingScope(fileCache.getName()));
+          childContext.output(new StatusOutput("Updating " + fileCache.getName() + "..."));
+          try {
+            return fileCache.onSync(
+                project, childContext, projectViewSet, blazeProjectData, syncMode);
+          } catch (ProcessCanceledException e) {
+            // Cancellation isn't a failure of this cache
+            throw e;
+          } catch (RuntimeException e) {
+            logger.warn(e);
+            IssueOutput.warn(fileCache.getName() + " failed to update: " + e.getMessage())
+                .submit(childContext);
+            return ImmutableList.of();
+          }
+        });
   }
 
   /** Call at the end of build when you want the IDE to pick up any changes. */
@@ -53,11 +119,34 @@ public class FileCaches {
         project,
         indicator -> {
           indicator.setIndeterminate(true);
+          List<File> changedFiles = Lists.newArrayList();
           for (FileCache fileCache : FileCache.EP_NAME.getExtensions()) {
             indicator.setText("Updating " + fileCache.getName() + "...");
-            fileCache.refreshFiles(project);
+            changedFiles.addAll(fileCache.refreshFiles(project));
           }
-          LocalFileSystem.getInstance().refresh(true);
+          int refreshed = refreshVirtualFiles(changedFiles);
+          logger.info(String.format("Refreshing %d cached files", refreshed));
         });
   }
+
+  /**
+   * Asynchronously refreshes the changed files in a single batch. A deleted file is picked up by
+   * refreshing its parent directory instead. Returns the number of paths refreshed.
+   */
+  private static int refreshVirtualFiles(Collection<File> changedFiles) {
+    if (changedFiles.isEmpty()) {
+      return 0;
+    }
+    FileAttributeProvider fileAttributeProvider = FileAttributeProvider.getInstance();
+    Set<File> paths = Sets.newLinkedHashSet();
+    for (File file : changedFiles) {
+      if (fileAttributeProvider.exists(file)) {
+        paths.add(file);
+      } else if (file.getParentFile() != null) {
+        paths.add(file.getParentFile());
+      }
+    }
+    VirtualFileSystemProvider.getInstance().getSystem().refreshIoFiles(paths, true, false, null);
+    return paths.size();
+  }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.filecache;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds how much data is being copied at once, so file caches updating in parallel don't thrash
+ * the disk.
+ *
+ * <p>Each copy holds a share of the budget proportional to its size: many small files can be
+ * copied at once, while large files are copied a few at a time. A file larger than the whole
+ * budget is copied on its own.
+ */
+public final class FileCopyLimiter {
+  private static final int DEFAULT_BUDGET_KB = 64 * 1024;
+
+  /** The limiter shared by all file caches. */
+  public static final FileCopyLimiter SHARED = new FileCopyLimiter(DEFAULT_BUDGET_KB);
+
+  private final int budgetKb;
+  private final Semaphore available;
+
+  @VisibleForTesting
+  FileCopyLimiter(int budgetKb) {
+    this.budgetKb = budgetKb;
+    // Fair, so a large copy waiting for the whole budget isn't starved by small ones
+    this.available = new Semaphore(budgetKb, true);
+  }
+
+  /** Copies the source file to the target, waiting until there's enough budget to do so. */
+  public void copy(Path source, Path target, CopyOption... options) throws IOException {
+    int permits = permitsFor(Files.size(source));
+    try {
+      available.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting to copy " + source);
+    }
+    try {
+      Files.copy(source, target, options);
+    } finally {
+      available.release(permits);
+    }
+  }
+
+  @VisibleForTesting
+  int availableKb() {
+    return available.availablePermits();
+  }
+
+  private int permitsFor(long sizeBytes) {
+    long sizeKb = (sizeBytes + 1023) / 1024;
+    return (int) Math.max(1, Math.min(sizeKb, budgetKb));
+  }
+}
@@ -29,6 +29,9 @@ public final class ArtifactLocation implements Serializable, Comparable<Artifact
   public final boolean isSource;
   public final boolean isExternal;
 
+  /** Artifacts are used as map keys throughout sync, so the hash code is cached. */
+  private transient int hashCode;
+
   private ArtifactLocation(
       String rootExecutionPathFragment, String relativePath, boolean isSource, boolean isExternal) {
     this.rootExecutionPathFragment = rootExecutionPathFragment;
@@ -111,7 +114,12 @@ public final class ArtifactLocation implements Serializable, Comparable<Artifact
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(rootExecutionPathFragment, relativePath, isSource, isExternal);
+    int hashCode = this.hashCode;
+    if (hashCode == 0) {
+      hashCode = Objects.hashCode(rootExecutionPathFragment, relativePath, isSource, isExternal);
+      this.hashCode = hashCode;
+    }
+    return hashCode;
   }
 
   @Override
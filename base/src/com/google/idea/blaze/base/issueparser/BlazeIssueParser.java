@@ -18,7 +18,6 @@ package com.google.idea.blaze.base.issueparser;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.idea.blaze.base.model.primitives.Label;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
 import com.google.idea.blaze.base.model.primitives.WorkspacePath;
@@ -30,6 +29,7 @@ import com.google.idea.blaze.base.projectview.section.sections.TargetSection;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
@@ -70,14 +70,34 @@ public class BlazeIssueParser {
   /** Used by BlazeIssueParser. Generally implemented by subclassing SingleLineParser */
   public interface Parser {
     ParseResult parse(String currentLine, List<String> previousLines);
+
+    /**
+     * Literals of which the first line of any match contains at least one. Lines containing none
+     * of them are skipped without being parsed. If empty, every line is parsed.
+     */
+    default ImmutableList<String> requiredLiterals() {
+      return ImmutableList.of();
+    }
   }
 
   /** Base for a Parser that consumes a single contextless line at a time, matched via regex */
   public abstract static class SingleLineParser implements Parser {
     Pattern pattern;
+    private final ImmutableList<String> requiredLiterals;
 
+    /** The required literal is the regex's leading literal text, if any. */
     public SingleLineParser(String regex) {
+      this(regex, literalPrefix(regex));
+    }
+
+    public SingleLineParser(String regex, ImmutableList<String> requiredLiterals) {
       pattern = Pattern.compile(regex);
+      this.requiredLiterals = requiredLiterals;
+    }
+
+    @Override
+    public ImmutableList<String> requiredLiterals() {
+      return requiredLiterals;
     }
 
     @Override
@@ -99,6 +119,27 @@ public class BlazeIssueParser {
     protected abstract IssueOutput createIssue(Matcher matcher);
   }
 
+  /**
+   * Returns the literal text every match of the regex starts with, or nothing if that can't be
+   * determined simply.
+   */
+  static ImmutableList<String> literalPrefix(String regex) {
+    if (regex.indexOf('|') >= 0) {
+      // The prefix might belong to only one alternative
+      return ImmutableList.of();
+    }
+    int start = regex.startsWith("^") ? 1 : 0;
+    int end = start;
+    while (end < regex.length() && "\\^$.|?*+()[]{}".indexOf(regex.charAt(end)) < 0) {
+      end++;
+    }
+    if (end < regex.length() && "?*{".indexOf(regex.charAt(end)) >= 0) {
+      // The last character is optional
+      end--;
+    }
+    return end > start ? ImmutableList.of(regex.substring(start, end)) : ImmutableList.of();
+  }
+
   @Nullable
   public static File fileFromAbsolutePath(String absolutePath) {
     return new File(absolutePath);
@@ -144,7 +185,9 @@ public class BlazeIssueParser {
     private final WorkspaceRoot workspaceRoot;
 
     CompileParser(WorkspaceRoot workspaceRoot) {
-      super("^([^/].*?):([0-9]+):(?:([0-9]+):)? (error|warning): (.*)$");
+      super(
+          "^([^/].*?):([0-9]+):(?:([0-9]+):)? (error|warning): (.*)$",
+          ImmutableList.of(": error: ", ": warning: "));
       this.workspaceRoot = workspaceRoot;
     }
 
@@ -168,6 +211,11 @@ public class BlazeIssueParser {
         Pattern.compile(
             "(ERROR): (.*?):([0-9]+):([0-9]+): (Traceback \\(most recent call last\\):)");
 
+    @Override
+    public ImmutableList<String> requiredLiterals() {
+      return ImmutableList.of("Traceback (most recent call last):");
+    }
+
     @Override
     public ParseResult parse(String currentLine, List<String> previousLines) {
       if (previousLines.isEmpty()) {
@@ -314,7 +362,87 @@ public class BlazeIssueParser {
     return null;
   }
 
+  /**
+   * Finds, in a single scan of a line, which parsers' required literals it contains. Parsers
+   * without required literals always match, as do any past the 64th.
+   */
+  private static final class LiteralFilter {
+    private final long allParsers;
+    private final long unfilteredParsers;
+    /** For each ASCII character, the literals starting with it. */
+    private final String[][] literalsByFirstChar = new String[128][];
+    /** Parallel to {@link #literalsByFirstChar}, the parsers requiring each literal. */
+    private final long[][] parsersByFirstChar = new long[128][];
+
+    LiteralFilter(List<Parser> parsers) {
+      long allParsers = 0;
+      long unfilteredParsers = 0;
+      for (int i = 0; i < parsers.size(); i++) {
+        long parserBit = i < 64 ? 1L << i : 0;
+        allParsers |= parserBit;
+        ImmutableList<String> literals = parsers.get(i).requiredLiterals();
+        if (parserBit == 0
+            || literals.isEmpty()
+            || !literals.stream().allMatch(LiteralFilter::isIndexed)) {
+          unfilteredParsers |= parserBit;
+          continue;
+        }
+        for (String literal : literals) {
+          add(literal, parserBit);
+        }
+      }
+      this.allParsers = allParsers;
+      this.unfilteredParsers = unfilteredParsers;
+    }
+
+    private static boolean isIndexed(String literal) {
+      return !literal.isEmpty() && literal.charAt(0) < 128;
+    }
+
+    private void add(String literal, long parserBit) {
+      char first = literal.charAt(0);
+      String[] literals = literalsByFirstChar[first];
+      long[] literalParsers = parsersByFirstChar[first];
+      int index = literals == null ? -1 : Arrays.asList(literals).indexOf(literal);
+      if (index >= 0) {
+        literalParsers[index] |= parserBit;
+        return;
+      }
+      int length = literals == null ? 0 : literals.length;
+      literals = literals == null ? new String[1] : Arrays.copyOf(literals, length + 1);
+      literalParsers =
+          literalParsers == null ? new long[1] : Arrays.copyOf(literalParsers, length + 1);
+      literals[length] = literal;
+      literalParsers[length] = parserBit;
+      literalsByFirstChar[first] = literals;
+      parsersByFirstChar[first] = literalParsers;
+    }
+
+    /** Returns a bit set of the parsers (by index) which might match the line. */
+    long matchingParsers(String line) {
+      long matching = unfilteredParsers;
+      for (int i = 0; i < line.length() && matching != allParsers; i++) {
+        char c = line.charAt(i);
+        if (c >= 128) {
+          continue;
+        }
+        String[] literals = literalsByFirstChar[c];
+        if (literals == null) {
+          continue;
+        }
+        long[] literalParsers = parsersByFirstChar[c];
+        for (int j = 0; j < literals.length; j++) {
+          if ((matching | literalParsers[j]) != matching && line.startsWith(literals[j], i)) {
+            matching |= literalParsers[j];
+          }
+        }
+      }
+      return matching;
+    }
+  }
+
   private ImmutableList<Parser> parsers;
+  private final LiteralFilter literalFilter;
   /**
    * The parser that requested more lines of input during the last call to {@link
    * #parseIssue(String)}.
@@ -325,32 +453,46 @@ public class BlazeIssueParser {
 
   public BlazeIssueParser(ImmutableList<Parser> parsers) {
     this.parsers = parsers;
+    this.literalFilter = new LiteralFilter(parsers);
   }
 
   @Nullable
   public IssueOutput parseIssue(String line) {
-
-    List<Parser> parsers = this.parsers;
     if (multilineMatchingParser != null) {
-      parsers = Lists.newArrayList(multilineMatchingParser);
+      return parseIssue(line, multilineMatchingParser);
     }
-
-    for (Parser parser : parsers) {
-      ParseResult issue = parser.parse(line, multilineMatchResult);
-      if (issue.needsMoreInput) {
-        multilineMatchingParser = parser;
-        multilineMatchResult.add(line);
-        return null;
-      } else {
-        multilineMatchingParser = null;
-        multilineMatchResult = new ArrayList<>();
+    long matchingParsers = literalFilter.matchingParsers(line);
+    if (matchingParsers == 0 && parsers.size() <= 64) {
+      return null;
+    }
+    for (int i = 0; i < parsers.size(); i++) {
+      if (i < 64 && (matchingParsers & (1L << i)) == 0) {
+        continue;
       }
-
-      if (issue.output != null) {
-        return issue.output;
+      IssueOutput output = parseIssue(line, parsers.get(i));
+      if (output != null || multilineMatchingParser != null) {
+        return output;
       }
     }
-
     return null;
   }
+
+  /**
+   * Passes the line to the parser, tracking any multiline match it starts or continues. Returns
+   * the parsed issue, if any.
+   */
+  @Nullable
+  private IssueOutput parseIssue(String line, Parser parser) {
+    ParseResult issue = parser.parse(line, multilineMatchResult);
+    if (issue.needsMoreInput) {
+      multilineMatchingParser = parser;
+      multilineMatchResult.add(line);
+      return null;
+    }
+    if (multilineMatchingParser != null) {
+      multilineMatchingParser = null;
+      multilineMatchResult = new ArrayList<>();
+    }
+    return issue.output;
+  }
 }
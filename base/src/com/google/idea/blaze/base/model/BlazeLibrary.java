@@ -16,10 +16,11 @@
 package com.google.idea.blaze.base.model;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.idea.blaze.base.io.VirtualFileSystemProvider;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.openapi.vfs.StandardFileSystems;
@@ -63,10 +64,12 @@ public abstract class BlazeLibrary implements Serializable {
     return Objects.equal(key, that.key);
   }
 
-  public abstract void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      Library.ModifiableModel libraryModel);
+  /**
+   * The URLs of the roots the IntelliJ library should have, by root type. Called off the EDT, so
+   * sync can work out which libraries changed before taking the write lock.
+   */
+  public abstract ImmutableListMultimap<OrderRootType, String> getRootUrls(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder);
 
   protected static String pathToUrl(File path) {
     String name = path.getName();
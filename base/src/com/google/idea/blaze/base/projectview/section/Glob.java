@@ -27,7 +27,8 @@ public class Glob implements Serializable {
   private static final long serialVersionUID = 1L;
 
   private String pattern;
-  private transient FileNameMatcher matcher;
+  // Volatile, as globs are matched concurrently, e.g. while walking directories in parallel
+  private transient volatile FileNameMatcher matcher;
 
   public Glob(String pattern) {
     this.pattern = pattern;
@@ -62,8 +63,10 @@ public class Glob implements Serializable {
   }
 
   public boolean matches(String string) {
+    FileNameMatcher matcher = this.matcher;
     if (matcher == null) {
       matcher = FileNameMatcherFactory.getInstance().createMatcher(pattern);
+      this.matcher = matcher;
     }
     return matcher.accept(string);
   }
@@ -15,114 +15,320 @@
  */
 package com.google.idea.blaze.base.run.smrunner;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.annotation.XmlValue;
-
-/** Used to parse the test.xml generated by the blaze/bazel testing framework. */
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Used to parse the test.xml generated by the blaze/bazel testing framework.
+ *
+ * <p>The XML is streamed: only the structure of the test suites is kept, and captured output is
+ * truncated, both per element and in total, so large test logs don't need to fit in memory.
+ */
 public class BlazeXmlSchema {
 
-  private static final JAXBContext CONTEXT;
+  /** Output and failure messages longer than this are truncated. */
+  @VisibleForTesting static final int MAX_TEXT_LENGTH = 64 * 1024;
 
-  static {
-    try {
-      CONTEXT = JAXBContext.newInstance(TestSuite.class, TestSuites.class);
-    } catch (JAXBException e) {
-      throw new RuntimeException(e);
-    }
+  /** Once this much 'system-out' and 'system-err' output has been kept, the rest is dropped. */
+  @VisibleForTesting static final int MAX_TOTAL_OUTPUT_LENGTH = 8 * 1024 * 1024;
+
+  private static final XMLInputFactory FACTORY = createInputFactory();
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    return factory;
   }
 
+  /** Parses the test XML, returning a single suite containing all the top-level suites. */
   static TestSuite parse(InputStream input) {
-    try {
-      Object parsed = CONTEXT.createUnmarshaller().unmarshal(input);
-      return parsed instanceof TestSuites
-          ? ((TestSuites) parsed).convertToTestSuite()
-          : (TestSuite) parsed;
+    TestSuite suite = new TestSuite();
+    parse(input, suite.testSuites::add);
+    return suite.testSuites.size() == 1 ? suite.testSuites.get(0) : suite;
+  }
 
-    } catch (JAXBException e) {
+  /**
+   * Parses the test XML, passing each top-level 'testsuite' element to the consumer as soon as it
+   * has been read.
+   */
+  static void parse(InputStream input, Consumer<TestSuite> consumer) {
+    try {
+      XMLStreamReader reader = FACTORY.createXMLStreamReader(input);
+      try {
+        new StreamingParser(reader, consumer).parse();
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
       throw new RuntimeException("Failed to parse test XML", e);
     }
   }
 
-  // optional wrapping XML element. Some test runners don't include it.
-  @XmlRootElement(name = "testsuites")
-  static class TestSuites {
-    @XmlElement(name = "testsuite")
-    List<TestSuite> testSuites = Lists.newArrayList();
+  private static class StreamingParser {
+    private final XMLStreamReader reader;
+    private final Consumer<TestSuite> consumer;
+    /** How much more 'system-out' and 'system-err' output can be kept. */
+    private int outputBudget = MAX_TOTAL_OUTPUT_LENGTH;
 
-    TestSuite convertToTestSuite() {
-      TestSuite suite = new TestSuite();
-      suite.testSuites.addAll(testSuites);
-      return suite;
+    StreamingParser(XMLStreamReader reader, Consumer<TestSuite> consumer) {
+      this.reader = reader;
+      this.consumer = consumer;
     }
-  }
 
-  /** XML output by blaze test runners. */
-  @XmlRootElement(name = "testsuite")
-  public static class TestSuite {
-    public @XmlAttribute String name;
-    @XmlAttribute String classname;
-    @XmlAttribute int tests;
-    @XmlAttribute int failures;
-    @XmlAttribute int errors;
-    @XmlAttribute int skipped;
-    @XmlAttribute int disabled;
-    @XmlAttribute double time;
+    void parse() throws XMLStreamException {
+      Deque<TestSuite> suites = new ArrayDeque<>();
+      TestCase testCase = null;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamReader.END_ELEMENT) {
+          switch (reader.getLocalName()) {
+            case "testsuite":
+            case "testdecorator":
+              TestSuite suite = suites.pop();
+              if (suites.isEmpty()) {
+                consumer.accept(suite);
+              }
+              break;
+            case "testcase":
+              testCase = null;
+              break;
+            default:
+              break;
+          }
+          continue;
+        }
+        if (event != XMLStreamReader.START_ELEMENT) {
+          continue;
+        }
+        String element = reader.getLocalName();
+        TestSuite parent = suites.peek();
+        switch (element) {
+          case "testsuite":
+          case "testdecorator":
+            TestSuite suite = readTestSuite(reader);
+            if (parent != null) {
+              (element.equals("testsuite") ? parent.testSuites : parent.testDecorators).add(suite);
+            }
+            suites.push(suite);
+            break;
+          case "testcase":
+            if (parent != null) {
+              testCase = readTestCase(reader);
+              parent.testCases.add(testCase);
+            }
+            break;
+          case "error":
+          case "failure":
+          case "skipped":
+            ErrorOrFailureOrSkipped result = readErrorOrFailureOrSkipped();
+            if (testCase != null) {
+              setResult(testCase, element, result);
+            } else if (parent != null) {
+              setResult(parent, element, result);
+            }
+            break;
+          case "system-out":
+          case "system-err":
+            String output = readText(Math.min(MAX_TEXT_LENGTH, outputBudget));
+            outputBudget -= output != null ? Math.min(output.length(), outputBudget) : 0;
+            if (testCase != null) {
+              setOutput(testCase, element, output);
+            } else if (parent != null) {
+              setOutput(parent, element, output);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
 
-    @XmlAttribute(name = "system-out")
-    String sysOut;
+    private ErrorOrFailureOrSkipped readErrorOrFailureOrSkipped() throws XMLStreamException {
+      ErrorOrFailureOrSkipped result = new ErrorOrFailureOrSkipped();
+      result.message = truncate(reader.getAttributeValue(null, "message"));
+      result.type = reader.getAttributeValue(null, "type");
+      result.content = readText(MAX_TEXT_LENGTH);
+      return result;
+    }
 
-    @XmlAttribute(name = "system-err")
-    String sysErr;
+    /**
+     * Reads the text content of the current element, up to its end tag, keeping at most the given
+     * number of characters. Returns null if there's no text.
+     */
+    @Nullable
+    private String readText(int maxLength) throws XMLStreamException {
+      StringBuilder text = new StringBuilder();
+      long skipped = 0;
+      int depth = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamReader.START_ELEMENT) {
+          depth++;
+        } else if (event == XMLStreamReader.END_ELEMENT) {
+          if (depth-- == 0) {
+            break;
+          }
+        } else if (event == XMLStreamReader.CHARACTERS
+            || event == XMLStreamReader.CDATA
+            || event == XMLStreamReader.SPACE) {
+          int length = reader.getTextLength();
+          int kept = Math.max(0, Math.min(length, maxLength - text.length()));
+          text.append(reader.getTextCharacters(), reader.getTextStart(), kept);
+          skipped += length - kept;
+        }
+      }
+      if (skipped > 0) {
+        text.append(truncationNotice(skipped));
+      }
+      return text.length() > 0 ? text.toString() : null;
+    }
+  }
 
-    @XmlElement(name = "error", type = ErrorOrFailureOrSkipped.class)
-    ErrorOrFailureOrSkipped error;
+  private static TestSuite readTestSuite(XMLStreamReader reader) {
+    TestSuite suite = new TestSuite();
+    suite.name = reader.getAttributeValue(null, "name");
+    suite.classname = reader.getAttributeValue(null, "classname");
+    suite.tests = parseInt(reader.getAttributeValue(null, "tests"));
+    suite.failures = parseInt(reader.getAttributeValue(null, "failures"));
+    suite.errors = parseInt(reader.getAttributeValue(null, "errors"));
+    suite.skipped = parseInt(reader.getAttributeValue(null, "skipped"));
+    suite.disabled = parseInt(reader.getAttributeValue(null, "disabled"));
+    suite.time = parseDouble(reader.getAttributeValue(null, "time"));
+    suite.sysOut = truncate(reader.getAttributeValue(null, "system-out"));
+    suite.sysErr = truncate(reader.getAttributeValue(null, "system-err"));
+    return suite;
+  }
 
-    @XmlElement(name = "failure", type = ErrorOrFailureOrSkipped.class)
-    ErrorOrFailureOrSkipped failure;
+  private static TestCase readTestCase(XMLStreamReader reader) {
+    TestCase testCase = new TestCase();
+    testCase.name = reader.getAttributeValue(null, "name");
+    testCase.classname = reader.getAttributeValue(null, "classname");
+    testCase.status = reader.getAttributeValue(null, "status");
+    testCase.result = reader.getAttributeValue(null, "result");
+    testCase.time = reader.getAttributeValue(null, "time");
+    testCase.sysOut = truncate(reader.getAttributeValue(null, "system-out"));
+    testCase.sysErr = truncate(reader.getAttributeValue(null, "system-err"));
+    return testCase;
+  }
 
-    @XmlElement(name = "testsuite")
-    public List<TestSuite> testSuites = Lists.newArrayList();
+  private static void setResult(TestCase testCase, String element, ErrorOrFailureOrSkipped result) {
+    switch (element) {
+      case "error":
+        testCase.error = result;
+        break;
+      case "failure":
+        testCase.failure = result;
+        break;
+      default:
+        testCase.skipped = result;
+        break;
+    }
+  }
 
-    @XmlElement(name = "testdecorator")
-    List<TestSuite> testDecorators = Lists.newArrayList();
+  private static void setResult(TestSuite suite, String element, ErrorOrFailureOrSkipped result) {
+    if (element.equals("error")) {
+      suite.error = result;
+    } else if (element.equals("failure")) {
+      suite.failure = result;
+    }
+  }
 
-    @XmlElement(name = "testcase")
-    List<TestCase> testCases = Lists.newArrayList();
+  private static void setOutput(TestCase testCase, String element, String output) {
+    if (element.equals("system-out")) {
+      testCase.sysOut = output;
+    } else {
+      testCase.sysErr = output;
+    }
   }
 
-  static class TestCase {
-    @XmlAttribute String name;
-    @XmlAttribute String classname;
-    @XmlAttribute String status;
-    @XmlAttribute String result;
-    @XmlAttribute String time;
+  private static void setOutput(TestSuite suite, String element, String output) {
+    if (element.equals("system-out")) {
+      suite.sysOut = output;
+    } else {
+      suite.sysErr = output;
+    }
+  }
+
+  @Nullable
+  private static String truncate(@Nullable String text) {
+    if (text == null || text.length() <= MAX_TEXT_LENGTH) {
+      return text;
+    }
+    return text.substring(0, MAX_TEXT_LENGTH) + truncationNotice(text.length() - MAX_TEXT_LENGTH);
+  }
 
-    @XmlAttribute(name = "system-out")
-    String sysOut;
+  private static String truncationNotice(long skippedChars) {
+    return String.format("\n[%d characters truncated]\n", skippedChars);
+  }
 
-    @XmlAttribute(name = "system-err")
-    String sysErr;
+  private static int parseInt(@Nullable String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
 
-    @XmlElement(name = "error", type = ErrorOrFailureOrSkipped.class)
-    ErrorOrFailureOrSkipped error;
+  private static double parseDouble(@Nullable String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
 
-    @XmlElement(name = "failure", type = ErrorOrFailureOrSkipped.class)
-    ErrorOrFailureOrSkipped failure;
+  /** XML output by blaze test runners. */
+  public static class TestSuite {
+    public String name;
+    String classname;
+    int tests;
+    int failures;
+    int errors;
+    int skipped;
+    int disabled;
+    double time;
+    @Nullable String sysOut;
+    @Nullable String sysErr;
+    @Nullable ErrorOrFailureOrSkipped error;
+    @Nullable ErrorOrFailureOrSkipped failure;
+    public List<TestSuite> testSuites = Lists.newArrayList();
+    List<TestSuite> testDecorators = Lists.newArrayList();
+    List<TestCase> testCases = Lists.newArrayList();
+  }
 
-    @XmlElement(name = "skipped", type = ErrorOrFailureOrSkipped.class)
-    ErrorOrFailureOrSkipped skipped;
+  static class TestCase {
+    String name;
+    String classname;
+    String status;
+    String result;
+    String time;
+    @Nullable String sysOut;
+    @Nullable String sysErr;
+    @Nullable ErrorOrFailureOrSkipped error;
+    @Nullable ErrorOrFailureOrSkipped failure;
+    @Nullable ErrorOrFailureOrSkipped skipped;
   }
 
   static class ErrorOrFailureOrSkipped {
-    @XmlValue String content;
-    @XmlAttribute String message;
-    @XmlAttribute String type;
+    String content;
+    String message;
+    String type;
   }
 }
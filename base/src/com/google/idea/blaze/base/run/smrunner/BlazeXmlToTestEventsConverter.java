@@ -15,6 +15,14 @@
  */
 package com.google.idea.blaze.base.run.smrunner;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.model.primitives.Kind;
 import com.google.idea.blaze.base.model.primitives.Label;
@@ -35,17 +43,41 @@ import com.intellij.execution.testframework.sm.runner.events.TestOutputEvent;
 import com.intellij.execution.testframework.sm.runner.events.TestStartedEvent;
 import com.intellij.execution.testframework.sm.runner.events.TestSuiteFinishedEvent;
 import com.intellij.execution.testframework.sm.runner.events.TestSuiteStartedEvent;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 import jetbrains.buildServer.messages.serviceMessages.ServiceMessageVisitor;
 import jetbrains.buildServer.messages.serviceMessages.TestSuiteStarted;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 /** Converts blaze test runner xml logs to smRunner events. */
 public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConverter {
+  private static final Logger logger = Logger.getInstance(BlazeXmlToTestEventsConverter.class);
+
+  private static final int PARSING_THREADS = 8;
+
+  /**
+   * Test XMLs are parsed on a bounded pool, as there may be thousands of them. Reading them is
+   * often IO-bound, so the pool isn't sized by the number of processors.
+   */
+  private static final ListeningExecutorService PARSING_EXECUTOR =
+      MoreExecutors.listeningDecorator(
+          new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, PARSING_THREADS));
+
+  /** Bounds the parsed results held in memory, waiting to be replayed. */
+  private static final int MAX_PARSED_AHEAD = 2 * PARSING_THREADS;
 
   private static final ErrorOrFailureOrSkipped NO_ERROR = new ErrorOrFailureOrSkipped();
 
@@ -55,6 +87,18 @@ public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConv
 
   private final Project project;
   private final BlazeTestEventsHandler eventsHandler;
+  private final TestTargetCompletionTracker completionTracker;
+
+  /**
+   * Test XMLs whose results have already been shown, mapped to their state when read. Guarded by
+   * this.
+   */
+  private final Map<File, TestXmlStamp> processedTestXmls = Maps.newHashMap();
+
+  /** Test XMLs being parsed and shown while the tests are running. Guarded by this. */
+  private final List<ListenableFuture<?>> liveProcessing = Lists.newArrayList();
+
+  private boolean testingStarted;
 
   public BlazeXmlToTestEventsConverter(
       String testFrameworkName,
@@ -63,6 +107,10 @@ public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConv
     super(testFrameworkName, testConsoleProperties);
     this.project = testConsoleProperties.getProject();
     this.eventsHandler = eventsHandler;
+    this.completionTracker =
+        new TestTargetCompletionTracker(
+            label -> BlazeTestXmlFinderStrategy.locateTestXmlFile(project, label),
+            System.currentTimeMillis());
   }
 
   @Override
@@ -74,6 +122,23 @@ public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConv
   @Override
   public void process(String text, Key outputType) {
     super.process(text, outputType);
+    // Show the results of each test target as it finishes, rather than all at the end
+    for (CompletedTestTarget testTarget :
+        completionTracker.onOutput(text, outputType, System.currentTimeMillis())) {
+      if (!markProcessed(testTarget.testResultXml)) {
+        continue;
+      }
+      // Parsed off the output thread, which would otherwise stall the console
+      ListenableFuture<?> processing =
+          Futures.transform(
+              PARSING_EXECUTOR.submit(() -> parseTestXml(testTarget.testResultXml)),
+              suites -> {
+                processTestTarget(testTarget.label, suites);
+                return null;
+              },
+              MoreExecutors.directExecutor());
+      addLiveProcessing(processing);
+    }
   }
 
   @Override
@@ -84,15 +149,156 @@ public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConv
   @Override
   public void flushBufferBeforeTerminating() {
     super.flushBufferBeforeTerminating();
-    onStartTesting();
-    getProcessor().onTestsReporterAttached();
+    startTesting();
 
+    // Finish showing live results first, so they aren't shown after the replayed ones
+    Futures.getUnchecked(Futures.successfulAsList(getLiveProcessing()));
+
+    // Skip targets already shown while the tests were running, unless their test XML has since
+    // been rewritten, e.g. by a later attempt of a flaky test, or another run of the same test
+    Map<File, TestXmlStamp> processedLive = getProcessedTestXmls();
+    List<CompletedTestTarget> testTargets = Lists.newArrayList();
     for (CompletedTestTarget testTarget : BlazeTestXmlFinderStrategy.locateTestXmlFiles(project)) {
-      try (InputStream input = new FileInputStream(testTarget.testResultXml)) {
-        parseXmlInput(getProcessor(), getKind(project, testTarget.label), input);
-      } catch (Exception e) {
-        // ignore parsing errors -- most common cause is user cancellation, which we can't easily
-        // recognize.
+      TestXmlStamp stamp = processedLive.get(testTarget.testResultXml);
+      if (stamp == null || !stamp.equals(TestXmlStamp.of(testTarget.testResultXml))) {
+        testTargets.add(testTarget);
+      }
+    }
+    // The finder strategies return targets in completion order, which varies between runs
+    testTargets.sort(
+        Comparator.comparing((CompletedTestTarget target) -> target.label.toString())
+            .thenComparing(target -> target.testResultXml.getPath()));
+
+    // Parse ahead on the pool, replaying each target's results in order as they become ready
+    ProgressReporter progress = new ProgressReporter(project, testTargets.size());
+    try {
+      OrderedParallelParser.parseInOrder(
+          testTargets,
+          testTarget -> parseTestXml(testTarget.testResultXml),
+          (testTarget, suites) -> {
+            processTestTarget(testTarget.label, suites);
+            progress.targetProcessed();
+          },
+          PARSING_EXECUTOR,
+          MAX_PARSED_AHEAD);
+    } finally {
+      progress.done();
+    }
+  }
+
+  private synchronized void startTesting() {
+    if (!testingStarted) {
+      testingStarted = true;
+      onStartTesting();
+      getProcessor().onTestsReporterAttached();
+    }
+  }
+
+  /** Returns false if the test XML's results have already been shown. */
+  private synchronized boolean markProcessed(File testXml) {
+    // Recorded before parsing, so any later write is seen as a change
+    return processedTestXmls.putIfAbsent(testXml, TestXmlStamp.of(testXml)) == null;
+  }
+
+  private synchronized Map<File, TestXmlStamp> getProcessedTestXmls() {
+    return ImmutableMap.copyOf(processedTestXmls);
+  }
+
+  private synchronized void addLiveProcessing(ListenableFuture<?> processing) {
+    liveProcessing.removeIf(Future::isDone);
+    liveProcessing.add(processing);
+  }
+
+  private synchronized List<ListenableFuture<?>> getLiveProcessing() {
+    return ImmutableList.copyOf(liveProcessing);
+  }
+
+  private synchronized void processTestTarget(Label label, List<TestSuite> suites) {
+    startTesting();
+    try {
+      Kind kind = getKind(project, label);
+      for (TestSuite suite : suites) {
+        processTestSuite(getProcessor(), kind, suite);
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Failed to process test results for " + label, e);
+    }
+  }
+
+  /** Returns the top-level test suites in the test XML, up to any parsing error. */
+  private static List<TestSuite> parseTestXml(File testXml) {
+    List<TestSuite> suites = Lists.newArrayList();
+    try (InputStream input = new FileInputStream(testXml)) {
+      BlazeXmlSchema.parse(input, suites::add);
+    } catch (Exception e) {
+      // ignore parsing errors -- most common cause is user cancellation, which we can't easily
+      // recognize.
+    }
+    return suites;
+  }
+
+  /** A test XML's size and modification time, to tell whether it has been rewritten. */
+  private static final class TestXmlStamp {
+    private final long length;
+    private final long lastModified;
+
+    private TestXmlStamp(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    static TestXmlStamp of(File testXml) {
+      return new TestXmlStamp(testXml.length(), testXml.lastModified());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof TestXmlStamp)) {
+        return false;
+      }
+      TestXmlStamp that = (TestXmlStamp) o;
+      return length == that.length && lastModified == that.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(length, lastModified);
+    }
+  }
+
+  /** Shows how many test targets' results have been processed in the status bar. */
+  private static class ProgressReporter {
+    private static final long UPDATE_INTERVAL_MILLIS = 200;
+
+    private final Project project;
+    private final int targetCount;
+    private int processedCount;
+    private long lastUpdateMillis;
+
+    ProgressReporter(Project project, int targetCount) {
+      this.project = project;
+      this.targetCount = targetCount;
+    }
+
+    void targetProcessed() {
+      processedCount++;
+      long now = System.currentTimeMillis();
+      if (now - lastUpdateMillis >= UPDATE_INTERVAL_MILLIS) {
+        lastUpdateMillis = now;
+        StatusBar.Info.set(
+            String.format(
+                "Processing test results: %d of %d targets", processedCount, targetCount),
+            project);
+      }
+    }
+
+    void done() {
+      if (lastUpdateMillis != 0) {
+        StatusBar.Info.set(
+            String.format("Processed test results of %d targets", processedCount), project);
       }
     }
   }
@@ -103,12 +309,6 @@ public class BlazeXmlToTestEventsConverter extends OutputToGeneralTestEventsConv
     return target != null ? target.kind : null;
   }
 
-  private void parseXmlInput(
-      GeneralTestEventsProcessor processor, @Nullable Kind kind, InputStream input) {
-    TestSuite testResult = BlazeXmlSchema.parse(input);
-    processTestSuite(processor, kind, testResult);
-  }
-
   private void processTestSuite(
       GeneralTestEventsProcessor processor, @Nullable Kind kind, TestSuite suite) {
     if (!hasRunChild(suite)) {
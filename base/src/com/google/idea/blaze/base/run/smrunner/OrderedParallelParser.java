@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.smrunner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Parses inputs in parallel, while handing the results to a consumer one at a time, in input
+ * order.
+ *
+ * <p>Only a bounded number of inputs are parsed ahead of the one being consumed, so at most that
+ * many parsed results are held in memory at once.
+ */
+final class OrderedParallelParser {
+  private static final Logger logger = Logger.getInstance(OrderedParallelParser.class);
+
+  private OrderedParallelParser() {}
+
+  /**
+   * Parses every input on the executor, and passes each result to the consumer on the calling
+   * thread, in input order. An input whose parsing fails is logged and skipped.
+   *
+   * @param maxParsedAhead the most inputs being parsed, or parsed and waiting to be consumed, at
+   *     any time
+   */
+  static <T, R> void parseInOrder(
+      List<T> inputs,
+      Function<T, R> parser,
+      BiConsumer<T, R> consumer,
+      ListeningExecutorService executor,
+      int maxParsedAhead) {
+    Deque<ListenableFuture<R>> parsing = new ArrayDeque<>();
+    Iterator<T> toParse = inputs.iterator();
+    try {
+      for (T input : inputs) {
+        while (toParse.hasNext() && parsing.size() < maxParsedAhead) {
+          T next = toParse.next();
+          parsing.add(executor.submit(() -> parser.apply(next)));
+        }
+        R result;
+        try {
+          result = Uninterruptibles.getUninterruptibly(parsing.remove());
+        } catch (ExecutionException e) {
+          logger.warn("Failed to parse " + input, e);
+          continue;
+        }
+        consumer.accept(input, result);
+      }
+    } finally {
+      parsing.forEach(future -> future.cancel(true));
+    }
+  }
+}
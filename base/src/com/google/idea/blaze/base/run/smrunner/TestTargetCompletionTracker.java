@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.smrunner;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.run.testlogs.CompletedTestTarget;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Detects test targets finishing from the output of a running 'blaze test' command, so their
+ * results can be shown before the whole command completes.
+ *
+ * <p>A target is complete as soon as blaze reports its status. A target seen in a progress message
+ * is complete once its test XML has been written during this run, and is unchanged since the
+ * previous check.
+ */
+final class TestTargetCompletionTracker {
+
+  /** Status lines, e.g. "FAIL: //foo:bar_test (see ...)" or "//foo:bar_test  PASSED in 1.2s". */
+  private static final Pattern TARGET_STATUS =
+      Pattern.compile(
+          "^(?:(?:PASSED|FAIL|FAILED|TIMEOUT|FLAKY): (//\\S+)"
+              + "|(//\\S+) .*?(?:PASSED|FAILED|TIMEOUT|FLAKY))");
+
+  /** Progress messages for running tests, e.g. "Testing //foo:bar_test; 3s linux-sandbox". */
+  private static final Pattern RUNNING_TARGET = Pattern.compile("\\bTesting (//[^\\s;,]+)");
+
+  private static final Pattern ANSI_ESCAPE = Pattern.compile("\u001B\\[[0-9;]*[A-Za-z]");
+
+  @VisibleForTesting static final long POLL_INTERVAL_MILLIS = 1000;
+
+  /** The test XML's size and modification time, when last checked. */
+  private static class TestXmlState {
+    long length = -1;
+    long lastModified = -1;
+  }
+
+  private final Function<Label, File> testXmlLocator;
+  /** Test XMLs last modified before this are left over from an earlier run. */
+  private final long startMillis;
+
+  private final Map<Object, StringBuilder> partialLines = Maps.newHashMap();
+  private final Map<Label, TestXmlState> runningTargets = Maps.newLinkedHashMap();
+  private long lastPollMillis;
+
+  /**
+   * @param testXmlLocator finds where a target's test XML is written, or returns null if unknown
+   * @param startMillis when the command started
+   */
+  TestTargetCompletionTracker(Function<Label, File> testXmlLocator, long startMillis) {
+    this.testXmlLocator = testXmlLocator;
+    // File systems may only record modification times to the second
+    this.startMillis = startMillis - startMillis % 1000;
+  }
+
+  /**
+   * Handles output of the command, returning the test targets it shows to have completed (with
+   * test XML available) since the last call.
+   *
+   * @param stream the output stream the text was written to, as lines may be split between calls
+   */
+  synchronized ImmutableList<CompletedTestTarget> onOutput(
+      String text, Object stream, long nowMillis) {
+    ImmutableList.Builder<CompletedTestTarget> completed = ImmutableList.builder();
+    StringBuilder line = partialLines.computeIfAbsent(stream, key -> new StringBuilder());
+    int start = 0;
+    for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+      line.append(text, start, end);
+      CompletedTestTarget target = onLine(line.toString());
+      if (target != null) {
+        completed.add(target);
+      }
+      line.setLength(0);
+      start = end + 1;
+    }
+    line.append(text, start, text.length());
+
+    if (nowMillis - lastPollMillis >= POLL_INTERVAL_MILLIS) {
+      lastPollMillis = nowMillis;
+      pollRunningTargets(completed);
+    }
+    return completed.build();
+  }
+
+  @Nullable
+  private CompletedTestTarget onLine(String line) {
+    line = ANSI_ESCAPE.matcher(line).replaceAll("").trim();
+    Matcher status = TARGET_STATUS.matcher(line);
+    if (status.find()) {
+      String target = status.group(1) != null ? status.group(1) : status.group(2);
+      Label label = Label.createIfValid(target);
+      if (label == null) {
+        return null;
+      }
+      runningTargets.remove(label);
+      File testXml = testXmlLocator.apply(label);
+      return testXml != null && testXml.exists() ? new CompletedTestTarget(testXml, label) : null;
+    }
+    Matcher running = RUNNING_TARGET.matcher(line);
+    while (running.find()) {
+      Label label = Label.createIfValid(running.group(1));
+      if (label != null) {
+        runningTargets.putIfAbsent(label, new TestXmlState());
+      }
+    }
+    return null;
+  }
+
+  private void pollRunningTargets(ImmutableList.Builder<CompletedTestTarget> completed) {
+    Iterator<Map.Entry<Label, TestXmlState>> iterator = runningTargets.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Label, TestXmlState> entry = iterator.next();
+      File testXml = testXmlLocator.apply(entry.getKey());
+      if (testXml == null) {
+        iterator.remove();
+        continue;
+      }
+      TestXmlState state = entry.getValue();
+      long lastModified = testXml.lastModified();
+      if (lastModified < startMillis) {
+        continue;
+      }
+      long length = testXml.length();
+      if (length == state.length && lastModified == state.lastModified) {
+        iterator.remove();
+        completed.add(new CompletedTestTarget(testXml, entry.getKey()));
+      } else {
+        state.length = length;
+        state.lastModified = lastModified;
+      }
+    }
+  }
+}
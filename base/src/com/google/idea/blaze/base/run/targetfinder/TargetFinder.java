@@ -21,6 +21,7 @@ import com.google.common.collect.Iterables;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.model.primitives.Kind;
 import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.project.Project;
 import java.util.Arrays;
@@ -46,6 +47,14 @@ public abstract class TargetFinder {
     return ImmutableList.copyOf(findTargets(project, target -> target.kindIsOneOf(kinds)));
   }
 
+  public ImmutableList<TargetIdeInfo> targetsOfLanguageClass(
+      Project project, LanguageClass languageClass) {
+    return ImmutableList.copyOf(
+        findTargets(
+            project,
+            target -> target.kind != null && target.kind.getLanguageClass() == languageClass));
+  }
+
   @Nullable
   public TargetIdeInfo firstTargetOfKinds(Project project, Kind... kinds) {
     return Iterables.getFirst(targetsOfKinds(project, kinds), null);
@@ -68,6 +77,15 @@ public abstract class TargetFinder {
     return Iterables.getFirst(findTargets(project, predicate), null);
   }
 
+  /**
+   * Finds the targets of the given kinds matching the predicate. Prefer this to {@link
+   * #findTargets(Project, Predicate)} where possible, as only targets of those kinds are tested.
+   */
+  public List<TargetIdeInfo> findTargets(
+      Project project, List<Kind> kinds, Predicate<TargetIdeInfo> predicate) {
+    return findTargets(project, target -> target.kindIsOneOf(kinds) && predicate.apply(target));
+  }
+
   public abstract List<TargetIdeInfo> findTargets(
       Project project, Predicate<TargetIdeInfo> predicate);
 }
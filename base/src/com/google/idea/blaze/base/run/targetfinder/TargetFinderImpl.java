@@ -16,16 +16,79 @@
 package com.google.idea.blaze.base.run.targetfinder;
 
 import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.openapi.project.Project;
 import java.util.List;
+import javax.annotation.Nullable;
 import org.jetbrains.annotations.NotNull;
 
 /** Implementation of RuleFinder. */
 class TargetFinderImpl extends TargetFinder {
+  /**
+   * Target map -> its index. A new target map is created on every sync, so each index is built at
+   * most once per sync, and dropped along with its target map.
+   */
+  private final LoadingCache<TargetMap, TargetIndex> indices =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(
+              new CacheLoader<TargetMap, TargetIndex>() {
+                @Override
+                public TargetIndex load(TargetMap targetMap) {
+                  return new TargetIndex(targetMap);
+                }
+              });
+
+  @Nullable
+  private TargetIndex getIndex(Project project) {
+    BlazeProjectData projectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    return projectData != null ? indices.getUnchecked(projectData.targetMap) : null;
+  }
+
+  @Nullable
+  @Override
+  public TargetIdeInfo targetForLabel(Project project, Label label) {
+    TargetIndex index = getIndex(project);
+    if (index == null) {
+      return null;
+    }
+    List<TargetIdeInfo> results = index.targetsForLabel(label);
+    assert results.size() <= 1;
+    return Iterables.getFirst(results, null);
+  }
+
+  @Override
+  public ImmutableList<TargetIdeInfo> targetsOfKinds(Project project, List<Kind> kinds) {
+    TargetIndex index = getIndex(project);
+    return index != null ? index.targetsOfKinds(kinds) : ImmutableList.of();
+  }
+
+  @Override
+  public ImmutableList<TargetIdeInfo> targetsOfLanguageClass(
+      Project project, LanguageClass languageClass) {
+    TargetIndex index = getIndex(project);
+    return index != null ? index.targetsOfLanguageClass(languageClass) : ImmutableList.of();
+  }
+
+  @Override
+  public List<TargetIdeInfo> findTargets(
+      Project project, List<Kind> kinds, Predicate<TargetIdeInfo> predicate) {
+    TargetIndex index = getIndex(project);
+    return index != null ? index.findTargets(kinds, predicate) : ImmutableList.of();
+  }
+
   @Override
   public List<TargetIdeInfo> findTargets(
       @NotNull Project project, @NotNull Predicate<TargetIdeInfo> predicate) {
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.targetfinder;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import java.util.List;
+
+/** Lookup tables over a {@link TargetMap}, so common queries don't need to scan every target. */
+final class TargetIndex {
+  private final ImmutableListMultimap<Label, TargetIdeInfo> labelToTargets;
+  private final ImmutableListMultimap<Kind, TargetIdeInfo> kindToTargets;
+  private final ImmutableListMultimap<LanguageClass, TargetIdeInfo> languageClassToTargets;
+
+  TargetIndex(TargetMap targetMap) {
+    ImmutableListMultimap.Builder<Label, TargetIdeInfo> labelToTargets =
+        ImmutableListMultimap.builder();
+    ImmutableListMultimap.Builder<Kind, TargetIdeInfo> kindToTargets =
+        ImmutableListMultimap.builder();
+    ImmutableListMultimap.Builder<LanguageClass, TargetIdeInfo> languageClassToTargets =
+        ImmutableListMultimap.builder();
+    for (TargetIdeInfo target : targetMap.targets()) {
+      labelToTargets.put(target.key.label, target);
+      if (target.kind != null) {
+        kindToTargets.put(target.kind, target);
+        languageClassToTargets.put(target.kind.getLanguageClass(), target);
+      }
+    }
+    this.labelToTargets = labelToTargets.build();
+    this.kindToTargets = kindToTargets.build();
+    this.languageClassToTargets = languageClassToTargets.build();
+  }
+
+  /** Returns the targets with the given label, one per configuration. */
+  ImmutableList<TargetIdeInfo> targetsForLabel(Label label) {
+    return labelToTargets.get(label);
+  }
+
+  /** Returns the targets of any of the given kinds, grouped by kind in the given order. */
+  ImmutableList<TargetIdeInfo> targetsOfKinds(List<Kind> kinds) {
+    if (kinds.size() == 1) {
+      return kindToTargets.get(kinds.get(0));
+    }
+    return findTargets(kinds, target -> true);
+  }
+
+  /** Returns the targets of any of the given kinds satisfying the predicate. */
+  ImmutableList<TargetIdeInfo> findTargets(List<Kind> kinds, Predicate<TargetIdeInfo> predicate) {
+    ImmutableList.Builder<TargetIdeInfo> result = ImmutableList.builder();
+    for (Kind kind : ImmutableSet.copyOf(kinds)) {
+      for (TargetIdeInfo target : kindToTargets.get(kind)) {
+        if (predicate.apply(target)) {
+          result.add(target);
+        }
+      }
+    }
+    return result.build();
+  }
+
+  ImmutableList<TargetIdeInfo> targetsOfLanguageClass(LanguageClass languageClass) {
+    return languageClassToTargets.get(languageClass);
+  }
+}
@@ -16,10 +16,13 @@
 package com.google.idea.blaze.base.run.testlogs;
 
 import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.model.primitives.Label;
 import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.settings.Blaze.BuildSystem;
 import com.intellij.openapi.extensions.ExtensionPointName;
 import com.intellij.openapi.project.Project;
+import java.io.File;
+import javax.annotation.Nullable;
 
 /** A strategy for locating output test XML files. */
 public interface BlazeTestXmlFinderStrategy {
@@ -42,11 +45,38 @@ public interface BlazeTestXmlFinderStrategy {
     return output.build();
   }
 
+  /**
+   * Attempt to find the output test XML file of a single test target, which may not exist yet.
+   * Called while the 'blaze test' process is running.
+   */
+  @Nullable
+  static File locateTestXmlFile(Project project, Label label) {
+    BuildSystem buildSystem = Blaze.getBuildSystem(project);
+    for (BlazeTestXmlFinderStrategy strategy : EP_NAME.getExtensions()) {
+      if (strategy.handlesBuildSystem(buildSystem)) {
+        File testXml = strategy.findTestXmlFile(project, label);
+        if (testXml != null) {
+          return testXml;
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Attempt to find all output test XML files associated with the given run configuration using a
    * particular strategy. Called after the 'blaze test' process completes.
    */
   ImmutableList<CompletedTestTarget> findTestXmlFiles(Project project);
 
+  /**
+   * Attempt to find where the output test XML file of a single test target is written, using a
+   * particular strategy. Returns null if this strategy can't tell.
+   */
+  @Nullable
+  default File findTestXmlFile(Project project, Label label) {
+    return null;
+  }
+
   boolean handlesBuildSystem(BuildSystem buildSystem);
 }
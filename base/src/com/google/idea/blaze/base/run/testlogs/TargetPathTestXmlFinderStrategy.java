@@ -57,11 +57,21 @@ public class TargetPathTestXmlFinderStrategy implements BlazeTestXmlFinderStrate
             .collect(Collectors.toList()));
   }
 
+  @Nullable
+  @Override
+  public File findTestXmlFile(Project project, Label label) {
+    File testLogsDir = getTestLogsTree(project);
+    return testLogsDir != null ? getTestXml(testLogsDir, label) : null;
+  }
+
   @Nullable
   private static CompletedTestTarget toKindAndTestXml(File testLogsDir, Label label) {
+    return new CompletedTestTarget(getTestXml(testLogsDir, label), label);
+  }
+
+  private static File getTestXml(File testLogsDir, Label label) {
     String labelPath = label.blazePackage() + File.separator + label.targetName();
-    File testXml = new File(testLogsDir, labelPath + File.separator + "test.xml");
-    return new CompletedTestTarget(testXml, label);
+    return new File(testLogsDir, labelPath + File.separator + "test.xml");
   }
 
   @Nullable
@@ -20,89 +20,253 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.Dependency;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
-import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.Label;
-import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
-import com.intellij.openapi.project.Project;
 import java.io.File;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
-/** Filters a {@link TargetMap} according to a given filter. */
+/**
+ * Filters a {@link TargetMap} according to a given filter.
+ *
+ * <p>For every target, precomputes the set of matching targets reachable from it via reverse
+ * dependencies, so source file lookups don't need to walk the graph. The sets are bitsets over the
+ * matching targets, shared between all targets with the same result.
+ *
+ * <p>When several targets match, they're returned nearest first. Ordering them only walks the
+ * parts of the graph which lead to a matching target, stopping once all are found.
+ */
 public class FilteredTargetMap {
 
-  private final Project project;
   private final Multimap<File, TargetKey> rootsMap;
   private final TargetMap targetMap;
+  private final ImmutableMultimap<TargetKey, TargetKey> rdepsMap;
   private final Predicate<TargetIdeInfo> filter;
 
+  /** Matching target -> its bit in the bitsets. */
+  private final Map<TargetKey, Integer> matchingTargetIds;
+  /** Bit -> matching target. Null for targets removed by an incremental update. */
+  private final List<TargetIdeInfo> matchingTargets;
+  /** Target -> the matching targets reachable from it, including itself. */
+  private final Map<TargetKey, BitSet> reachableMatchingTargets;
+
   public FilteredTargetMap(
-      Project project,
       ArtifactLocationDecoder artifactLocationDecoder,
       TargetMap targetMap,
+      ImmutableMultimap<TargetKey, TargetKey> rdepsMap,
       Predicate<TargetIdeInfo> filter) {
-    this.project = project;
+    this(artifactLocationDecoder, targetMap, rdepsMap, filter, null);
+  }
+
+  /**
+   * Builds the map, reusing the results of a previous map over an earlier version of the target
+   * map where possible. Only targets which changed (by identity) and their transitive dependencies
+   * are recomputed, so this is cheap after a partial sync.
+   */
+  FilteredTargetMap(
+      ArtifactLocationDecoder artifactLocationDecoder,
+      TargetMap targetMap,
+      ImmutableMultimap<TargetKey, TargetKey> rdepsMap,
+      Predicate<TargetIdeInfo> filter,
+      @Nullable FilteredTargetMap previous) {
     this.rootsMap = createRootsMap(artifactLocationDecoder, targetMap.targets());
     this.targetMap = targetMap;
+    this.rdepsMap = rdepsMap;
     this.filter = filter;
+    this.matchingTargetIds = Maps.newHashMap();
+    this.matchingTargets = Lists.newArrayList();
+    this.reachableMatchingTargets = Maps.newHashMapWithExpectedSize(targetMap.map().size());
+
+    if (previous != null && previous.filter == filter) {
+      Set<TargetKey> dirtyTargets = findDirtyTargets(previous, targetMap);
+      // Past a point, a full rebuild is cheaper and avoids accumulating unused bits
+      if (dirtyTargets.size() < targetMap.map().size() / 2) {
+        reuse(previous, dirtyTargets);
+      }
+    }
+    for (TargetIdeInfo target : targetMap.targets()) {
+      if (!matchingTargetIds.containsKey(target.key) && filter.test(target)) {
+        matchingTargetIds.put(target.key, matchingTargets.size());
+        matchingTargets.add(target);
+      }
+    }
+    computeReachableMatchingTargets();
   }
 
+  /** Returns the matching targets reachable from the targets containing the source file. */
   public Collection<TargetIdeInfo> targetsForSourceFile(File sourceFile) {
-    BlazeProjectData blazeProjectData =
-        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-    if (blazeProjectData != null) {
-      return targetsForSourceFileImpl(blazeProjectData.reverseDependencies, sourceFile);
+    Collection<TargetKey> roots = rootsMap.get(sourceFile);
+    if (roots.isEmpty()) {
+      return ImmutableList.of();
+    }
+    BitSet reachable;
+    if (roots.size() == 1) {
+      reachable = reachableMatchingTargets.get(roots.iterator().next());
+    } else {
+      reachable = new BitSet();
+      for (TargetKey root : roots) {
+        BitSet rootReachable = reachableMatchingTargets.get(root);
+        if (rootReachable != null) {
+          reachable.or(rootReachable);
+        }
+      }
+    }
+    if (reachable == null || reachable.isEmpty()) {
+      return ImmutableList.of();
     }
-    return ImmutableList.of();
+    if (reachable.cardinality() == 1) {
+      return ImmutableList.of(matchingTargets.get(reachable.nextSetBit(0)));
+    }
+    return nearestFirst(roots, reachable.cardinality());
+  }
+
+  /** Breadth-first search for the matching targets, skipping targets which can't reach any. */
+  private List<TargetIdeInfo> nearestFirst(Collection<TargetKey> roots, int count) {
+    List<TargetIdeInfo> result = Lists.newArrayListWithCapacity(count);
+    Queue<TargetKey> todo = Queues.newArrayDeque(roots);
+    Set<TargetKey> seen = Sets.newHashSet();
+    while (!todo.isEmpty() && result.size() < count) {
+      TargetKey targetKey = todo.remove();
+      if (!seen.add(targetKey)) {
+        continue;
+      }
+      BitSet reachable = reachableMatchingTargets.get(targetKey);
+      if (reachable == null || reachable.isEmpty()) {
+        continue;
+      }
+      Integer id = matchingTargetIds.get(targetKey);
+      if (id != null) {
+        result.add(matchingTargets.get(id));
+      }
+      todo.addAll(rdepsMap.get(targetKey));
+    }
+    return result;
   }
 
   @VisibleForTesting
-  Collection<Label> targetsForSourceFile(
-      ImmutableMultimap<TargetKey, TargetKey> rdepsMap, File sourceFile) {
-    return targetsForSourceFileImpl(rdepsMap, sourceFile)
+  Collection<Label> targetLabelsForSourceFile(File sourceFile) {
+    return targetsForSourceFile(sourceFile)
         .stream()
         .filter(TargetIdeInfo::isPlainTarget)
         .map(target -> target.key.label)
         .collect(Collectors.toList());
   }
 
-  private Collection<TargetIdeInfo> targetsForSourceFileImpl(
-      ImmutableMultimap<TargetKey, TargetKey> rdepsMap, File sourceFile) {
-    List<TargetIdeInfo> result = Lists.newArrayList();
-    Collection<TargetKey> roots = rootsMap.get(sourceFile);
-
-    Queue<TargetKey> todo = Queues.newArrayDeque();
-    for (TargetKey label : roots) {
-      todo.add(label);
+  /**
+   * Returns the targets whose results may differ from the previous map: any added, removed or
+   * modified target, plus everything it depends on (before or after the change).
+   */
+  private static Set<TargetKey> findDirtyTargets(FilteredTargetMap previous, TargetMap targetMap) {
+    Deque<TargetKey> todo = Queues.newArrayDeque();
+    for (TargetIdeInfo target : targetMap.targets()) {
+      if (previous.targetMap.get(target.key) != target) {
+        todo.add(target.key);
+      }
     }
-    Set<TargetKey> seen = Sets.newHashSet();
+    for (TargetKey key : previous.targetMap.map().keySet()) {
+      if (!targetMap.contains(key)) {
+        todo.add(key);
+      }
+    }
+    Set<TargetKey> dirty = Sets.newHashSet();
     while (!todo.isEmpty()) {
-      TargetKey targetKey = todo.remove();
-      if (!seen.add(targetKey)) {
+      TargetKey key = todo.remove();
+      if (!dirty.add(key)) {
         continue;
       }
+      addDependencies(previous.targetMap.get(key), todo);
+      addDependencies(targetMap.get(key), todo);
+    }
+    return dirty;
+  }
+
+  private static void addDependencies(@Nullable TargetIdeInfo target, Deque<TargetKey> todo) {
+    if (target == null) {
+      return;
+    }
+    for (Dependency dependency : target.dependencies) {
+      todo.add(dependency.targetKey);
+    }
+  }
 
-      TargetIdeInfo target = targetMap.get(targetKey);
-      if (filter.test(target)) {
-        result.add(target);
+  /** Copies the bit assignments, and the results for every target which isn't dirty. */
+  private void reuse(FilteredTargetMap previous, Set<TargetKey> dirtyTargets) {
+    for (int id = 0; id < previous.matchingTargets.size(); ++id) {
+      TargetIdeInfo target = previous.matchingTargets.get(id);
+      boolean unchanged = target != null && targetMap.get(target.key) == target;
+      matchingTargets.add(unchanged ? target : null);
+      if (unchanged) {
+        matchingTargetIds.put(target.key, id);
+      }
+    }
+    for (Map.Entry<TargetKey, BitSet> entry : previous.reachableMatchingTargets.entrySet()) {
+      if (!dirtyTargets.contains(entry.getKey())) {
+        reachableMatchingTargets.put(entry.getKey(), entry.getValue());
       }
-      for (TargetKey rdep : rdepsMap.get(targetKey)) {
-        todo.add(rdep);
+    }
+  }
+
+  /**
+   * Computes the reachable matching targets of every target not already computed, in a single
+   * depth-first pass over the reverse dependencies. Cycles are broken arbitrarily.
+   */
+  private void computeReachableMatchingTargets() {
+    Map<BitSet, BitSet> internedBitSets = Maps.newHashMap();
+    for (BitSet bitSet : reachableMatchingTargets.values()) {
+      internedBitSets.putIfAbsent(bitSet, bitSet);
+    }
+    Set<TargetKey> inProgress = Sets.newHashSet();
+    Deque<TargetKey> stack = Queues.newArrayDeque();
+    for (TargetKey root : targetMap.map().keySet()) {
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        TargetKey key = stack.peek();
+        if (reachableMatchingTargets.containsKey(key)) {
+          stack.pop();
+          continue;
+        }
+        if (inProgress.add(key)) {
+          // Visit the reverse dependencies first
+          for (TargetKey rdep : rdepsMap.get(key)) {
+            if (!reachableMatchingTargets.containsKey(rdep) && !inProgress.contains(rdep)) {
+              stack.push(rdep);
+            }
+          }
+          continue;
+        }
+        stack.pop();
+        BitSet reachable = new BitSet();
+        Integer id = matchingTargetIds.get(key);
+        if (id != null) {
+          reachable.set(id);
+        }
+        for (TargetKey rdep : rdepsMap.get(key)) {
+          BitSet rdepReachable = reachableMatchingTargets.get(rdep);
+          if (rdepReachable != null) {
+            reachable.or(rdepReachable);
+          }
+        }
+        BitSet interned = internedBitSets.putIfAbsent(reachable, reachable);
+        reachableMatchingTargets.put(key, interned != null ? interned : reachable);
       }
     }
-    return result;
   }
 
   private static Multimap<File, TargetKey> createRootsMap(
@@ -17,7 +17,9 @@ package com.google.idea.blaze.base.run.testmap;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.Kind;
@@ -27,6 +29,7 @@ import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
 import java.io.File;
 import java.util.Collection;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 
 /**
@@ -36,8 +39,14 @@ import javax.annotation.Nullable;
  */
 public class TestTargetFilterImpl implements TestTargetFinder {
 
+  private static final Predicate<TargetIdeInfo> TEST_TARGET_FILTER =
+      TestTargetFilterImpl::isTestTarget;
+
   private final Project project;
 
+  /** The most recently computed map, reused when recomputing it after a partial sync. */
+  @Nullable private volatile FilteredTargetMap lastTestMap;
+
   public TestTargetFilterImpl(Project project) {
     this.project = project;
   }
@@ -46,21 +55,31 @@ public class TestTargetFilterImpl implements TestTargetFinder {
   public Collection<TargetIdeInfo> testTargetsForSourceFile(File sourceFile) {
     FilteredTargetMap testMap =
         SyncCache.getInstance(project)
-            .get(TestTargetFilterImpl.class, TestTargetFilterImpl::computeTestMap);
+            .get(TestTargetFilterImpl.class, this::computeTestMap);
     if (testMap == null) {
       return ImmutableList.of();
     }
     return testMap.targetsForSourceFile(sourceFile);
   }
 
-  private static FilteredTargetMap computeTestMap(Project project, BlazeProjectData projectData) {
-    return computeTestMap(project, projectData.artifactLocationDecoder, projectData.targetMap);
+  private FilteredTargetMap computeTestMap(Project project, BlazeProjectData projectData) {
+    FilteredTargetMap testMap =
+        computeTestMap(
+            projectData.artifactLocationDecoder,
+            projectData.targetMap,
+            projectData.reverseDependencies,
+            lastTestMap);
+    lastTestMap = testMap;
+    return testMap;
   }
 
   @VisibleForTesting
   static FilteredTargetMap computeTestMap(
-      Project project, ArtifactLocationDecoder decoder, TargetMap targetMap) {
-    return new FilteredTargetMap(project, decoder, targetMap, TestTargetFilterImpl::isTestTarget);
+      ArtifactLocationDecoder decoder,
+      TargetMap targetMap,
+      ImmutableMultimap<TargetKey, TargetKey> rdepsMap,
+      @Nullable FilteredTargetMap previousTestMap) {
+    return new FilteredTargetMap(decoder, targetMap, rdepsMap, TEST_TARGET_FILTER, previousTestMap);
   }
 
   private static boolean isTestTarget(@Nullable TargetIdeInfo target) {
@@ -46,7 +46,10 @@ public class TimingScope implements BlazeScope {
     parentScope = context.getParentScope(this);
 
     if (parentScope != null) {
-      parentScope.children.add(this);
+      // Sibling scopes may begin concurrently on different threads
+      synchronized (parentScope.children) {
+        parentScope.children.add(this);
+      }
     }
   }
 
@@ -72,6 +72,7 @@ import com.google.idea.blaze.base.sync.data.BlazeProjectDataManagerImpl;
 import com.google.idea.blaze.base.sync.libraries.BlazeLibraryCollector;
 import com.google.idea.blaze.base.sync.libraries.LibraryEditor;
 import com.google.idea.blaze.base.sync.projectstructure.ContentEntryEditor;
+import com.google.idea.blaze.base.sync.projectstructure.DirectoryStructure;
 import com.google.idea.blaze.base.sync.projectstructure.ModuleEditorImpl;
 import com.google.idea.blaze.base.sync.projectstructure.ModuleEditorProvider;
 import com.google.idea.blaze.base.sync.projectview.ImportRoots;
@@ -86,6 +87,7 @@ import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolverImpl;
 import com.google.idea.blaze.base.targetmaps.ReverseDependencyMap;
 import com.google.idea.blaze.base.util.SaveUtil;
 import com.google.idea.blaze.base.vcs.BlazeVcsHandler;
+import com.google.idea.blaze.base.vcs.WorkingSetTracker;
 import com.google.idea.sdkcompat.transactions.Transactions;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -98,6 +100,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ContentEntry;
 import com.intellij.openapi.roots.ModifiableRootModel;
 import com.intellij.openapi.roots.ex.ProjectRootManagerEx;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import java.io.File;
@@ -187,6 +190,8 @@ final class BlazeSyncTask implements Progressive {
       IssueOutput.error("Internal error: " + e.getMessage()).submit(context);
     } finally {
       afterSync(project, context, syncMode, syncResult);
+      // Checks any cached blaze info results the sync used, now that its builds are done
+      BlazeInfo.getInstance().refreshCachedResults();
     }
     return syncResult == SyncResult.SUCCESS || syncResult == SyncResult.PARTIAL_SUCCESS;
   }
@@ -208,6 +213,9 @@ final class BlazeSyncTask implements Progressive {
       return SyncResult.FAILURE;
     }
 
+    if (syncMode == SyncMode.FULL) {
+      BlazeInfo.getInstance().clearCache();
+    }
     ListenableFuture<ImmutableMap<String, String>> blazeInfoFuture =
         BlazeInfo.getInstance()
             .runBlazeInfo(
@@ -215,7 +223,9 @@ final class BlazeSyncTask implements Progressive {
 
     ListeningExecutorService executor = BlazeExecutor.getInstance().getExecutor();
     ListenableFuture<WorkingSet> workingSetFuture =
-        vcsHandler.getWorkingSet(project, context, workspaceRoot, executor);
+        WorkingSetTracker.getInstance(project)
+            .getWorkingSet(
+                vcsHandler, context, workspaceRoot, executor, syncMode == SyncMode.FULL);
 
     ImmutableMap<String, String> blazeInfo =
         FutureUtil.waitForFuture(context, blazeInfoFuture)
@@ -259,6 +269,12 @@ final class BlazeSyncTask implements Progressive {
       return SyncResult.FAILURE;
     }
 
+    // Walk the project's directories while blaze runs, ready for creating content entries
+    ListenableFuture<ImmutableMap<WorkspacePath, DirectoryStructure.Directory>>
+        directoryStructureFuture =
+            DirectoryStructure.getInstance(project)
+                .walkRootDirectories(project, workspaceRoot, projectViewSet);
+
     final BlazeProjectData newBlazeProjectData;
 
     WorkingSet workingSet =
@@ -400,7 +416,12 @@ final class BlazeSyncTask implements Progressive {
 
     boolean success =
         updateProject(
-            context, projectViewSet, blazeVersionData, oldBlazeProjectData, newBlazeProjectData);
+            context,
+            projectViewSet,
+            blazeVersionData,
+            directoryStructureFuture,
+            oldBlazeProjectData,
+            newBlazeProjectData);
     if (!success) {
       return SyncResult.FAILURE;
     }
@@ -639,8 +660,23 @@ final class BlazeSyncTask implements Progressive {
       BlazeContext parentContext,
       ProjectViewSet projectViewSet,
       BlazeVersionData blazeVersionData,
+      ListenableFuture<ImmutableMap<WorkspacePath, DirectoryStructure.Directory>>
+          directoryStructureFuture,
       @Nullable BlazeProjectData oldBlazeProjectData,
       BlazeProjectData newBlazeProjectData) {
+    ImmutableMap<WorkspacePath, DirectoryStructure.Directory> directoryStructure =
+        FutureUtil.waitForFuture(parentContext, directoryStructureFuture)
+            .timed("DirectoryStructure")
+            .withProgressMessage("Walking project directories...")
+            .onError("Could not walk project directories")
+            .run()
+            .result();
+    if (directoryStructure == null) {
+      return false;
+    }
+    List<BlazeLibrary> libraries = BlazeLibraryCollector.getLibraries(newBlazeProjectData);
+    LibraryEditor.LibraryDiff libraryDiff =
+        diffProjectLibraries(parentContext, newBlazeProjectData, libraries);
     return Scope.push(
         parentContext,
         context -> {
@@ -666,6 +702,9 @@ final class BlazeSyncTask implements Progressive {
                                                   context,
                                                   importSettings,
                                                   projectViewSet,
+                                                  directoryStructure,
+                                                  libraries,
+                                                  libraryDiff,
                                                   newBlazeProjectData,
                                                   oldBlazeProjectData);
                                             })));
@@ -681,6 +720,26 @@ final class BlazeSyncTask implements Progressive {
         });
   }
 
+  /** Works out the library table changes up front, so the write action only applies them. */
+  private LibraryEditor.LibraryDiff diffProjectLibraries(
+      BlazeContext parentContext,
+      BlazeProjectData newBlazeProjectData,
+      List<BlazeLibrary> libraries) {
+    return Scope.push(
+        parentContext,
+        context -> {
+          context.push(new TimingScope("DiffLibraries"));
+          context.output(
+              PrintOutput.log(String.format("Workspace has %d libraries", libraries.size())));
+          return ApplicationManager.getApplication()
+              .runReadAction(
+                  (Computable<LibraryEditor.LibraryDiff>)
+                      () ->
+                          LibraryEditor.diffProjectLibraries(
+                              project, newBlazeProjectData, libraries));
+        });
+  }
+
   private void updateProjectSdk(
       BlazeContext context,
       ProjectViewSet projectViewSet,
@@ -696,6 +755,9 @@ final class BlazeSyncTask implements Progressive {
       BlazeContext context,
       BlazeImportSettings importSettings,
       ProjectViewSet projectViewSet,
+      ImmutableMap<WorkspacePath, DirectoryStructure.Directory> directoryStructure,
+      List<BlazeLibrary> libraries,
+      LibraryEditor.LibraryDiff libraryDiff,
       BlazeProjectData newBlazeProjectData,
       @Nullable BlazeProjectData oldBlazeProjectData) {
 
@@ -721,10 +783,14 @@ final class BlazeSyncTask implements Progressive {
     ModifiableRootModel workspaceModifiableModel = moduleEditor.editModule(workspaceModule);
 
     ContentEntryEditor.createContentEntries(
-        project, workspaceRoot, projectViewSet, newBlazeProjectData, workspaceModifiableModel);
-
-    List<BlazeLibrary> libraries = BlazeLibraryCollector.getLibraries(newBlazeProjectData);
-    LibraryEditor.updateProjectLibraries(project, context, newBlazeProjectData, libraries);
+        project,
+        workspaceRoot,
+        projectViewSet,
+        newBlazeProjectData,
+        directoryStructure,
+        workspaceModifiableModel);
+
+    LibraryEditor.updateProjectLibraries(project, context, libraryDiff);
     LibraryEditor.configureDependencies(workspaceModifiableModel, libraries);
 
     for (BlazeSyncPlugin blazeSyncPlugin : BlazeSyncPlugin.EP_NAME.getExtensions()) {
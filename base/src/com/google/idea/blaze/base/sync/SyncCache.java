@@ -16,7 +16,15 @@
 package com.google.idea.blaze.base.sync;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
@@ -25,18 +33,56 @@ import com.google.idea.blaze.base.sync.BlazeSyncParams.SyncMode;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.project.Project;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
-/** Computes a cache on the project data. */
+/**
+ * Computes a cache on the project data.
+ *
+ * <p>Each key is computed at most once per sync, with concurrent readers of the same key sharing
+ * the computation. Readers of other keys are never blocked. Every key requested since the project
+ * was opened is recomputed in the background as soon as a sync completes.
+ */
 public class SyncCache {
   /** Computes a value based on the sync project data. */
   public interface SyncCacheComputable<T> {
     T compute(Project project, BlazeProjectData projectData);
   }
 
+  /** Usage statistics for a single key, since the project was opened. */
+  public static class Stats {
+    public final long hits;
+    public final long misses;
+    public final long computeTimeMillis;
+
+    Stats(long hits, long misses, long computeTimeMillis) {
+      this.hits = hits;
+      this.misses = misses;
+      this.computeTimeMillis = computeTimeMillis;
+    }
+  }
+
+  private static class KeyStats {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong computeTimeNanos = new AtomicLong();
+  }
+
   private final Project project;
-  private final Map<Object, Object> cache = Maps.newHashMap();
+  private final ConcurrentMap<Object, ListenableFuture<Object>> cache = Maps.newConcurrentMap();
+  /** Key -> how to compute it, for every key requested so far. Used to prewarm after sync. */
+  private final ConcurrentMap<Object, SyncCacheComputable<?>> computables =
+      Maps.newConcurrentMap();
+
+  private final ConcurrentMap<Object, KeyStats> stats = Maps.newConcurrentMap();
+
+  /** The keys each thread is computing, so a computation reading its own key doesn't wait on it. */
+  private final ThreadLocal<Set<Object>> computingKeys = ThreadLocal.withInitial(HashSet::new);
 
   public SyncCache(Project project) {
     this.project = project;
@@ -46,27 +92,95 @@ public class SyncCache {
     return ServiceManager.getService(project, SyncCache.class);
   }
 
-  /** Computes a value derived from the sync project data and caches it until the next sync. */
+  /**
+   * Computes a value derived from the sync project data and caches it until the next sync. If the
+   * value is already being computed, waits for that computation instead of starting another.
+   *
+   * <p>If called for a key from within that key's own computation, the value is computed again
+   * directly, without caching, as waiting for the outer computation would never return.
+   */
   @Nullable
   @SuppressWarnings("unchecked")
-  public synchronized <T> T get(Object key, SyncCacheComputable<T> computable) {
-    T value = (T) cache.get(key);
-    if (value == null) {
+  public <T> T get(Object key, SyncCacheComputable<T> computable) {
+    if (computingKeys.get().contains(key)) {
+      BlazeProjectData blazeProjectData =
+          BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+      return blazeProjectData != null ? computable.compute(project, blazeProjectData) : null;
+    }
+    computables.putIfAbsent(key, computable);
+    KeyStats keyStats = stats.computeIfAbsent(key, k -> new KeyStats());
+
+    SettableFuture<Object> newFuture = SettableFuture.create();
+    ListenableFuture<Object> future = cache.putIfAbsent(key, newFuture);
+    if (future == null) {
+      keyStats.misses.incrementAndGet();
+      future = newFuture;
+      compute(key, computable, newFuture, keyStats);
+    } else {
+      keyStats.hits.incrementAndGet();
+    }
+    try {
+      return (T) Futures.getUnchecked(future);
+    } catch (UncheckedExecutionException | ExecutionError e) {
+      // Rethrow the computable's own exception or error, rather than Guava's wrapper
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void compute(
+      Object key,
+      SyncCacheComputable<?> computable,
+      SettableFuture<Object> future,
+      KeyStats keyStats) {
+    long startTime = System.nanoTime();
+    Set<Object> keys = computingKeys.get();
+    keys.add(key);
+    try {
       BlazeProjectData blazeProjectData =
           BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-      if (blazeProjectData != null) {
-        value = computable.compute(project, blazeProjectData);
-        cache.put(key, value);
+      Object value =
+          blazeProjectData != null ? computable.compute(project, blazeProjectData) : null;
+      if (value == null) {
+        // Nothing to cache, so let the next reader try again
+        cache.remove(key, future);
       }
+      future.set(value);
+    } catch (RuntimeException | Error e) {
+      cache.remove(key, future);
+      future.setException(e);
+    } finally {
+      keys.remove(key);
+      keyStats.computeTimeNanos.addAndGet(System.nanoTime() - startTime);
     }
-    return value;
+  }
+
+  /** Returns usage statistics for every key requested so far. */
+  public ImmutableMap<Object, Stats> getStats() {
+    ImmutableMap.Builder<Object, Stats> result = ImmutableMap.builder();
+    for (Map.Entry<Object, KeyStats> entry : stats.entrySet()) {
+      KeyStats keyStats = entry.getValue();
+      result.put(
+          entry.getKey(),
+          new Stats(
+              keyStats.hits.get(),
+              keyStats.misses.get(),
+              TimeUnit.NANOSECONDS.toMillis(keyStats.computeTimeNanos.get())));
+    }
+    return result.build();
   }
 
   @VisibleForTesting
-  public synchronized void clear() {
+  public void clear() {
     cache.clear();
   }
 
+  /** Recomputes every key requested so far in the background. */
+  private void prewarm() {
+    for (Map.Entry<Object, SyncCacheComputable<?>> entry : computables.entrySet()) {
+      BlazeExecutor.getInstance().submit(() -> get(entry.getKey(), entry.getValue()));
+    }
+  }
+
   static class ClearSyncCache extends SyncListener.Adapter {
     @Override
     public void onSyncComplete(
@@ -79,6 +193,7 @@ public class SyncCache {
         SyncResult syncResult) {
       SyncCache syncCache = getInstance(project);
       syncCache.clear();
+      syncCache.prewarm();
     }
   }
 }
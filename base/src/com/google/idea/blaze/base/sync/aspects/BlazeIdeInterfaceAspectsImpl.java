@@ -26,6 +26,7 @@ import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.async.process.LineProcessingOutputStream;
+import com.google.idea.blaze.base.async.process.LineProcessingOutputStream.OverflowPolicy;
 import com.google.idea.blaze.base.command.BlazeCommand;
 import com.google.idea.blaze.base.command.BlazeCommandName;
 import com.google.idea.blaze.base.command.BlazeFlags;
@@ -213,7 +214,9 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   .addBlazeCommand(blazeCommandBuilder.build())
                   .context(context)
                   .stderr(
-                      LineProcessingOutputStream.of(
+                      // The artifact list is needed in full, so the queue blocks rather than drops
+                      LineProcessingOutputStream.async(
+                          OverflowPolicy.BLOCK,
                           new ExperimentalShowArtifactsLineProcessor(result, fileFilter),
                           new IssueOutputLineProcessor(project, context, workspaceRoot)))
                   .build()
@@ -428,7 +431,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
             .addBlazeCommand(blazeCommand)
             .context(context)
             .stderr(
-                LineProcessingOutputStream.of(
+                LineProcessingOutputStream.async(
+                    OverflowPolicy.BLOCK,
                     new IssueOutputLineProcessor(project, context, workspaceRoot)))
             .build()
             .run();
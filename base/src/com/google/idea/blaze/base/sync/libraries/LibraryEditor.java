@@ -15,8 +15,12 @@
  */
 package com.google.idea.blaze.base.sync.libraries;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.LibraryKey;
@@ -31,70 +35,157 @@ import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
 import com.intellij.openapi.roots.libraries.Library;
 import com.intellij.openapi.roots.libraries.LibraryTable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /** Edits IntelliJ libraries */
 public class LibraryEditor {
   private static final Logger logger = Logger.getInstance(LibraryEditor.class);
 
-  public static void updateProjectLibraries(
-      Project project,
-      BlazeContext context,
-      BlazeProjectData blazeProjectData,
-      Collection<BlazeLibrary> libraries) {
-    Set<LibraryKey> intelliJLibraryState = Sets.newHashSet();
-    for (Library library : ProjectLibraryTable.getInstance(project).getLibraries()) {
+  /** The root types blaze libraries set. Any other roots are left alone. */
+  private static final ImmutableList<OrderRootType> ROOT_TYPES =
+      ImmutableList.of(OrderRootType.CLASSES, OrderRootType.SOURCES);
+
+  /** The changes needed to bring the project library table up to date. */
+  public static final class LibraryDiff {
+    /** Library name -> root urls, for libraries to create. */
+    final ImmutableMap<String, ImmutableListMultimap<OrderRootType, String>> addedLibraries;
+    /** Library name -> root urls, for existing libraries whose roots changed. */
+    final ImmutableMap<String, ImmutableListMultimap<OrderRootType, String>> changedLibraries;
+
+    final ImmutableList<String> removedLibraries;
+    final int unchangedLibraries;
+
+    LibraryDiff(
+        ImmutableMap<String, ImmutableListMultimap<OrderRootType, String>> addedLibraries,
+        ImmutableMap<String, ImmutableListMultimap<OrderRootType, String>> changedLibraries,
+        ImmutableList<String> removedLibraries,
+        int unchangedLibraries) {
+      this.addedLibraries = addedLibraries;
+      this.changedLibraries = changedLibraries;
+      this.removedLibraries = removedLibraries;
+      this.unchangedLibraries = unchangedLibraries;
+    }
+
+    boolean isEmpty() {
+      return addedLibraries.isEmpty() && changedLibraries.isEmpty() && removedLibraries.isEmpty();
+    }
+  }
+
+  /**
+   * Works out which project libraries need to be added, changed or removed. Only reads the library
+   * table, so it can run in a background read action ahead of the project structure update.
+   */
+  public static LibraryDiff diffProjectLibraries(
+      Project project, BlazeProjectData blazeProjectData, Collection<BlazeLibrary> libraries) {
+    Map<String, ImmutableListMultimap<OrderRootType, String>> newLibraries =
+        Maps.newLinkedHashMap();
+    for (BlazeLibrary blazeLibrary : libraries) {
+      newLibraries.put(
+          blazeLibrary.key.getIntelliJLibraryName(),
+          blazeLibrary.getRootUrls(project, blazeProjectData.artifactLocationDecoder));
+    }
+
+    // Garbage collect unused libraries
+    List<LibrarySource> librarySources = Lists.newArrayList();
+    for (BlazeSyncPlugin syncPlugin : BlazeSyncPlugin.EP_NAME.getExtensions()) {
+      LibrarySource librarySource = syncPlugin.getLibrarySource(blazeProjectData);
+      if (librarySource != null) {
+        librarySources.add(librarySource);
+      }
+    }
+    Predicate<Library> gcRetentionFilter =
+        librarySources
+            .stream()
+            .map(LibrarySource::getGcRetentionFilter)
+            .filter(Objects::nonNull)
+            .reduce(Predicate::or)
+            .orElse(o -> false);
+
+    return diffLibraries(
+        ProjectLibraryTable.getInstance(project).getLibraries(), newLibraries, gcRetentionFilter);
+  }
+
+  /**
+   * Diffs the existing libraries against the new ones, given as library name -> root urls.
+   * Existing libraries which aren't among the new ones are removed, unless the filter retains them.
+   */
+  @VisibleForTesting
+  static LibraryDiff diffLibraries(
+      Library[] existingLibraries,
+      Map<String, ImmutableListMultimap<OrderRootType, String>> newLibraries,
+      Predicate<Library> gcRetentionFilter) {
+    Map<String, Library> existingLibrariesByName = Maps.newHashMap();
+    for (Library library : existingLibraries) {
       String name = library.getName();
       if (name != null) {
-        intelliJLibraryState.add(LibraryKey.fromIntelliJLibraryName(name));
+        existingLibrariesByName.put(name, library);
       }
     }
-    context.output(PrintOutput.log(String.format("Workspace has %d libraries", libraries.size())));
 
-    LibraryTable libraryTable = ProjectLibraryTable.getInstance(project);
-    LibraryTable.ModifiableModel libraryTableModel = libraryTable.getModifiableModel();
-    try {
-      for (BlazeLibrary library : libraries) {
-        updateLibrary(
-            project,
-            blazeProjectData.artifactLocationDecoder,
-            libraryTable,
-            libraryTableModel,
-            library);
+    ImmutableMap.Builder<String, ImmutableListMultimap<OrderRootType, String>> added =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableListMultimap<OrderRootType, String>> changed =
+        ImmutableMap.builder();
+    int unchanged = 0;
+    for (Map.Entry<String, ImmutableListMultimap<OrderRootType, String>> entry :
+        newLibraries.entrySet()) {
+      String name = entry.getKey();
+      ImmutableListMultimap<OrderRootType, String> rootUrls = entry.getValue();
+      Library library = existingLibrariesByName.get(name);
+      if (library == null) {
+        added.put(name, rootUrls);
+      } else if (!hasRootUrls(library, rootUrls)) {
+        changed.put(name, rootUrls);
+      } else {
+        unchanged++;
       }
+    }
 
-      // Garbage collect unused libraries
-      List<LibrarySource> librarySources = Lists.newArrayList();
-      for (BlazeSyncPlugin syncPlugin : BlazeSyncPlugin.EP_NAME.getExtensions()) {
-        LibrarySource librarySource = syncPlugin.getLibrarySource(blazeProjectData);
-        if (librarySource != null) {
-          librarySources.add(librarySource);
-        }
+    ImmutableList.Builder<String> removed = ImmutableList.builder();
+    for (Map.Entry<String, Library> entry : existingLibrariesByName.entrySet()) {
+      if (!newLibraries.containsKey(entry.getKey())
+          && !gcRetentionFilter.test(entry.getValue())) {
+        removed.add(entry.getKey());
       }
-      Predicate<Library> gcRetentionFilter =
-          librarySources
-              .stream()
-              .map(LibrarySource::getGcRetentionFilter)
-              .filter(Objects::nonNull)
-              .reduce(Predicate::or)
-              .orElse(o -> false);
-
-      Set<LibraryKey> newLibraryKeys =
-          libraries.stream().map((blazeLibrary) -> blazeLibrary.key).collect(Collectors.toSet());
-      for (LibraryKey libraryKey : intelliJLibraryState) {
-        String libraryIntellijName = libraryKey.getIntelliJLibraryName();
-        if (!newLibraryKeys.contains(libraryKey)) {
-          Library library = libraryTable.getLibraryByName(libraryIntellijName);
-          if (!gcRetentionFilter.test(library)) {
-            if (library != null) {
-              libraryTableModel.removeLibrary(library);
-            }
-          }
+    }
+    return new LibraryDiff(added.build(), changed.build(), removed.build(), unchanged);
+  }
+
+  /**
+   * Applies the library diff in a single library table commit. Must be called in a write action.
+   * Libraries with unchanged roots aren't touched, so their roots aren't reindexed.
+   */
+  public static void updateProjectLibraries(
+      Project project, BlazeContext context, LibraryDiff libraryDiff) {
+    context.output(
+        PrintOutput.log(
+            String.format(
+                "Libraries: %d added, %d changed, %d removed, %d unchanged",
+                libraryDiff.addedLibraries.size(),
+                libraryDiff.changedLibraries.size(),
+                libraryDiff.removedLibraries.size(),
+                libraryDiff.unchangedLibraries)));
+    if (libraryDiff.isEmpty()) {
+      return;
+    }
+
+    LibraryTable libraryTable = ProjectLibraryTable.getInstance(project);
+    LibraryTable.ModifiableModel libraryTableModel = libraryTable.getModifiableModel();
+    try {
+      // The table may have changed since the diff, so existence is checked again here
+      libraryDiff.addedLibraries.forEach(
+          (name, rootUrls) -> setRootUrls(libraryTable, libraryTableModel, name, rootUrls));
+      libraryDiff.changedLibraries.forEach(
+          (name, rootUrls) -> setRootUrls(libraryTable, libraryTableModel, name, rootUrls));
+      for (String name : libraryDiff.removedLibraries) {
+        Library library = libraryTable.getLibraryByName(name);
+        if (library != null) {
+          libraryTableModel.removeLibrary(library);
         }
       }
     } finally {
@@ -108,8 +199,18 @@ public class LibraryEditor {
       LibraryTable libraryTable,
       LibraryTable.ModifiableModel libraryTableModel,
       BlazeLibrary blazeLibrary) {
-    String libraryName = blazeLibrary.key.getIntelliJLibraryName();
+    setRootUrls(
+        libraryTable,
+        libraryTableModel,
+        blazeLibrary.key.getIntelliJLibraryName(),
+        blazeLibrary.getRootUrls(project, artifactLocationDecoder));
+  }
 
+  private static void setRootUrls(
+      LibraryTable libraryTable,
+      LibraryTable.ModifiableModel libraryTableModel,
+      String libraryName,
+      ImmutableListMultimap<OrderRootType, String> rootUrls) {
     Library library = libraryTable.getLibraryByName(libraryName);
     boolean libraryExists = library != null;
     if (!libraryExists) {
@@ -117,20 +218,29 @@ public class LibraryEditor {
     }
     Library.ModifiableModel libraryModel = library.getModifiableModel();
     if (libraryExists) {
-      for (String url : libraryModel.getUrls(OrderRootType.CLASSES)) {
-        libraryModel.removeRoot(url, OrderRootType.CLASSES);
-      }
-      for (String url : libraryModel.getUrls(OrderRootType.SOURCES)) {
-        libraryModel.removeRoot(url, OrderRootType.SOURCES);
+      for (OrderRootType type : ROOT_TYPES) {
+        for (String url : libraryModel.getUrls(type)) {
+          libraryModel.removeRoot(url, type);
+        }
       }
     }
     try {
-      blazeLibrary.modifyLibraryModel(project, artifactLocationDecoder, libraryModel);
+      rootUrls.forEach((type, url) -> libraryModel.addRoot(url, type));
     } finally {
       libraryModel.commit();
     }
   }
 
+  private static boolean hasRootUrls(
+      Library library, ImmutableListMultimap<OrderRootType, String> rootUrls) {
+    for (OrderRootType type : ROOT_TYPES) {
+      if (!Arrays.asList(library.getUrls(type)).equals(rootUrls.get(type))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public static void configureDependencies(
       ModifiableRootModel modifiableRootModel, Collection<BlazeLibrary> libraries) {
     for (BlazeLibrary library : libraries) {
@@ -19,7 +19,6 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.google.idea.blaze.base.io.FileAttributeProvider;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.WorkspacePath;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
@@ -27,7 +26,6 @@ import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.sync.SourceFolderProvider;
 import com.google.idea.blaze.base.sync.projectview.ImportRoots;
-import com.google.idea.blaze.base.sync.projectview.SourceTestConfig;
 import com.google.idea.blaze.base.util.UrlUtil;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ContentEntry;
@@ -45,6 +43,7 @@ public class ContentEntryEditor {
       WorkspaceRoot workspaceRoot,
       ProjectViewSet projectViewSet,
       BlazeProjectData blazeProjectData,
+      ImmutableMap<WorkspacePath, DirectoryStructure.Directory> rootDirectoryStructures,
       ModifiableRootModel modifiableRootModel) {
     ImportRoots importRoots =
         ImportRoots.builder(workspaceRoot, Blaze.getBuildSystem(project))
@@ -55,7 +54,6 @@ public class ContentEntryEditor {
     Multimap<WorkspacePath, WorkspacePath> excludesByRootDirectory =
         sortExcludesByRootDirectory(rootDirectories, excludeDirectories);
 
-    SourceTestConfig testConfig = new SourceTestConfig(projectViewSet);
     SourceFolderProvider provider = SourceFolderProvider.getSourceFolderProvider(blazeProjectData);
 
     List<ContentEntry> contentEntries = Lists.newArrayList();
@@ -73,64 +71,36 @@ public class ContentEntryEditor {
       ImmutableMap<File, SourceFolder> sourceFolders =
           provider.initializeSourceFolders(contentEntry);
       SourceFolder rootSource = sourceFolders.get(root);
-      walkFileSystem(
-          workspaceRoot,
-          testConfig,
-          excludesByRootDirectory.get(rootDirectory),
-          contentEntry,
-          provider,
-          sourceFolders,
-          rootSource,
-          root);
+      DirectoryStructure.Directory rootDirectoryStructure =
+          rootDirectoryStructures.get(rootDirectory);
+      if (rootDirectoryStructure == null) {
+        continue;
+      }
+      walkDirectoryStructure(
+          contentEntry, provider, sourceFolders, rootSource, rootDirectoryStructure);
     }
   }
 
-  private static void walkFileSystem(
-      WorkspaceRoot workspaceRoot,
-      SourceTestConfig testConfig,
-      Collection<WorkspacePath> excludedDirectories,
+  /** Assigns test and non-test source folders, using the directories walked before the sync. */
+  private static void walkDirectoryStructure(
       ContentEntry contentEntry,
       SourceFolderProvider provider,
       ImmutableMap<File, SourceFolder> sourceFolders,
       SourceFolder parent,
-      File file) {
-    if (!FileAttributeProvider.getInstance().isDirectory(file)) {
-      return;
-    }
-    WorkspacePath workspacePath;
-    try {
-      workspacePath = workspaceRoot.workspacePathFor(file);
-    } catch (IllegalArgumentException e) {
-      // stop at directories with unhandled characters.
-      return;
-    }
-    if (excludedDirectories.contains(workspacePath)) {
-      return;
-    }
-    boolean isTest = testConfig.isTestSource(workspacePath.relativePath());
-    SourceFolder current = sourceFolders.get(new File(file.getPath()));
+      DirectoryStructure.Directory directory) {
+    boolean isTest = directory.isTest;
+    SourceFolder current = sourceFolders.get(directory.file);
     SourceFolder currentOrParent = current != null ? current : parent;
     if (isTest != currentOrParent.isTestSource()) {
       currentOrParent =
-          provider.setSourceFolderForLocation(contentEntry, currentOrParent, file, isTest);
+          provider.setSourceFolderForLocation(
+              contentEntry, currentOrParent, directory.file, isTest);
       if (current != null) {
         contentEntry.removeSourceFolder(current);
       }
     }
-    File[] children = FileAttributeProvider.getInstance().listFiles(file);
-    if (children == null) {
-      return;
-    }
-    for (File child : children) {
-      walkFileSystem(
-          workspaceRoot,
-          testConfig,
-          excludedDirectories,
-          contentEntry,
-          provider,
-          sourceFolders,
-          currentOrParent,
-          child);
+    for (DirectoryStructure.Directory child : directory.children) {
+      walkDirectoryStructure(contentEntry, provider, sourceFolders, currentOrParent, child);
     }
   }
 
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectstructure;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.io.FileAttributeProvider;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.projectview.ProjectViewSet;
+import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.sync.projectview.ImportRoots;
+import com.google.idea.blaze.base.sync.projectview.SourceTestConfig;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Walks the directories under the project's import roots, so that creating content entries inside
+ * the write action doesn't need to touch the file system.
+ *
+ * <p>Directories are listed in parallel, and excluded directories are never listed. Listings from
+ * the previous walk are reused for any directory whose modified time hasn't changed. The number of
+ * listings kept between walks is bounded.
+ */
+public class DirectoryStructure {
+  /** Directories modified this recently may change again without their timestamp changing. */
+  private static final long MIN_REUSABLE_LISTING_AGE_MILLIS = 2000;
+
+  /** Enough to reuse every listing of all but the largest projects. */
+  private static final int MAX_REUSABLE_LISTINGS = 100_000;
+
+  /** A directory under an import root, and its non-excluded subdirectories. */
+  public static final class Directory {
+    final File file;
+    final boolean isTest;
+    final ImmutableList<Directory> children;
+
+    Directory(File file, boolean isTest, ImmutableList<Directory> children) {
+      this.file = file;
+      this.isTest = isTest;
+      this.children = children;
+    }
+  }
+
+  private static final class Listing {
+    final long modifiedTime;
+    final ImmutableList<String> childDirectories;
+
+    Listing(long modifiedTime, ImmutableList<String> childDirectories) {
+      this.modifiedTime = modifiedTime;
+      this.childDirectories = childDirectories;
+    }
+  }
+
+  private final int maxReusableListings;
+  private volatile Map<File, Listing> previousListings = ImmutableMap.of();
+
+  public DirectoryStructure() {
+    this(MAX_REUSABLE_LISTINGS);
+  }
+
+  @VisibleForTesting
+  DirectoryStructure(int maxReusableListings) {
+    this.maxReusableListings = maxReusableListings;
+  }
+
+  public static DirectoryStructure getInstance(Project project) {
+    return ServiceManager.getService(project, DirectoryStructure.class);
+  }
+
+  /**
+   * Starts walking the import roots in the background. The result maps each root directory to its
+   * walked directory tree. Roots which aren't directories are omitted.
+   */
+  public ListenableFuture<ImmutableMap<WorkspacePath, Directory>> walkRootDirectories(
+      Project project, WorkspaceRoot workspaceRoot, ProjectViewSet projectViewSet) {
+    ImportRoots importRoots =
+        ImportRoots.builder(workspaceRoot, Blaze.getBuildSystem(project))
+            .add(projectViewSet)
+            .build();
+    SourceTestConfig testConfig = new SourceTestConfig(projectViewSet);
+    return BlazeExecutor.getInstance()
+        .submit(
+            () ->
+                walkRootDirectories(
+                    workspaceRoot,
+                    importRoots.rootDirectories(),
+                    importRoots.excludeDirectories(),
+                    testConfig::isTestSource));
+  }
+
+  @VisibleForTesting
+  ImmutableMap<WorkspacePath, Directory> walkRootDirectories(
+      WorkspaceRoot workspaceRoot,
+      Collection<WorkspacePath> rootDirectories,
+      Collection<WorkspacePath> excludeDirectories,
+      Predicate<String> isTestSource) {
+    ImmutableSet.Builder<String> excludedDirectoriesBuilder = ImmutableSet.builder();
+    for (WorkspacePath excludedDirectory : excludeDirectories) {
+      excludedDirectoriesBuilder.add(excludedDirectory.relativePath());
+    }
+    ImmutableSet<String> excludedDirectories = excludedDirectoriesBuilder.build();
+
+    Walk walk =
+        new Walk(
+            excludedDirectories,
+            isTestSource,
+            previousListings,
+            maxReusableListings,
+            System.currentTimeMillis() - MIN_REUSABLE_LISTING_AGE_MILLIS);
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      ImmutableMap.Builder<WorkspacePath, Directory> result = ImmutableMap.builder();
+      for (WorkspacePath rootDirectory : rootDirectories) {
+        if (excludedDirectories.contains(rootDirectory.relativePath())) {
+          continue;
+        }
+        File root = workspaceRoot.fileForPath(rootDirectory);
+        if (!FileAttributeProvider.getInstance().isDirectory(root)) {
+          continue;
+        }
+        result.put(
+            rootDirectory, pool.invoke(new WalkTask(walk, root, rootDirectory.relativePath())));
+      }
+      previousListings = walk.listings;
+      return result.build();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** State shared by all tasks of a single walk. */
+  private static final class Walk {
+    final ImmutableSet<String> excludedDirectories;
+    final Predicate<String> isTestSource;
+    final Map<File, Listing> previousListings;
+    final Map<File, Listing> listings = new ConcurrentHashMap<>();
+    /** The most listings kept for the next walk. */
+    final int maxListings;
+    /** Listings modified after this time aren't reused by the next walk. */
+    final long reusableBefore;
+
+    Walk(
+        ImmutableSet<String> excludedDirectories,
+        Predicate<String> isTestSource,
+        Map<File, Listing> previousListings,
+        int maxListings,
+        long reusableBefore) {
+      this.excludedDirectories = excludedDirectories;
+      this.isTestSource = isTestSource;
+      this.previousListings = previousListings;
+      this.maxListings = maxListings;
+      this.reusableBefore = reusableBefore;
+    }
+
+    ImmutableList<String> listChildDirectories(File directory) {
+      FileAttributeProvider fileAttributeProvider = FileAttributeProvider.getInstance();
+      long modifiedTime = fileAttributeProvider.getFileModifiedTime(directory);
+      Listing previous = previousListings.get(directory);
+      if (previous != null && modifiedTime != 0 && previous.modifiedTime == modifiedTime) {
+        keepListing(directory, previous);
+        return previous.childDirectories;
+      }
+      File[] children = fileAttributeProvider.listFiles(directory);
+      if (children == null) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<String> childDirectories = ImmutableList.builder();
+      for (File child : children) {
+        if (fileAttributeProvider.isDirectory(child)) {
+          childDirectories.add(child.getName());
+        }
+      }
+      Listing listing = new Listing(modifiedTime, childDirectories.build());
+      if (modifiedTime != 0 && modifiedTime < reusableBefore) {
+        keepListing(directory, listing);
+      }
+      return listing.childDirectories;
+    }
+
+    private void keepListing(File directory, Listing listing) {
+      if (listings.size() < maxListings) {
+        listings.put(directory, listing);
+      }
+    }
+  }
+
+  private static final class WalkTask extends RecursiveTask<Directory> {
+    private final Walk walk;
+    private final File directory;
+    private final String relativePath;
+
+    WalkTask(Walk walk, File directory, String relativePath) {
+      this.walk = walk;
+      this.directory = directory;
+      this.relativePath = relativePath;
+    }
+
+    @Override
+    protected Directory compute() {
+      List<WalkTask> tasks = Lists.newArrayList();
+      for (String name : walk.listChildDirectories(directory)) {
+        String childPath = relativePath.isEmpty() ? name : relativePath + '/' + name;
+        // stop at directories with unhandled characters, and at excluded directories
+        if (!WorkspacePath.validate(childPath) || walk.excludedDirectories.contains(childPath)) {
+          continue;
+        }
+        tasks.add(new WalkTask(walk, new File(directory, name), childPath));
+      }
+      invokeAll(tasks);
+      ImmutableList.Builder<Directory> children = ImmutableList.builder();
+      for (WalkTask task : tasks) {
+        children.add(task.join());
+      }
+      return new Directory(directory, walk.isTestSource.test(relativePath), children.build());
+    }
+  }
+}
@@ -34,4 +34,7 @@ public interface SourceToTargetMap {
 
   /** Returns the rules that contain a given source file */
   ImmutableCollection<TargetKey> getRulesForSourceFile(File file);
+
+  /** Returns the rules that contain any source file under the given directory */
+  ImmutableCollection<TargetKey> getRulesForSourcesUnderDirectory(File directory);
 }
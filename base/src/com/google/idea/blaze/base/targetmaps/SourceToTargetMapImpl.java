@@ -17,18 +17,27 @@ package com.google.idea.blaze.base.targetmaps;
 
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
-import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.Label;
-import com.google.idea.blaze.base.sync.SyncCache;
+import com.google.idea.blaze.base.projectview.ProjectViewSet;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.blaze.base.sync.BlazeSyncParams.SyncMode;
+import com.google.idea.blaze.base.sync.SyncListener;
+import com.google.idea.blaze.base.sync.SyncResult;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
-import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
 import java.io.File;
+import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -36,6 +45,11 @@ import javax.annotation.Nullable;
 public class SourceToTargetMapImpl implements SourceToTargetMap {
   private final Project project;
 
+  /** The project data the trie was built from. Replaced on every sync. */
+  @Nullable private BlazeProjectData indexedProjectData;
+
+  @Nullable private ListenableFuture<SourceToTargetTrie> trie;
+
   public SourceToTargetMapImpl(Project project) {
     this.project = project;
   }
@@ -61,30 +75,100 @@ public class SourceToTargetMapImpl implements SourceToTargetMap {
 
   @Override
   public ImmutableCollection<TargetKey> getRulesForSourceFile(File sourceFile) {
-    ImmutableMultimap<File, TargetKey> sourceToTargetMap = getSourceToTargetMap();
-    if (sourceToTargetMap == null) {
+    BlazeProjectData blazeProjectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    if (blazeProjectData == null) {
       return ImmutableList.of();
     }
-    return sourceToTargetMap.get(sourceFile);
+    SourceToTargetTrie trie = getTrieIfBuilt(blazeProjectData);
+    if (trie != null) {
+      return trie.getTargets(sourceFile);
+    }
+    return SourceToTargetTrie.scanTargets(
+        blazeProjectData.targetMap,
+        blazeProjectData.artifactLocationDecoder,
+        file -> file.equals(sourceFile));
   }
 
-  @Nullable
-  private synchronized ImmutableMultimap<File, TargetKey> getSourceToTargetMap() {
-    return SyncCache.getInstance(project)
-        .get(SourceToTargetMapImpl.class, SourceToTargetMapImpl::computeSourceToTargetMap);
+  @Override
+  public ImmutableCollection<TargetKey> getRulesForSourcesUnderDirectory(File directory) {
+    BlazeProjectData blazeProjectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    if (blazeProjectData == null) {
+      return ImmutableList.of();
+    }
+    SourceToTargetTrie trie = getTrieIfBuilt(blazeProjectData);
+    if (trie != null) {
+      return trie.getTargetsUnderDirectory(directory);
+    }
+    Path directoryPath = directory.toPath();
+    return SourceToTargetTrie.scanTargets(
+        blazeProjectData.targetMap,
+        blazeProjectData.artifactLocationDecoder,
+        file -> file.toPath().startsWith(directoryPath));
   }
 
+  /**
+   * Returns the trie for the given project data, or null if it's still being built or its build
+   * failed. Never waits for the build, as lookups can be made on the event thread; callers scan
+   * the target map directly instead.
+   */
   @Nullable
-  private static ImmutableMultimap<File, TargetKey> computeSourceToTargetMap(
-      Project project, BlazeProjectData blazeProjectData) {
-    ArtifactLocationDecoder artifactLocationDecoder = blazeProjectData.artifactLocationDecoder;
-    ImmutableMultimap.Builder<File, TargetKey> sourceToTargetMap = ImmutableMultimap.builder();
-    for (TargetIdeInfo target : blazeProjectData.targetMap.targets()) {
-      TargetKey key = target.key;
-      for (ArtifactLocation sourceArtifact : target.sources) {
-        sourceToTargetMap.put(artifactLocationDecoder.decode(sourceArtifact), key);
+  private SourceToTargetTrie getTrieIfBuilt(BlazeProjectData blazeProjectData) {
+    ListenableFuture<SourceToTargetTrie> future = getTrieFuture(blazeProjectData);
+    if (!future.isDone()) {
+      return null;
+    }
+    try {
+      return Futures.getDone(future);
+    } catch (ExecutionException | CancellationException e) {
+      // The failed build is dropped, and retried on the next lookup
+      return null;
+    }
+  }
+
+  private synchronized ListenableFuture<SourceToTargetTrie> getTrieFuture(
+      BlazeProjectData blazeProjectData) {
+    if (trie == null || indexedProjectData != blazeProjectData) {
+      indexedProjectData = blazeProjectData;
+      ListenableFuture<SourceToTargetTrie> future =
+          SourceToTargetTrie.build(
+              blazeProjectData.targetMap,
+              blazeProjectData.artifactLocationDecoder,
+              BlazeExecutor.getInstance().getExecutor());
+      trie = future;
+      // Don't keep a failed build around, so the next call tries again
+      future.addListener(() -> dropIfFailed(future), MoreExecutors.directExecutor());
+    }
+    return trie;
+  }
+
+  private synchronized void dropIfFailed(ListenableFuture<SourceToTargetTrie> future) {
+    if (trie != future) {
+      return;
+    }
+    try {
+      Futures.getDone(future);
+    } catch (ExecutionException | CancellationException e) {
+      trie = null;
+    }
+  }
+
+  /** Starts building the trie as soon as sync completes, so it's ready before it's first needed. */
+  static class BuildAfterSync extends SyncListener.Adapter {
+    @Override
+    public void onSyncComplete(
+        Project project,
+        BlazeContext context,
+        BlazeImportSettings importSettings,
+        ProjectViewSet projectViewSet,
+        BlazeProjectData blazeProjectData,
+        SyncMode syncMode,
+        SyncResult syncResult) {
+      SourceToTargetMap sourceToTargetMap = SourceToTargetMap.getInstance(project);
+      if (sourceToTargetMap instanceof SourceToTargetMapImpl) {
+        ((SourceToTargetMapImpl) sourceToTargetMap).getTrieFuture(blazeProjectData);
       }
     }
-    return sourceToTargetMap.build();
   }
 }
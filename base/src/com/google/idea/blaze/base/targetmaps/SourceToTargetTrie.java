@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Maps source files to the targets containing them, as a trie of path segments.
+ *
+ * <p>The trie path of each source directory is only walked once; the other sources in that
+ * directory are added to its node by name. Built in parallel batches, which are merged in target
+ * map order.
+ */
+final class SourceToTargetTrie {
+  private static final int TARGETS_PER_TASK = 1000;
+  private static final Splitter PATH_SPLITTER = Splitter.on(File.separatorChar).omitEmptyStrings();
+  /** Absolute paths hang off this segment, so "/foo" and "foo" are kept apart. */
+  private static final ImmutableList<String> ABSOLUTE_ROOT = ImmutableList.of(File.separator);
+  private static final TargetKey[] NO_TARGETS = new TargetKey[0];
+
+  private static final class Node {
+    @Nullable private Map<String, Node> children;
+    private TargetKey[] targets = NO_TARGETS;
+
+    Node getOrCreateChild(String name) {
+      if (children == null) {
+        children = Maps.newHashMap();
+      }
+      return children.computeIfAbsent(name, key -> new Node());
+    }
+
+    @Nullable
+    Node getChild(String name) {
+      return children != null ? children.get(name) : null;
+    }
+
+    void addTarget(TargetKey targetKey) {
+      for (TargetKey existing : targets) {
+        if (existing.equals(targetKey)) {
+          return;
+        }
+      }
+      targets = Arrays.copyOf(targets, targets.length + 1);
+      targets[targets.length - 1] = targetKey;
+    }
+
+    void mergeFrom(Node other) {
+      for (TargetKey targetKey : other.targets) {
+        addTarget(targetKey);
+      }
+      if (other.children == null) {
+        return;
+      }
+      if (children == null) {
+        children = other.children;
+        return;
+      }
+      for (Map.Entry<String, Node> entry : other.children.entrySet()) {
+        Node child = children.get(entry.getKey());
+        if (child == null) {
+          children.put(entry.getKey(), entry.getValue());
+        } else {
+          child.mergeFrom(entry.getValue());
+        }
+      }
+    }
+
+    void collectTargets(Set<TargetKey> result) {
+      result.addAll(Arrays.asList(targets));
+      if (children != null) {
+        for (Node child : children.values()) {
+          child.collectTargets(result);
+        }
+      }
+    }
+  }
+
+  private final Node root;
+
+  private SourceToTargetTrie(Node root) {
+    this.root = root;
+  }
+
+  /** Builds the trie on the given executor, without blocking any of its threads. */
+  static ListenableFuture<SourceToTargetTrie> build(
+      TargetMap targetMap,
+      ArtifactLocationDecoder artifactLocationDecoder,
+      ListeningExecutorService executor) {
+    List<ListenableFuture<Node>> futures = Lists.newArrayList();
+    for (List<TargetIdeInfo> batch :
+        Lists.partition(ImmutableList.copyOf(targetMap.targets()), TARGETS_PER_TASK)) {
+      futures.add(executor.submit(() -> buildPartialTrie(batch, artifactLocationDecoder)));
+    }
+    return Futures.transform(
+        Futures.allAsList(futures),
+        partialTries -> {
+          Node root = new Node();
+          for (Node partialTrie : partialTries) {
+            root.mergeFrom(partialTrie);
+          }
+          return new SourceToTargetTrie(root);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static Node buildPartialTrie(
+      List<TargetIdeInfo> targets, ArtifactLocationDecoder artifactLocationDecoder) {
+    Node root = new Node();
+    // Each source is decoded separately, as sources in the same workspace directory can resolve to
+    // different package paths
+    Map<String, Node> directoryNodes = Maps.newHashMap();
+    for (TargetIdeInfo target : targets) {
+      for (ArtifactLocation source : target.sources) {
+        File file = artifactLocationDecoder.decode(source);
+        String directory = file.getParent();
+        Node directoryNode =
+            directory != null
+                ? directoryNodes.computeIfAbsent(directory, path -> descend(root, path))
+                : root;
+        directoryNode.getOrCreateChild(file.getName()).addTarget(target.key);
+      }
+    }
+    return root;
+  }
+
+  private static Node descend(Node node, String path) {
+    for (String segment : segments(path)) {
+      node = node.getOrCreateChild(segment);
+    }
+    return node;
+  }
+
+  private static Iterable<String> segments(String path) {
+    Iterable<String> segments = PATH_SPLITTER.split(path);
+    return path.startsWith(File.separator) ? Iterables.concat(ABSOLUTE_ROOT, segments) : segments;
+  }
+
+  /** Returns the targets containing the given source file. */
+  ImmutableList<TargetKey> getTargets(File file) {
+    Node node = find(file);
+    return node != null ? ImmutableList.copyOf(node.targets) : ImmutableList.of();
+  }
+
+  /** Returns the targets containing any source file under the given directory. */
+  ImmutableCollection<TargetKey> getTargetsUnderDirectory(File directory) {
+    Node node = find(directory);
+    if (node == null) {
+      return ImmutableList.of();
+    }
+    Set<TargetKey> result = Sets.newLinkedHashSet();
+    node.collectTargets(result);
+    return ImmutableSet.copyOf(result);
+  }
+
+  @Nullable
+  private Node find(File file) {
+    Node node = root;
+    for (String segment : segments(file.getPath())) {
+      node = node.getChild(segment);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Returns the targets with a source file matching the predicate, by decoding every source in the
+   * target map. Used to answer queries while the trie is still being built.
+   */
+  static ImmutableCollection<TargetKey> scanTargets(
+      TargetMap targetMap,
+      ArtifactLocationDecoder artifactLocationDecoder,
+      Predicate<File> sourceFilter) {
+    Set<TargetKey> result = Sets.newLinkedHashSet();
+    for (TargetIdeInfo target : targetMap.targets()) {
+      for (ArtifactLocation source : target.sources) {
+        if (sourceFilter.test(artifactLocationDecoder.decode(source))) {
+          result.add(target.key);
+          break;
+        }
+      }
+    }
+    return ImmutableSet.copyOf(result);
+  }
+}
@@ -15,10 +15,18 @@
  */
 package com.google.idea.blaze.base.targetmaps;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
-import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.idea.blaze.base.ideinfo.Dependency;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
@@ -26,21 +34,44 @@ import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.project.Project;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
-/** Handy class to find all transitive dependencies of a given target */
+/**
+ * Handy class to find all transitive dependencies of a given target.
+ *
+ * <p>Closures are memoized per sync. The dependency graph is condensed into its strongly connected
+ * components, so each closure is found by a single walk over the components it reaches. Only the
+ * closures actually queried are cached, bounded by their total size, evicting the least recently
+ * used.
+ */
 public class TransitiveDependencyMap {
+  /** The maximum total number of keys held by cached closures. */
+  private static final long MAX_CACHED_KEYS = 2_000_000;
+
   private final Project project;
+  private final long maxCachedKeys;
+
+  @Nullable private Closures closures;
 
   public static TransitiveDependencyMap getInstance(Project project) {
     return ServiceManager.getService(project, TransitiveDependencyMap.class);
   }
 
   public TransitiveDependencyMap(Project project) {
+    this(project, MAX_CACHED_KEYS);
+  }
+
+  @VisibleForTesting
+  TransitiveDependencyMap(Project project, long maxCachedKeys) {
     this.project = project;
+    this.maxCachedKeys = maxCachedKeys;
   }
 
   public ImmutableCollection<TargetKey> getTransitiveDependencies(TargetKey targetKey) {
@@ -49,31 +80,213 @@ public class TransitiveDependencyMap {
     if (blazeProjectData == null) {
       return ImmutableSet.of();
     }
-    // TODO: see if we need caching.
-    return getTransitiveDependencies(targetKey, blazeProjectData.targetMap);
+    return getClosures(blazeProjectData.targetMap).getTransitiveDependencies(targetKey);
+  }
+
+  /** Returns hit and eviction statistics for the closures cached since the last sync. */
+  public CacheStats getCacheStats() {
+    Closures closures = getClosures();
+    return closures != null ? closures.cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
   }
 
-  private static ImmutableCollection<TargetKey> getTransitiveDependencies(
-      TargetKey targetKey, TargetMap targetMap) {
-    Queue<TargetKey> targetsToVisit = Queues.newArrayDeque();
-    Set<TargetKey> transitiveDependencies = Sets.newHashSet();
-    targetsToVisit.add(targetKey);
-    while (!targetsToVisit.isEmpty()) {
-      TargetIdeInfo currentTarget = targetMap.get(targetsToVisit.remove());
-      if (currentTarget == null) {
-        continue;
+  /** Returns the total number of keys held by the closures cached since the last sync. */
+  public long getCachedKeyCount() {
+    Closures closures = getClosures();
+    if (closures == null) {
+      return 0;
+    }
+    return closures.cache.asMap().values().stream().mapToLong(Set::size).sum();
+  }
+
+  @Nullable
+  private synchronized Closures getClosures() {
+    return closures;
+  }
+
+  /** Returns the closures for the given target map, discarding those of any previous sync. */
+  private synchronized Closures getClosures(TargetMap targetMap) {
+    if (closures == null || closures.targetMap != targetMap) {
+      closures = new Closures(targetMap, maxCachedKeys);
+    }
+    return closures;
+  }
+
+  /** The dependency graph of a single target map, and the closures computed over it. */
+  private static class Closures {
+    private final TargetMap targetMap;
+    private final Map<TargetKey, Integer> nodeIds;
+    /** Component id -> the targets in that component. */
+    private final List<ImmutableList<TargetKey>> components = Lists.newArrayList();
+    /** Component id -> the other components it directly depends on. */
+    private final List<int[]> componentDeps = Lists.newArrayList();
+    /** Components which are part of a dependency cycle, so depend on themselves. */
+    private final BitSet cyclicComponents = new BitSet();
+    private final int[] componentOf;
+
+    /** Component id -> its transitive dependencies, for the components queried so far. */
+    private final Cache<Integer, ImmutableSet<TargetKey>> cache;
+
+    Closures(TargetMap targetMap, long maxCachedKeys) {
+      this.targetMap = targetMap;
+      // A single segment, so the whole weight is available to any closure, rather than a share
+      this.cache =
+          CacheBuilder.newBuilder()
+              .concurrencyLevel(1)
+              .maximumWeight(maxCachedKeys)
+              .<Integer, ImmutableSet<TargetKey>>weigher((component, closure) -> closure.size())
+              .recordStats()
+              .build();
+      this.nodeIds = Maps.newHashMapWithExpectedSize(targetMap.map().size());
+      List<TargetKey> nodes = Lists.newArrayList();
+      for (TargetKey key : targetMap.map().keySet()) {
+        nodeId(key, nodes);
+      }
+      int[][] edges = new int[targetMap.map().size()][];
+      int i = 0;
+      for (TargetIdeInfo target : targetMap.targets()) {
+        Set<Integer> deps = new LinkedHashSet<>();
+        for (Dependency dependency : target.dependencies) {
+          deps.add(nodeId(TargetKey.forPlainTarget(dependency.targetKey.label), nodes));
+        }
+        edges[i++] = Ints.toArray(deps);
+      }
+      // Dependencies missing from the target map are leaves
+      edges = Arrays.copyOf(edges, nodes.size());
+      for (int node = targetMap.map().size(); node < nodes.size(); ++node) {
+        edges[node] = new int[0];
+      }
+      this.componentOf = findComponents(edges);
+
+      List<List<TargetKey>> members = Lists.newArrayList();
+      List<Set<Integer>> deps = Lists.newArrayList();
+      for (int node = 0; node < nodes.size(); ++node) {
+        int component = componentOf[node];
+        while (members.size() <= component) {
+          members.add(Lists.newArrayList());
+          deps.add(new LinkedHashSet<>());
+        }
+        members.get(component).add(nodes.get(node));
+        for (int dep : edges[node]) {
+          if (componentOf[dep] == component) {
+            cyclicComponents.set(component);
+          } else {
+            deps.get(component).add(componentOf[dep]);
+          }
+        }
+      }
+      for (int component = 0; component < members.size(); ++component) {
+        components.add(ImmutableList.copyOf(members.get(component)));
+        componentDeps.add(Ints.toArray(deps.get(component)));
+      }
+    }
+
+    private int nodeId(TargetKey key, List<TargetKey> nodes) {
+      Integer id = nodeIds.get(key);
+      if (id == null) {
+        id = nodes.size();
+        nodeIds.put(key, id);
+        nodes.add(key);
+      }
+      return id;
+    }
+
+    ImmutableSet<TargetKey> getTransitiveDependencies(TargetKey targetKey) {
+      if (!targetMap.contains(targetKey)) {
+        return ImmutableSet.of();
+      }
+      int component = componentOf[nodeIds.get(targetKey)];
+      ImmutableSet<TargetKey> closure = cache.getIfPresent(component);
+      if (closure == null) {
+        closure = computeClosure(component);
+        cache.put(component, closure);
+      }
+      return closure;
+    }
+
+    /**
+     * Computes the closure of a component, by walking the components it reaches. Takes time and
+     * memory linear in the size of the closure, and caches nothing else.
+     */
+    private ImmutableSet<TargetKey> computeClosure(int component) {
+      ImmutableSet.Builder<TargetKey> closure = ImmutableSet.builder();
+      if (cyclicComponents.get(component)) {
+        closure.addAll(components.get(component));
+      }
+      BitSet visited = new BitSet();
+      visited.set(component);
+      Deque<Integer> todo = Queues.newArrayDeque();
+      todo.add(component);
+      while (!todo.isEmpty()) {
+        for (int dep : componentDeps.get(todo.remove())) {
+          if (!visited.get(dep)) {
+            visited.set(dep);
+            closure.addAll(components.get(dep));
+            todo.add(dep);
+          }
+        }
+      }
+      return closure.build();
+    }
+
+    /**
+     * Finds the strongly connected components of the graph, using an iterative version of Tarjan's
+     * algorithm. Components are numbered in reverse topological order, i.e. every component's
+     * dependencies have lower ids than itself.
+     */
+    private static int[] findComponents(int[][] edges) {
+      int nodeCount = edges.length;
+      int[] componentOf = new int[nodeCount];
+      int[] index = new int[nodeCount];
+      Arrays.fill(index, -1);
+      int[] lowLink = new int[nodeCount];
+      boolean[] onStack = new boolean[nodeCount];
+      int[] stack = new int[nodeCount];
+      int stackSize = 0;
+      int[] callStack = new int[nodeCount];
+      int[] nextEdge = new int[nodeCount];
+      int callDepth = 0;
+      int nextIndex = 0;
+      int componentCount = 0;
+
+      for (int root = 0; root < nodeCount; ++root) {
+        if (index[root] >= 0) {
+          continue;
+        }
+        index[root] = lowLink[root] = nextIndex++;
+        stack[stackSize++] = root;
+        onStack[root] = true;
+        callStack[callDepth++] = root;
+        while (callDepth > 0) {
+          int node = callStack[callDepth - 1];
+          if (nextEdge[node] < edges[node].length) {
+            int dep = edges[node][nextEdge[node]++];
+            if (index[dep] < 0) {
+              index[dep] = lowLink[dep] = nextIndex++;
+              stack[stackSize++] = dep;
+              onStack[dep] = true;
+              callStack[callDepth++] = dep;
+            } else if (onStack[dep]) {
+              lowLink[node] = Math.min(lowLink[node], index[dep]);
+            }
+            continue;
+          }
+          callDepth--;
+          if (callDepth > 0) {
+            int parent = callStack[callDepth - 1];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+          }
+          if (lowLink[node] == index[node]) {
+            int member;
+            do {
+              member = stack[--stackSize];
+              onStack[member] = false;
+              componentOf[member] = componentCount;
+            } while (member != node);
+            componentCount++;
+          }
+        }
       }
-      List<TargetKey> newDependencies =
-          currentTarget
-              .dependencies
-              .stream()
-              .map(d -> TargetKey.forPlainTarget(d.targetKey.label))
-              // Get rid of the ones we've already seen.
-              .filter(r -> !transitiveDependencies.contains(r))
-              .collect(Collectors.toList());
-      targetsToVisit.addAll(newDependencies);
-      transitiveDependencies.addAll(newDependencies);
+      return componentOf;
     }
-    return ImmutableSet.copyOf(transitiveDependencies);
   }
 }
@@ -59,6 +59,18 @@ public interface BlazeVcsHandler {
       WorkspaceRoot workspaceRoot,
       ListeningExecutorService executor);
 
+  /**
+   * Returns a summary of the VCS state the working set is relative to (e.g. the current commit and
+   * its upstream), which changes whenever the working set may have changed other than by edits to
+   * workspace files. Returns null if unknown, in which case the working set is always recomputed.
+   *
+   * <p>Called on each sync, so it should be much cheaper than computing the working set.
+   */
+  @Nullable
+  default String getVcsState(Project project, WorkspaceRoot workspaceRoot) {
+    return null;
+  }
+
   /** Returns the original file content of a file path from "upstream". */
   ListenableFuture<String> getUpstreamContent(
       Project project,
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.vcs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.blaze.base.settings.BlazeImportSettingsManager;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
+import com.google.idea.common.experiments.IntExperiment;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileAdapter;
+import com.intellij.openapi.vfs.VirtualFileCopyEvent;
+import com.intellij.openapi.vfs.VirtualFileEvent;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.VirtualFileMoveEvent;
+import com.intellij.openapi.vfs.VirtualFilePropertyEvent;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps the working set up to date between syncs from file system events, so it can usually be
+ * found without asking the VCS.
+ *
+ * <p>The working set is reconciled against the {@link BlazeVcsHandler} on request (e.g. on a full
+ * sync), when the last reconcile is older than the reconcile interval, or when the handler's VCS
+ * state (e.g. the current commit, or its upstream) has changed or is unknown. Otherwise, the
+ * workspace files created, modified or deleted since the last reconcile are applied to its result.
+ *
+ * <p>Only files known to the VFS produce events, so changes to files the IDE has never loaded are
+ * picked up by the next reconcile. For the same reason, a directory change forces the next
+ * request to reconcile, rather than guessing which files under it changed.
+ */
+public class WorkingSetTracker {
+
+  private static final IntExperiment RECONCILE_INTERVAL_MINUTES =
+      new IntExperiment("blaze.working.set.reconcile.interval.minutes", 10);
+
+  /** Whether a file exists upstream, and whether it exists now. */
+  private static class FileState {
+    final boolean existedUpstream;
+    boolean existsNow;
+
+    FileState(boolean existedUpstream, boolean existsNow) {
+      this.existedUpstream = existedUpstream;
+      this.existsNow = existsNow;
+    }
+  }
+
+  public static WorkingSetTracker getInstance(Project project) {
+    return ServiceManager.getService(project, WorkingSetTracker.class);
+  }
+
+  private final Project project;
+
+  /** The last working set returned by the VCS. Guarded by this. */
+  @Nullable private WorkingSet reconciledWorkingSet;
+
+  private long reconciledMillis;
+
+  /** The VCS state when the last reconcile started, or null if unknown. Guarded by this. */
+  @Nullable private String reconciledVcsState;
+
+  /** Whether a directory has changed since the last reconcile started. Guarded by this. */
+  private boolean directoryChanged;
+
+  /**
+   * Workspace paths changed since the last reconcile started, mapped to whether the file existed
+   * before its first change. Guarded by this.
+   */
+  private Map<WorkspacePath, Boolean> changedFiles = Maps.newLinkedHashMap();
+
+  public WorkingSetTracker(Project project) {
+    this.project = project;
+    VirtualFileManager.getInstance().addVirtualFileListener(new FileListener(), project);
+  }
+
+  /**
+   * Returns the working set of modified files, only asking the VCS if it needs reconciling.
+   *
+   * @param reconcile whether to reconcile against the VCS regardless of changes since the last
+   *     reconcile
+   */
+  public ListenableFuture<WorkingSet> getWorkingSet(
+      BlazeVcsHandler vcsHandler,
+      BlazeContext context,
+      WorkspaceRoot workspaceRoot,
+      ListeningExecutorService executor,
+      boolean reconcile) {
+    long now = System.currentTimeMillis();
+    String vcsState = vcsHandler.getVcsState(project, workspaceRoot);
+    WorkingSet workingSet = null;
+    ImmutableMap<WorkspacePath, Boolean> changes = null;
+    synchronized (this) {
+      boolean reconcileDue =
+          now - reconciledMillis
+              >= TimeUnit.MINUTES.toMillis(RECONCILE_INTERVAL_MINUTES.getValue());
+      if (reconciledWorkingSet != null
+          && !reconcile
+          && !reconcileDue
+          && !directoryChanged
+          && !vcsStateChanged(vcsState, reconciledVcsState)) {
+        workingSet = reconciledWorkingSet;
+        changes = ImmutableMap.copyOf(changedFiles);
+      } else {
+        // Changes from here on may not be seen by the VCS, so are applied to its result
+        reconciledWorkingSet = null;
+        reconciledVcsState = vcsState;
+        directoryChanged = false;
+        changedFiles = Maps.newLinkedHashMap();
+      }
+    }
+    if (workingSet != null) {
+      return Futures.immediateFuture(applyChanges(workspaceRoot, workingSet, changes));
+    }
+    return Futures.transform(
+        vcsHandler.getWorkingSet(project, context, workspaceRoot, executor),
+        vcsWorkingSet -> {
+          if (vcsWorkingSet == null) {
+            return null;
+          }
+          ImmutableMap<WorkspacePath, Boolean> changesDuringReconcile;
+          synchronized (this) {
+            reconciledWorkingSet = vcsWorkingSet;
+            reconciledMillis = now;
+            changesDuringReconcile = ImmutableMap.copyOf(changedFiles);
+          }
+          return applyChanges(workspaceRoot, vcsWorkingSet, changesDuringReconcile);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Returns whether the VCS state may have changed. An unknown state always may have. */
+  @VisibleForTesting
+  static boolean vcsStateChanged(@Nullable String vcsState, @Nullable String reconciledVcsState) {
+    return vcsState == null || !vcsState.equals(reconciledVcsState);
+  }
+
+  private static WorkingSet applyChanges(
+      WorkspaceRoot workspaceRoot,
+      WorkingSet workingSet,
+      ImmutableMap<WorkspacePath, Boolean> changedFiles) {
+    return applyChanges(
+        workingSet, changedFiles, path -> workspaceRoot.fileForPath(path).exists());
+  }
+
+  /**
+   * Applies file changes to a working set.
+   *
+   * @param changedFiles changed files, mapped to whether the file existed before its first change
+   * @param exists whether a changed file exists now
+   */
+  @VisibleForTesting
+  static WorkingSet applyChanges(
+      WorkingSet workingSet,
+      ImmutableMap<WorkspacePath, Boolean> changedFiles,
+      Predicate<WorkspacePath> exists) {
+    if (changedFiles.isEmpty()) {
+      return workingSet;
+    }
+    Map<WorkspacePath, FileState> files = Maps.newLinkedHashMap();
+    workingSet.addedFiles.forEach(path -> files.put(path, new FileState(false, true)));
+    workingSet.modifiedFiles.forEach(path -> files.put(path, new FileState(true, true)));
+    workingSet.deletedFiles.forEach(path -> files.put(path, new FileState(true, false)));
+    for (Map.Entry<WorkspacePath, Boolean> entry : changedFiles.entrySet()) {
+      FileState file = files.get(entry.getKey());
+      boolean existsNow = exists.test(entry.getKey());
+      if (file == null) {
+        // Unchanged from upstream before this change
+        files.put(entry.getKey(), new FileState(entry.getValue(), existsNow));
+      } else {
+        file.existsNow = existsNow;
+      }
+    }
+
+    ImmutableList.Builder<WorkspacePath> added = ImmutableList.builder();
+    ImmutableList.Builder<WorkspacePath> modified = ImmutableList.builder();
+    ImmutableList.Builder<WorkspacePath> deleted = ImmutableList.builder();
+    for (Map.Entry<WorkspacePath, FileState> entry : files.entrySet()) {
+      FileState file = entry.getValue();
+      if (file.existedUpstream && file.existsNow) {
+        modified.add(entry.getKey());
+      } else if (file.existedUpstream) {
+        deleted.add(entry.getKey());
+      } else if (file.existsNow) {
+        added.add(entry.getKey());
+      }
+    }
+    return new WorkingSet(added.build(), modified.build(), deleted.build());
+  }
+
+  /**
+   * Records a change to a file, or notes that the next request must reconcile if it's a directory.
+   * Files ignored by the IDE or the VCS (e.g. editor backups, generated files), and files under the
+   * project data directory, are never part of the working set.
+   */
+  private void fileChanged(
+      WorkspaceRoot workspaceRoot,
+      @Nullable File projectDataDirectory,
+      VirtualFile file,
+      boolean existedBefore) {
+    if (FileTypeManager.getInstance().isFileIgnored(file)) {
+      return;
+    }
+    File ioFile = new File(file.getPath());
+    if (!workspaceRoot.isInWorkspace(ioFile)
+        || (projectDataDirectory != null
+            && FileUtil.isAncestor(projectDataDirectory, ioFile, false))) {
+      return;
+    }
+    WorkspacePath workspacePath = workspaceRoot.workspacePathFor(ioFile);
+    if (isVcsMetadata(workspacePath)
+        || isUnderIgnoredDirectory(workspaceRoot, file)
+        || ChangeListManager.getInstance(project).isIgnoredFile(file)) {
+      return;
+    }
+    synchronized (this) {
+      if (file.isDirectory()) {
+        // The VFS may not know the files under it, e.g. when it was just created with its contents
+        directoryChanged = true;
+      } else {
+        changedFiles.putIfAbsent(workspacePath, existedBefore);
+      }
+    }
+  }
+
+  private static boolean isUnderIgnoredDirectory(WorkspaceRoot workspaceRoot, VirtualFile file) {
+    FileTypeManager fileTypeManager = FileTypeManager.getInstance();
+    for (VirtualFile parent = file.getParent(); parent != null; parent = parent.getParent()) {
+      if (FileUtil.filesEqual(new File(parent.getPath()), workspaceRoot.directory())) {
+        return false;
+      }
+      if (fileTypeManager.isFileIgnored(parent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isVcsMetadata(WorkspacePath path) {
+    String topLevelName = path.relativePath().split("/", 2)[0];
+    return topLevelName.equals(".git") || topLevelName.equals(".hg");
+  }
+
+  /** Records changes to workspace files. */
+  private class FileListener extends VirtualFileAdapter {
+    @Override
+    public void fileCreated(@NotNull VirtualFileEvent event) {
+      fileChanged(event.getFile(), false);
+    }
+
+    @Override
+    public void fileCopied(@NotNull VirtualFileCopyEvent event) {
+      fileChanged(event.getFile(), false);
+    }
+
+    @Override
+    public void contentsChanged(@NotNull VirtualFileEvent event) {
+      fileChanged(event.getFile(), true);
+    }
+
+    @Override
+    public void beforeFileDeletion(@NotNull VirtualFileEvent event) {
+      // Recorded before the deletion, while the file is still known to the VFS
+      fileChanged(event.getFile(), true);
+    }
+
+    @Override
+    public void beforeFileMovement(@NotNull VirtualFileMoveEvent event) {
+      fileChanged(event.getFile(), true);
+    }
+
+    @Override
+    public void fileMoved(@NotNull VirtualFileMoveEvent event) {
+      fileChanged(event.getFile(), false);
+    }
+
+    @Override
+    public void beforePropertyChange(@NotNull VirtualFilePropertyEvent event) {
+      if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+        fileChanged(event.getFile(), true);
+      }
+    }
+
+    @Override
+    public void propertyChanged(@NotNull VirtualFilePropertyEvent event) {
+      if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+        fileChanged(event.getFile(), false);
+      }
+    }
+
+    private void fileChanged(VirtualFile file, boolean existedBefore) {
+      WorkspaceRoot workspaceRoot = WorkspaceRoot.fromProjectSafe(project);
+      if (workspaceRoot == null) {
+        return;
+      }
+      BlazeImportSettings importSettings =
+          BlazeImportSettingsManager.getInstance(project).getImportSettings();
+      File projectDataDirectory =
+          importSettings != null && importSettings.getProjectDataDirectory() != null
+              ? new File(importSettings.getProjectDataDirectory())
+              : null;
+      WorkingSetTracker.this.fileChanged(workspaceRoot, projectDataDirectory, file, existedBefore);
+    }
+  }
+}
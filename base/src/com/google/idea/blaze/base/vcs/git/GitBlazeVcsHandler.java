@@ -55,14 +55,24 @@ public class GitBlazeVcsHandler implements BlazeVcsHandler {
       BlazeContext context,
       WorkspaceRoot workspaceRoot,
       ListeningExecutorService executor) {
-    return executor.submit(
-        () -> {
-          String upstreamSha = getUpstreamSha(workspaceRoot, false);
-          if (upstreamSha == null) {
-            return null;
-          }
-          return GitWorkingSetProvider.calculateWorkingSet(workspaceRoot, upstreamSha);
-        });
+    return GitWorkingSetProvider.calculateWorkingSet(workspaceRoot, executor);
+  }
+
+  /**
+   * Returns the commits HEAD and its upstream branch point to. Git resolves them itself, so config
+   * includes, custom refspecs and every ref storage format are handled.
+   */
+  @Nullable
+  @Override
+  public String getVcsState(Project project, WorkspaceRoot workspaceRoot) {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    int retVal =
+        ExternalTask.builder(workspaceRoot)
+            .args("git", "rev-parse", "HEAD", "@{u}")
+            .stdout(stdout)
+            .build()
+            .run();
+    return retVal == 0 ? stdout.toString() : null;
   }
 
   @Nullable
@@ -15,8 +15,14 @@
  */
 package com.google.idea.blaze.base.vcs.git;
 
-import com.google.common.base.Strings;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.async.process.LineProcessingOutputStream;
 import com.google.idea.blaze.base.model.primitives.WorkspacePath;
@@ -25,9 +31,10 @@ import com.google.idea.blaze.base.sync.workspace.WorkingSet;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import java.io.ByteArrayOutputStream;
-import java.util.Arrays;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 import javax.annotation.Nullable;
 
 /** Vcs diff provider for git. */
@@ -35,24 +42,126 @@ public class GitWorkingSetProvider {
 
   private static final Logger logger = Logger.getInstance(GitWorkingSetProvider.class);
 
+  /** The changes committed since the upstream commit, which only depend on the two commits. */
+  private static class CommittedChanges {
+    final String gitRoot;
+    final String headSha;
+    final String upstreamSha;
+    final WorkingSet changes;
+
+    CommittedChanges(String gitRoot, String headSha, String upstreamSha, WorkingSet changes) {
+      this.gitRoot = gitRoot;
+      this.headSha = headSha;
+      this.upstreamSha = upstreamSha;
+      this.changes = changes;
+    }
+  }
+
+  private static final Map<WorkspaceRoot, CommittedChanges> committedChangesCache =
+      Maps.newConcurrentMap();
+
+  /** Whether a file exists before and after a set of changes. */
+  private static class FileChange {
+    boolean existedBefore;
+    boolean existsAfter;
+
+    FileChange(boolean existedBefore, boolean existsAfter) {
+      this.existedBefore = existedBefore;
+      this.existsAfter = existsAfter;
+    }
+  }
+
+  /**
+   * Finds all changes between the working tree and the merge base of HEAD and the upstream branch,
+   * including untracked files. The result is null if an error occurred.
+   *
+   * <p>The committed and uncommitted changes are found concurrently, as separate tasks on the
+   * executor. Neither waits for the other, so they can't starve a bounded executor.
+   */
+  public static ListenableFuture<WorkingSet> calculateWorkingSet(
+      WorkspaceRoot workspaceRoot, ListeningExecutorService executor) {
+    ListenableFuture<CommittedChanges> committedChanges =
+        executor.submit(() -> getCommittedChanges(workspaceRoot));
+    ListenableFuture<String> status =
+        executor.submit(
+            () ->
+                getConsoleOutput(
+                    workspaceRoot,
+                    "git",
+                    "status",
+                    "--porcelain=v2",
+                    "-z",
+                    "--untracked-files=all"));
+    return Futures.transformAsync(
+        committedChanges,
+        committed -> {
+          if (committed == null) {
+            status.cancel(true);
+            return Futures.immediateFuture(null);
+          }
+          return Futures.transform(
+              status,
+              uncommitted ->
+                  uncommitted != null
+                      ? mergeChanges(
+                          workspaceRoot, committed.gitRoot, committed.changes, uncommitted)
+                      : null,
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
   /**
-   * Finds all changes between HEAD and the git commit specified by the provided SHA.<br>
-   * Returns null if an error occurred.
+   * Finds the changes committed since the merge base of HEAD and the upstream branch, or returns
+   * null if an error occurred. These only need recomputing when either commit changes.
    */
   @Nullable
-  public static WorkingSet calculateWorkingSet(WorkspaceRoot workspaceRoot, String upstreamSha) {
+  private static CommittedChanges getCommittedChanges(WorkspaceRoot workspaceRoot) {
+    String revisions =
+        getConsoleOutput(workspaceRoot, "git", "rev-parse", "--show-toplevel", "HEAD", "@{u}");
+    if (revisions == null) {
+      return null;
+    }
+    List<String> lines = Splitter.on('\n').splitToList(revisions);
+    if (lines.size() != 3) {
+      logger.error("Unexpected 'git rev-parse' output: " + revisions);
+      return null;
+    }
+    String gitRoot = lines.get(0);
+    String headSha = lines.get(1);
+    String upstreamSha = lines.get(2);
 
-    String gitRoot = getConsoleOutput(workspaceRoot, "git", "rev-parse", "--show-toplevel");
-    if (gitRoot == null) {
+    CommittedChanges cached = committedChangesCache.get(workspaceRoot);
+    if (cached != null
+        && cached.gitRoot.equals(gitRoot)
+        && cached.headSha.equals(headSha)
+        && cached.upstreamSha.equals(upstreamSha)) {
+      return cached;
+    }
+    WorkingSet changes = getCommittedChanges(workspaceRoot, gitRoot, headSha, upstreamSha);
+    if (changes == null) {
       return null;
     }
+    CommittedChanges committed = new CommittedChanges(gitRoot, headSha, upstreamSha, changes);
+    committedChangesCache.put(workspaceRoot, committed);
+    return committed;
+  }
+
+  /** Finds the changes committed between the merge base of the two commits and HEAD. */
+  @Nullable
+  private static WorkingSet getCommittedChanges(
+      WorkspaceRoot workspaceRoot, String gitRoot, String headSha, String upstreamSha) {
     GitStatusLineProcessor processor = new GitStatusLineProcessor(workspaceRoot, gitRoot);
     ByteArrayOutputStream stderr = new ByteArrayOutputStream();
 
-    // Do a git diff to find all modified files we know about
     int retVal =
         ExternalTask.builder(workspaceRoot)
-            .args("git", "diff", "--name-status", "--no-renames", upstreamSha)
+            .args(
+                "git",
+                "diff",
+                "--name-status",
+                "--no-renames",
+                String.format("%s...%s", upstreamSha, headSha))
             .stdout(LineProcessingOutputStream.of(processor))
             .stderr(stderr)
             .build()
@@ -61,29 +170,127 @@ public class GitWorkingSetProvider {
       logger.error(stderr);
       return null;
     }
+    return new WorkingSet(
+        ImmutableList.copyOf(processor.addedFiles),
+        ImmutableList.copyOf(processor.modifiedFiles),
+        ImmutableList.copyOf(processor.deletedFiles));
+  }
 
-    // Finally list all untracked files, as they're not caught by the git diff step above
-    String untrackedFilesOutput =
-        getConsoleOutput(workspaceRoot, "git", "ls-files", "--others", "--exclude-standard");
-    if (untrackedFilesOutput == null) {
-      return null;
+  /**
+   * Combines the committed changes with the uncommitted changes and untracked files listed by 'git
+   * status --porcelain=v2 -z'.
+   */
+  @VisibleForTesting
+  static WorkingSet mergeChanges(
+      WorkspaceRoot workspaceRoot, String gitRoot, WorkingSet committed, String status) {
+    Map<WorkspacePath, FileChange> changes = Maps.newLinkedHashMap();
+    committed.addedFiles.forEach(path -> changes.put(path, new FileChange(false, true)));
+    committed.modifiedFiles.forEach(path -> changes.put(path, new FileChange(true, true)));
+    committed.deletedFiles.forEach(path -> changes.put(path, new FileChange(true, false)));
+
+    Map<WorkspacePath, FileChange> uncommitted = parseStatus(workspaceRoot, gitRoot, status);
+    for (Map.Entry<WorkspacePath, FileChange> entry : uncommitted.entrySet()) {
+      FileChange change = changes.get(entry.getKey());
+      if (change == null) {
+        changes.put(entry.getKey(), entry.getValue());
+      } else {
+        change.existsAfter = entry.getValue().existsAfter;
+      }
     }
 
-    List<WorkspacePath> untrackedFiles =
-        Arrays.asList(untrackedFilesOutput.split("\n"))
-            .stream()
-            .filter(s -> !Strings.isNullOrEmpty(s))
-            .filter(WorkspacePath::validate)
-            .map(WorkspacePath::new)
-            .collect(Collectors.toList());
+    ImmutableList.Builder<WorkspacePath> added = ImmutableList.builder();
+    ImmutableList.Builder<WorkspacePath> modified = ImmutableList.builder();
+    ImmutableList.Builder<WorkspacePath> deleted = ImmutableList.builder();
+    for (Map.Entry<WorkspacePath, FileChange> entry : changes.entrySet()) {
+      FileChange change = entry.getValue();
+      if (change.existedBefore && change.existsAfter) {
+        modified.add(entry.getKey());
+      } else if (change.existedBefore) {
+        deleted.add(entry.getKey());
+      } else if (change.existsAfter) {
+        added.add(entry.getKey());
+      }
+    }
+    return new WorkingSet(added.build(), modified.build(), deleted.build());
+  }
 
-    return new WorkingSet(
-        ImmutableList.<WorkspacePath>builder()
-            .addAll(processor.addedFiles)
-            .addAll(untrackedFiles)
-            .build(),
-        ImmutableList.copyOf(processor.modifiedFiles),
-        ImmutableList.copyOf(processor.deletedFiles));
+  /** Parses 'git status --porcelain=v2 -z' output into changes relative to HEAD. */
+  private static Map<WorkspacePath, FileChange> parseStatus(
+      WorkspaceRoot workspaceRoot, String gitRoot, String status) {
+    Map<WorkspacePath, FileChange> changes = Maps.newLinkedHashMap();
+    String[] entries = status.split("\0");
+    for (int i = 0; i < entries.length; i++) {
+      String entry = entries[i];
+      if (entry.length() < 2 || entry.charAt(1) != ' ') {
+        continue;
+      }
+      switch (entry.charAt(0)) {
+        case '1':
+          {
+            // 1 <XY> <sub> <mH> <mI> <mW> <hH> <hI> <path>
+            String[] fields = entry.split(" ", 9);
+            if (fields.length == 9) {
+              char index = fields[1].charAt(0);
+              char workTree = fields[1].charAt(1);
+              addChange(
+                  changes,
+                  workspaceRoot,
+                  gitRoot,
+                  fields[8],
+                  index != 'A',
+                  index != 'D' && workTree != 'D');
+            }
+            break;
+          }
+        case '2':
+          {
+            // 2 <XY> <sub> <mH> <mI> <mW> <hH> <hI> <X><score> <path>, then the original path
+            String[] fields = entry.split(" ", 10);
+            if (fields.length == 10 && i + 1 < entries.length) {
+              char workTree = fields[1].charAt(1);
+              addChange(changes, workspaceRoot, gitRoot, fields[9], false, workTree != 'D');
+              addChange(changes, workspaceRoot, gitRoot, entries[++i], true, false);
+            }
+            break;
+          }
+        case 'u':
+          {
+            // u <XY> <sub> <m1> <m2> <m3> <mW> <h1> <h2> <h3> <path>
+            String[] fields = entry.split(" ", 11);
+            if (fields.length == 11) {
+              addChange(changes, workspaceRoot, gitRoot, fields[10], true, true);
+            }
+            break;
+          }
+        case '?':
+          addChange(changes, workspaceRoot, gitRoot, entry.substring(2), false, true);
+          break;
+        default:
+          break;
+      }
+    }
+    return changes;
+  }
+
+  private static void addChange(
+      Map<WorkspacePath, FileChange> changes,
+      WorkspaceRoot workspaceRoot,
+      String gitRoot,
+      String gitPath,
+      boolean existedBefore,
+      boolean existsAfter) {
+    WorkspacePath path = workspaceRoot.workspacePathForSafe(new File(gitRoot, gitPath));
+    if (path == null) {
+      return;
+    }
+    // A file deleted from the index can also be listed as untracked
+    FileChange change = changes.get(path);
+    if (change == null) {
+      changes.put(path, new FileChange(existedBefore, existsAfter));
+    } else {
+      change.existedBefore |= existedBefore;
+      change.existsAfter |= existsAfter;
+    }
   }
 
   /** @return the console output, in string form, or null if there was a non-zero exit code. */
@@ -103,6 +310,6 @@ public class GitWorkingSetProvider {
       logger.error(stderr);
       return null;
     }
-    return StringUtil.trimEnd(stdout.toString(), "\n");
+    return StringUtil.trimEnd(new String(stdout.toByteArray(), StandardCharsets.UTF_8), "\n");
   }
 }
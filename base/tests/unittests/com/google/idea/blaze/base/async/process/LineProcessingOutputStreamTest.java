@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.async.process;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LineProcessingOutputStream}. */
+@RunWith(JUnit4.class)
+public class LineProcessingOutputStreamTest {
+  private final List<String> lines = Lists.newArrayList();
+  private final LineProcessingOutputStream stream =
+      LineProcessingOutputStream.of(
+          line -> {
+            lines.add(line);
+            return true;
+          });
+
+  @Test
+  public void testLineBreaks() {
+    write("one\ntwo\rthree\r\nfour\n\nfive");
+
+    assertThat(lines).containsExactly("one", "two", "three", "four", "").inOrder();
+  }
+
+  @Test
+  public void testLineSplitAcrossWrites() {
+    write("first ha");
+    write("lf\nsecond");
+    write(" half\r");
+    write("\nthird\n");
+
+    assertThat(lines).containsExactly("first half", "second half", "third").inOrder();
+  }
+
+  @Test
+  public void testMultibyteCharacterSplitAcrossWrites() {
+    byte[] bytes = "caf\u00e9 \u2603\n".getBytes(StandardCharsets.UTF_8);
+    for (byte b : bytes) {
+      stream.write(new byte[] {b}, 0, 1);
+    }
+
+    assertThat(lines).containsExactly("caf\u00e9 \u2603");
+  }
+
+  @Test
+  public void testOverlongLineIsSplitOnCharacterBoundary() {
+    // Two-byte characters, with the limit falling in the middle of one
+    String longLine = "x" + Strings.repeat("\u00e9", LineProcessingOutputStream.MAX_LINE_LENGTH);
+    write(longLine + "\nnext\n");
+
+    assertThat(lines).hasSize(4);
+    assertThat(lines.get(0).getBytes(StandardCharsets.UTF_8).length)
+        .isEqualTo(LineProcessingOutputStream.MAX_LINE_LENGTH - 1);
+    assertThat(String.join("", lines.subList(0, 3))).isEqualTo(longLine);
+    assertThat(lines.get(3)).isEqualTo("next");
+  }
+
+  @Test
+  public void testProcessorCanStopLaterProcessors() {
+    List<String> laterLines = Lists.newArrayList();
+    LineProcessingOutputStream stream =
+        LineProcessingOutputStream.of(
+            line -> !line.startsWith("#"),
+            line -> {
+              laterLines.add(line);
+              return true;
+            });
+    byte[] bytes = "# comment\ncode\n".getBytes(StandardCharsets.UTF_8);
+    stream.write(bytes, 0, bytes.length);
+
+    assertThat(laterLines).containsExactly("code");
+  }
+
+  @Test
+  public void testNothingProcessedAfterClose() throws Exception {
+    write("one\n");
+    stream.close();
+    write("two\n");
+
+    assertThat(lines).containsExactly("one");
+  }
+
+  @Test
+  public void testAsyncStreamProcessesAllLinesBeforeClosing() throws Exception {
+    List<String> processedLines = Lists.newArrayList();
+    LineProcessingOutputStream stream =
+        LineProcessingOutputStream.async(
+            4,
+            LineProcessingOutputStream.OverflowPolicy.BLOCK,
+            line -> {
+              processedLines.add(line);
+              return true;
+            });
+    for (int i = 0; i < 100; i++) {
+      byte[] bytes = ("line " + i + "\n").getBytes(StandardCharsets.UTF_8);
+      stream.write(bytes, 0, bytes.length);
+    }
+    stream.close();
+
+    assertThat(processedLines).hasSize(100);
+    assertThat(processedLines.get(99)).isEqualTo("line 99");
+    LineProcessingOutputStream.Stats stats = stream.getStats();
+    assertThat(stats.writtenLines).isEqualTo(100L);
+    assertThat(stats.droppedLines).isEqualTo(0L);
+    assertThat(stats.maxQueueDepth).isAtMost(4);
+  }
+
+  @Test
+  public void testAsyncStreamDropsLinesWhenFull() throws Exception {
+    CountDownLatch processing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> processedLines = Lists.newArrayList();
+    LineProcessingOutputStream stream =
+        LineProcessingOutputStream.async(
+            2,
+            LineProcessingOutputStream.OverflowPolicy.DROP,
+            line -> {
+              processing.countDown();
+              Uninterruptibles.awaitUninterruptibly(release);
+              processedLines.add(line);
+              return true;
+            });
+    byte[] first = "first\n".getBytes(StandardCharsets.UTF_8);
+    stream.write(first, 0, first.length);
+    processing.await();
+    // The processor is stuck on the first line, so only two more fit in the queue
+    byte[] more = "a\nb\nc\nd\n".getBytes(StandardCharsets.UTF_8);
+    stream.write(more, 0, more.length);
+    release.countDown();
+    stream.close();
+
+    assertThat(processedLines).containsExactly("first", "a", "b").inOrder();
+    assertThat(stream.getStats().droppedLines).isEqualTo(2L);
+  }
+
+  private void write(String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    stream.write(bytes, 0, bytes.length);
+  }
+}
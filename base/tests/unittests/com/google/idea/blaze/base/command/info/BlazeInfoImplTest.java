@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.command.info;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.command.info.BlazeInfoImpl.CacheKey;
+import com.google.idea.blaze.base.command.info.BlazeInfoImpl.CachedResult;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlazeInfoImpl}. */
+@RunWith(JUnit4.class)
+public class BlazeInfoImplTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private WorkspaceRoot workspaceRoot;
+  private File binary;
+
+  @Before
+  public void setUp() throws IOException {
+    workspaceRoot = new WorkspaceRoot(folder.newFolder("workspace"));
+    binary = folder.newFile("bazel");
+    write(binary, "binary");
+  }
+
+  @Test
+  public void testCacheKeyUnchanged() {
+    assertThat(createKey()).isNotNull();
+    assertThat(createKey()).isEqualTo(createKey());
+  }
+
+  @Test
+  public void testNoCacheKeyWithoutBinary() {
+    File missing = new File(folder.getRoot(), "missing");
+    assertThat(CacheKey.create(ImmutableList.of(missing.getPath(), "info"), workspaceRoot))
+        .isNull();
+  }
+
+  @Test
+  public void testCacheKeyChangesWithBinary() throws IOException {
+    CacheKey before = createKey();
+    write(binary, "updated binary");
+    assertThat(createKey()).isNotEqualTo(before);
+  }
+
+  @Test
+  public void testCacheKeyChangesWithWorkspaceRcFile() throws IOException {
+    CacheKey before = createKey();
+    write(workspaceFile(".bazelrc"), "build --jobs=8\n");
+    CacheKey created = createKey();
+    assertThat(created).isNotEqualTo(before);
+
+    write(workspaceFile(".bazelrc"), "build --jobs=16\n");
+    assertThat(createKey()).isNotEqualTo(created);
+  }
+
+  @Test
+  public void testCacheKeyChangesWithImportedRcFiles() throws IOException {
+    write(
+        workspaceFile(".bazelrc"),
+        "import %workspace%/tools/common.bazelrc\ntry-import user.bazelrc\n");
+    write(workspaceFile("tools/common.bazelrc"), "import %workspace%/tools/nested.bazelrc\n");
+    write(workspaceFile("tools/nested.bazelrc"), "build --jobs=8\n");
+    CacheKey before = createKey();
+
+    write(workspaceFile("tools/nested.bazelrc"), "build --jobs=16\n");
+    CacheKey nestedChanged = createKey();
+    assertThat(nestedChanged).isNotEqualTo(before);
+
+    // Optional imports are picked up once they exist
+    write(workspaceFile("user.bazelrc"), "build --config=local\n");
+    assertThat(createKey()).isNotEqualTo(nestedChanged);
+  }
+
+  @Test
+  public void testCacheKeyChangesWithRcFileFlag() throws IOException {
+    File rcFile = folder.newFile("flag.bazelrc");
+    write(rcFile, "build --jobs=8\n");
+    ImmutableList<String> commandLine =
+        ImmutableList.of(binary.getPath(), "info", "--bazelrc=" + rcFile.getPath());
+    CacheKey before = CacheKey.create(commandLine, workspaceRoot);
+
+    write(rcFile, "build --jobs=16\n");
+    assertThat(CacheKey.create(commandLine, workspaceRoot)).isNotEqualTo(before);
+  }
+
+  @Test
+  public void testCachedResultInvalidOnceOutputBaseDeleted() throws IOException {
+    File outputBase = folder.newFolder("output_base");
+    byte[] output =
+        bytes("execution_root: /exec/root\noutput_base: " + outputBase.getPath() + "\n");
+
+    File parsedOutputBase = BlazeInfoImpl.getOutputBase(null, output);
+    assertThat(parsedOutputBase).isEqualTo(outputBase);
+    CachedResult result = new CachedResult(output, parsedOutputBase);
+    assertThat(result.isValid()).isTrue();
+
+    assertThat(outputBase.delete()).isTrue();
+    assertThat(result.isValid()).isFalse();
+  }
+
+  @Test
+  public void testOutputBaseFromSingleKey() {
+    assertThat(BlazeInfoImpl.getOutputBase(BlazeInfo.EXECUTION_ROOT_KEY, bytes("/exec/root\n")))
+        .isEqualTo(new File("/exec/root"));
+    assertThat(BlazeInfoImpl.getOutputBase(BlazeInfo.RELEASE, bytes("release 0.5.0\n")))
+        .isNull();
+  }
+
+  @Test
+  public void testOutputChangedIgnoresVolatileKeys() {
+    byte[] output = bytes("output_base: /output/base\nused-heap-size: 100MB\nserver_pid: 12\n");
+
+    assertThat(
+            BlazeInfoImpl.outputChanged(
+                null,
+                output,
+                bytes("output_base: /output/base\nused-heap-size: 200MB\nserver_pid: 34\n")))
+        .isFalse();
+    assertThat(
+            BlazeInfoImpl.outputChanged(
+                null, output, bytes("output_base: /other/base\nused-heap-size: 100MB\n")))
+        .isTrue();
+    assertThat(BlazeInfoImpl.outputChanged("used-heap-size", bytes("100MB"), bytes("200MB")))
+        .isFalse();
+    assertThat(BlazeInfoImpl.outputChanged(BlazeInfo.RELEASE, bytes("0.5.0"), bytes("0.5.1")))
+        .isTrue();
+  }
+
+  private CacheKey createKey() {
+    return CacheKey.create(ImmutableList.of(binary.getPath(), "info"), workspaceRoot);
+  }
+
+  private File workspaceFile(String relativePath) {
+    return new File(workspaceRoot.directory(), relativePath);
+  }
+
+  private static void write(File file, String contents) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), bytes(contents));
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.console;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.intellij.execution.ui.ConsoleViewContentType;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ConsoleOutputBuffer}. */
+@RunWith(JUnit4.class)
+public class ConsoleOutputBufferTest {
+  private static final ConsoleViewContentType NORMAL = ConsoleViewContentType.NORMAL_OUTPUT;
+  private static final ConsoleViewContentType ERROR = ConsoleViewContentType.ERROR_OUTPUT;
+
+  private final ConsoleOutputBuffer buffer = new ConsoleOutputBuffer(1024);
+
+  @Test
+  public void testOutputOfSameTypeIsCoalesced() {
+    assertThat(buffer.append("one", NORMAL)).isTrue();
+    assertThat(buffer.append("\n", NORMAL)).isFalse();
+    buffer.append("two\n", NORMAL);
+    buffer.append("three\n", ERROR);
+    buffer.append("four\n", NORMAL);
+
+    ImmutableList<ConsoleOutputBuffer.Chunk> chunks = buffer.drain();
+
+    assertThat(texts(chunks)).containsExactly("one\ntwo\n", "three\n", "four\n").inOrder();
+    assertThat(chunks.get(1).contentType).isEqualTo(ERROR);
+    assertThat(buffer.drain()).isEmpty();
+    assertThat(buffer.append("five\n", NORMAL)).isTrue();
+  }
+
+  @Test
+  public void testSupersededProgressLinesAreDropped() {
+    buffer.append("[1 / 10] Compiling a.cc", NORMAL);
+    buffer.append("\n", NORMAL);
+    buffer.append("[2 / 10] Compiling b.cc\n", NORMAL);
+    buffer.append("[3 / 10] ", ERROR);
+    buffer.append("Compiling c.cc\n", NORMAL);
+    buffer.append("b.cc:1: warning: unused\n", NORMAL);
+    buffer.append("[1,004 / 1,010] Linking\n", NORMAL);
+    buffer.append("partial", NORMAL);
+
+    assertThat(String.join("", texts(buffer.drain())))
+        .isEqualTo(
+            "[3 / 10] Compiling c.cc\nb.cc:1: warning: unused\n[1,004 / 1,010] Linking\npartial");
+  }
+
+  @Test
+  public void testProgressLinesAlreadyFlushedAreKept() {
+    buffer.append("[1 / 10] Compiling a.cc\n", NORMAL);
+    buffer.drain();
+    buffer.append("[2 / 10] Compiling b.cc\n", NORMAL);
+
+    assertThat(texts(buffer.drain())).containsExactly("[2 / 10] Compiling b.cc\n");
+  }
+
+  @Test
+  public void testOldestOutputDroppedWhenFull() {
+    ConsoleOutputBuffer buffer = new ConsoleOutputBuffer(10);
+    buffer.append("12345\n", NORMAL);
+    buffer.append("67890\n", NORMAL);
+    buffer.append("abc\n", NORMAL);
+
+    List<String> texts = texts(buffer.drain());
+
+    assertThat(texts).containsExactly("[6 characters of output skipped]\n", "67890\nabc\n");
+  }
+
+  @Test
+  public void testClearDiscardsOutput() {
+    buffer.append("one\n", NORMAL);
+    buffer.clear();
+
+    assertThat(buffer.drain()).isEmpty();
+  }
+
+  private static List<String> texts(List<ConsoleOutputBuffer.Chunk> chunks) {
+    return chunks.stream().map(chunk -> chunk.text).collect(Collectors.toList());
+  }
+}
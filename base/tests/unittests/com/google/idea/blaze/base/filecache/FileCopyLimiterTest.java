@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.filecache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link FileCopyLimiter}. */
+@RunWith(JUnit4.class)
+public class FileCopyLimiterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final FileCopyLimiter limiter = new FileCopyLimiter(4);
+
+  @Test
+  public void testFileLargerThanBudgetIsCopied() throws IOException {
+    File source = createFile("large.jar", 10 * 1024);
+    File target = new File(folder.getRoot(), "copy.jar");
+
+    limiter.copy(source.toPath(), target.toPath());
+
+    assertThat(target.length()).isEqualTo(10 * 1024L);
+    assertThat(limiter.availableKb()).isEqualTo(4);
+  }
+
+  @Test
+  public void testBudgetIsReleasedWhenCopyFails() throws IOException {
+    File source = createFile("source.jar", 1024);
+    File target = createFile("target.jar", 1);
+
+    try {
+      limiter.copy(source.toPath(), target.toPath());
+      throw new AssertionError("Expected the copy to fail");
+    } catch (FileAlreadyExistsException e) {
+      // expected
+    }
+    assertThat(limiter.availableKb()).isEqualTo(4);
+  }
+
+  private File createFile(String name, int size) throws IOException {
+    File file = folder.newFile(name);
+    Files.write(file.toPath(), new byte[size]);
+    return file;
+  }
+}
@@ -314,6 +314,41 @@ public class BlazeIssueParserTest extends BlazeTestCase {
     assertNull(issue.getFile());
   }
 
+  @Test
+  public void testLiteralPrefix() {
+    assertThat(BlazeIssueParser.literalPrefix("^ERROR: (/.*?BUILD):([0-9]+)"))
+        .containsExactly("ERROR: ");
+    assertThat(BlazeIssueParser.literalPrefix("no such target '(.*)'"))
+        .containsExactly("no such target '");
+    assertThat(BlazeIssueParser.literalPrefix("abc?d")).containsExactly("ab");
+    assertThat(BlazeIssueParser.literalPrefix("^([^/].*?):")).isEmpty();
+    assertThat(BlazeIssueParser.literalPrefix("foo|bar")).isEmpty();
+  }
+
+  @Test
+  public void testParserSkippedWhenRequiredLiteralMissing() {
+    BlazeIssueParser.SingleLineParser parser =
+        new BlazeIssueParser.SingleLineParser("^(.*)$", ImmutableList.of("TEST")) {
+          @Override
+          protected IssueOutput createIssue(Matcher matcher) {
+            return IssueOutput.warn(matcher.group(1)).build();
+          }
+        };
+    BlazeIssueParser blazeIssueParser = new BlazeIssueParser(ImmutableList.of(parser));
+    assertNull(blazeIssueParser.parseIssue("INFO: Found 1 target..."));
+    assertNotNull(blazeIssueParser.parseIssue("A TEST message"));
+  }
+
+  @Test
+  public void testCompileWarningMatchesSecondRequiredLiteral() {
+    BlazeIssueParser blazeIssueParser = new BlazeIssueParser(parsers);
+    IssueOutput issue =
+        blazeIssueParser.parseIssue("java/com/google/Foo.java:3: warning: [deprecation] Bar");
+    assertNotNull(issue);
+    assertThat(issue.getCategory()).isEqualTo(IssueOutput.Category.WARNING);
+    assertNull(blazeIssueParser.parseIssue("java/com/google/Foo.java:3: note: Bar"));
+  }
+
   /** Simple Parser for testing */
   private static class TestParser extends BlazeIssueParser.SingleLineParser {
 
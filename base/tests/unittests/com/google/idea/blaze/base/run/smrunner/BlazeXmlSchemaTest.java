@@ -18,11 +18,13 @@ package com.google.idea.blaze.base.run.smrunner;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.idea.blaze.base.run.smrunner.BlazeXmlSchema.TestSuite;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -67,5 +69,89 @@ public class BlazeXmlSchemaTest {
         new ByteArrayInputStream(Joiner.on('\n').join(lines).getBytes(StandardCharsets.UTF_8));
     TestSuite parsed = BlazeXmlSchema.parse(stream);
     assertThat(parsed).isNotNull();
+    assertThat(parsed.testSuites).hasSize(2);
+    assertThat(parsed.testSuites.get(1).testCases.get(0).time).isEqualTo("12.2");
+  }
+
+  @Test
+  public void testTopLevelSuitesPassedToConsumerAsRead() {
+    List<String> lines =
+        ImmutableList.of(
+            "<testsuites>",
+            "  <testsuite name='foo'>",
+            "    <testsuite name='foo.Inner'><testcase name='a' /></testsuite>",
+            "  </testsuite>",
+            "  <testsuite name='bar' />",
+            "</testsuites>");
+    List<String> names = new ArrayList<>();
+    BlazeXmlSchema.parse(toStream(lines), suite -> names.add(suite.name));
+    assertThat(names).containsExactly("foo", "bar").inOrder();
+  }
+
+  @Test
+  public void testTestCaseResultsAndOutput() {
+    List<String> lines =
+        ImmutableList.of(
+            "<testsuite name='foo' tests='2' failures='1' time='1.5'>",
+            "  <testcase name='passes' status='run' time='0.5'>",
+            "    <system-out>line 1&#xA;line 2</system-out>",
+            "  </testcase>",
+            "  <testcase name='fails' status='run' time='1.0'>",
+            "    <failure message='expected 1' type='AssertionError'>",
+            "      <![CDATA[at Foo.fails(Foo.java:12)]]>",
+            "    </failure>",
+            "  </testcase>",
+            "  <system-err>suite output</system-err>",
+            "</testsuite>");
+    TestSuite suite = BlazeXmlSchema.parse(toStream(lines));
+
+    assertThat(suite.name).isEqualTo("foo");
+    assertThat(suite.failures).isEqualTo(1);
+    assertThat(suite.time).isEqualTo(1.5);
+    assertThat(suite.sysErr).isEqualTo("suite output");
+    assertThat(suite.testCases).hasSize(2);
+    assertThat(suite.testCases.get(0).sysOut).isEqualTo("line 1\nline 2");
+    assertThat(suite.testCases.get(0).failure).isNull();
+    BlazeXmlSchema.ErrorOrFailureOrSkipped failure = suite.testCases.get(1).failure;
+    assertThat(failure.message).isEqualTo("expected 1");
+    assertThat(failure.type).isEqualTo("AssertionError");
+    assertThat(failure.content.trim()).isEqualTo("at Foo.fails(Foo.java:12)");
+  }
+
+  @Test
+  public void testLongOutputIsTruncated() {
+    String output = Strings.repeat("x", BlazeXmlSchema.MAX_TEXT_LENGTH + 10);
+    List<String> lines =
+        ImmutableList.of(
+            "<testsuite name='foo'>",
+            "  <testcase name='a'><system-out>" + output + "</system-out></testcase>",
+            "</testsuite>");
+    TestSuite suite = BlazeXmlSchema.parse(toStream(lines));
+
+    String sysOut = suite.testCases.get(0).sysOut;
+    assertThat(sysOut).startsWith(output.substring(0, BlazeXmlSchema.MAX_TEXT_LENGTH));
+    assertThat(sysOut).endsWith("[10 characters truncated]\n");
+  }
+
+  @Test
+  public void testTotalOutputIsBounded() {
+    String output = Strings.repeat("x", BlazeXmlSchema.MAX_TEXT_LENGTH);
+    int testCount = BlazeXmlSchema.MAX_TOTAL_OUTPUT_LENGTH / BlazeXmlSchema.MAX_TEXT_LENGTH + 1;
+    List<String> lines = new ArrayList<>();
+    lines.add("<testsuite name='foo'>");
+    for (int i = 0; i < testCount; i++) {
+      lines.add("<testcase name='t" + i + "'><system-out>" + output + "</system-out></testcase>");
+    }
+    lines.add("</testsuite>");
+    TestSuite suite = BlazeXmlSchema.parse(toStream(lines));
+
+    assertThat(suite.testCases).hasSize(testCount);
+    assertThat(suite.testCases.get(testCount - 2).sysOut).isEqualTo(output);
+    assertThat(suite.testCases.get(testCount - 1).sysOut)
+        .isEqualTo("\n[" + BlazeXmlSchema.MAX_TEXT_LENGTH + " characters truncated]\n");
+  }
+
+  private static InputStream toStream(List<String> lines) {
+    return new ByteArrayInputStream(Joiner.on('\n').join(lines).getBytes(StandardCharsets.UTF_8));
   }
 }
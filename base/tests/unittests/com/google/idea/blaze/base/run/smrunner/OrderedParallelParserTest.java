@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.smrunner;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OrderedParallelParser}. */
+@RunWith(JUnit4.class)
+public class OrderedParallelParserTest {
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testResultsConsumedInInputOrder() {
+    // Earlier inputs take longer to parse, so finish after later ones
+    List<Integer> inputs = ImmutableList.of(50, 40, 30, 20, 10, 0);
+    List<Integer> consumed = Lists.newArrayList();
+
+    OrderedParallelParser.parseInOrder(
+        inputs,
+        input -> {
+          Uninterruptibles.sleepUninterruptibly(input, TimeUnit.MILLISECONDS);
+          return input;
+        },
+        (input, result) -> {
+          assertThat(result).isEqualTo(input);
+          consumed.add(result);
+        },
+        executor,
+        4);
+
+    assertThat(consumed).containsExactlyElementsIn(inputs).inOrder();
+  }
+
+  @Test
+  public void testParsesAtMostMaxParsedAheadOfConsumer() {
+    List<Integer> inputs = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      inputs.add(i);
+    }
+    AtomicInteger parseStarted = new AtomicInteger();
+    AtomicInteger consumedCount = new AtomicInteger();
+    List<Integer> parsedAhead = Lists.newArrayList();
+
+    OrderedParallelParser.parseInOrder(
+        inputs,
+        input -> {
+          parseStarted.incrementAndGet();
+          return input;
+        },
+        (input, result) -> {
+          // Give any over-eager parses time to start
+          Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+          parsedAhead.add(parseStarted.get() - consumedCount.getAndIncrement());
+        },
+        executor,
+        3);
+
+    assertThat(consumedCount.get()).isEqualTo(inputs.size());
+    for (int ahead : parsedAhead) {
+      assertThat(ahead).isAtMost(3);
+    }
+    assertThat(parsedAhead).contains(3);
+  }
+
+  @Test
+  public void testFailedParseIsSkipped() {
+    List<Integer> consumed = Lists.newArrayList();
+
+    OrderedParallelParser.parseInOrder(
+        ImmutableList.of(1, 2, 3, 4),
+        input -> {
+          if (input == 2) {
+            throw new IllegalStateException("Failed to parse " + input);
+          }
+          return input;
+        },
+        (input, result) -> consumed.add(result),
+        executor,
+        2);
+
+    assertThat(consumed).containsExactly(1, 3, 4).inOrder();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.smrunner;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.run.testlogs.CompletedTestTarget;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TestTargetCompletionTracker}. */
+@RunWith(JUnit4.class)
+public class TestTargetCompletionTrackerTest {
+  private static final long START_MILLIS = 1_500_000_000_000L;
+  private static final String STDOUT = "stdout";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private TestTargetCompletionTracker tracker;
+  private long nowMillis = START_MILLIS;
+
+  @Before
+  public void setUp() {
+    tracker =
+        new TestTargetCompletionTracker(
+            label -> new File(folder.getRoot(), label.targetName() + ".xml"), START_MILLIS);
+  }
+
+  @Test
+  public void testTargetWithReportedStatusIsComplete() throws Exception {
+    writeTestXml("foo_test", START_MILLIS);
+    writeTestXml("bar_test", START_MILLIS);
+
+    List<Label> completed =
+        labels(
+            output(
+                "FAIL: //pkg:foo_test (see /tmp/test.log)\n"
+                    + "//pkg:bar_test    \u001B[32mPASSED\u001B[0m in 1.2s\n"
+                    + "FAIL: //pkg:missing_test (see /tmp/test.log)\n"));
+
+    assertThat(completed)
+        .containsExactly(new Label("//pkg:foo_test"), new Label("//pkg:bar_test"))
+        .inOrder();
+  }
+
+  @Test
+  public void testStatusLineSplitAcrossOutput() throws Exception {
+    writeTestXml("foo_test", START_MILLIS);
+
+    assertThat(output("FAIL: //pkg:fo")).isEmpty();
+    assertThat(labels(output("o_test (see /tmp/test.log)\n")))
+        .containsExactly(new Label("//pkg:foo_test"));
+  }
+
+  @Test
+  public void testRunningTargetCompleteOnceTestXmlUnchanged() throws Exception {
+    assertThat(output("[5 / 10] Testing //pkg:foo_test; 3s linux-sandbox\n")).isEmpty();
+
+    // Written during this run, but may not be complete yet
+    writeTestXml("foo_test", START_MILLIS + 2000);
+    nowMillis += TestTargetCompletionTracker.POLL_INTERVAL_MILLIS;
+    assertThat(output("[6 / 10] Testing //pkg:foo_test; 4s linux-sandbox\n")).isEmpty();
+
+    nowMillis += TestTargetCompletionTracker.POLL_INTERVAL_MILLIS;
+    assertThat(labels(output("[6 / 10] Testing //pkg:foo_test; 5s linux-sandbox\n")))
+        .containsExactly(new Label("//pkg:foo_test"));
+
+    nowMillis += TestTargetCompletionTracker.POLL_INTERVAL_MILLIS;
+    assertThat(output("[7 / 10] Linking\n")).isEmpty();
+  }
+
+  @Test
+  public void testTestXmlFromEarlierRunIsIgnored() throws Exception {
+    writeTestXml("foo_test", START_MILLIS - 60_000);
+    output("[5 / 10] Testing //pkg:foo_test; 3s linux-sandbox\n");
+
+    for (int i = 0; i < 3; i++) {
+      nowMillis += TestTargetCompletionTracker.POLL_INTERVAL_MILLIS;
+      assertThat(output("[5 / 10] Testing //pkg:foo_test; 4s linux-sandbox\n")).isEmpty();
+    }
+  }
+
+  private List<CompletedTestTarget> output(String text) {
+    return tracker.onOutput(text, STDOUT, nowMillis);
+  }
+
+  private void writeTestXml(String targetName, long lastModified) throws IOException {
+    File testXml = folder.newFile(targetName + ".xml");
+    Files.write(testXml.toPath(), "<testsuites/>".getBytes(StandardCharsets.UTF_8));
+    assertThat(testXml.setLastModified(lastModified)).isTrue();
+  }
+
+  private static List<Label> labels(List<CompletedTestTarget> targets) {
+    return targets.stream().map(target -> target.label).collect(Collectors.toList());
+  }
+}
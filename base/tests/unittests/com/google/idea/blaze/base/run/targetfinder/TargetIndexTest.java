@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.targetfinder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TargetIndex}. */
+@RunWith(JUnit4.class)
+public class TargetIndexTest {
+  private final TargetIdeInfo fooLibrary =
+      TargetIdeInfo.builder().setLabel("//foo:lib").setKind(Kind.JAVA_LIBRARY).build();
+  private final TargetIdeInfo fooTest =
+      TargetIdeInfo.builder().setLabel("//foo:test").setKind(Kind.JAVA_TEST).build();
+  private final TargetIdeInfo barTest =
+      TargetIdeInfo.builder().setLabel("//bar:test").setKind(Kind.JAVA_TEST).build();
+  private final TargetIdeInfo androidLibrary =
+      TargetIdeInfo.builder().setLabel("//bar:android").setKind(Kind.ANDROID_LIBRARY).build();
+
+  private final TargetIndex index =
+      new TargetIndex(
+          TargetMapBuilder.builder()
+              .addTarget(fooLibrary)
+              .addTarget(fooTest)
+              .addTarget(barTest)
+              .addTarget(androidLibrary)
+              .build());
+
+  @Test
+  public void testTargetsForLabel() {
+    assertThat(index.targetsForLabel(new Label("//foo:test"))).containsExactly(fooTest);
+    assertThat(index.targetsForLabel(new Label("//foo:missing"))).isEmpty();
+  }
+
+  @Test
+  public void testTargetsOfKinds() {
+    assertThat(index.targetsOfKinds(ImmutableList.of(Kind.JAVA_TEST)))
+        .containsExactly(fooTest, barTest);
+    assertThat(index.targetsOfKinds(ImmutableList.of(Kind.JAVA_TEST, Kind.JAVA_LIBRARY)))
+        .containsExactly(fooTest, barTest, fooLibrary);
+    assertThat(index.targetsOfKinds(ImmutableList.of(Kind.JAVA_TEST, Kind.JAVA_TEST)))
+        .containsExactly(fooTest, barTest);
+    assertThat(index.targetsOfKinds(ImmutableList.of(Kind.CC_TEST))).isEmpty();
+  }
+
+  @Test
+  public void testFindTargetsOnlyTestsTargetsOfGivenKinds() {
+    assertThat(
+            index.findTargets(
+                ImmutableList.of(Kind.JAVA_TEST, Kind.ANDROID_LIBRARY),
+                target -> target.key.label.toString().startsWith("//bar")))
+        .containsExactly(barTest, androidLibrary);
+    assertThat(
+            index.findTargets(
+                ImmutableList.of(Kind.JAVA_LIBRARY),
+                target -> {
+                  assertThat(target.kind).isEqualTo(Kind.JAVA_LIBRARY);
+                  return true;
+                }))
+        .containsExactly(fooLibrary);
+  }
+
+  @Test
+  public void testTargetsOfLanguageClass() {
+    assertThat(index.targetsOfLanguageClass(LanguageClass.JAVA))
+        .containsExactly(fooLibrary, fooTest, barTest);
+    assertThat(index.targetsOfLanguageClass(LanguageClass.ANDROID))
+        .containsExactly(androidLibrary);
+  }
+}
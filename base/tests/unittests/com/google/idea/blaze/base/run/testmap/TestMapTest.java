@@ -17,11 +17,9 @@ package com.google.idea.blaze.base.run.testmap;
 
 import static com.google.common.truth.Truth.assertThat;
 
-import com.google.common.collect.ImmutableMultimap;
 import com.google.idea.blaze.base.BlazeTestCase;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
-import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
 import com.google.idea.blaze.base.model.primitives.Label;
@@ -30,6 +28,7 @@ import com.google.idea.blaze.base.targetmaps.ReverseDependencyMap;
 import com.google.idea.common.experiments.ExperimentService;
 import com.google.idea.common.experiments.MockExperimentService;
 import java.io.File;
+import javax.annotation.Nullable;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -64,11 +63,8 @@ public class TestMapTest extends BlazeTestCase {
                     .addSource(sourceRoot("test/Test.java")))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"));
   }
 
@@ -90,11 +86,8 @@ public class TestMapTest extends BlazeTestCase {
                     .addSource(sourceRoot("test/Test.java")))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"));
   }
 
@@ -122,11 +115,8 @@ public class TestMapTest extends BlazeTestCase {
                     .addSource(sourceRoot("test/Test.java")))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"), new Label("//test:test2"));
   }
 
@@ -160,11 +150,8 @@ public class TestMapTest extends BlazeTestCase {
                     .addDependency("//test:lib"))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"), new Label("//test:test2"))
         .inOrder();
   }
@@ -199,11 +186,8 @@ public class TestMapTest extends BlazeTestCase {
                     .addSource(sourceRoot("test/Test.java")))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"), new Label("//test:test2"));
   }
 
@@ -232,15 +216,121 @@ public class TestMapTest extends BlazeTestCase {
                     .addSource(sourceRoot("test/Test.java")))
             .build();
 
-    FilteredTargetMap testMap =
-        TestTargetFilterImpl.computeTestMap(project, artifactLocationDecoder, targetMap);
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencies =
-        ReverseDependencyMap.createRdepsMap(targetMap);
-    assertThat(testMap.targetsForSourceFile(reverseDependencies, new File("/test/Test.java")))
+    FilteredTargetMap testMap = computeTestMap(targetMap, null);
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
         .containsExactly(new Label("//test:test"));
   }
 
-  private ArtifactLocation sourceRoot(String relativePath) {
+  @Test
+  public void testIncrementalUpdateAddsNewTest() throws Exception {
+    TargetIdeInfo test =
+        TargetIdeInfo.builder()
+            .setBuildFile(sourceRoot("test/BUILD"))
+            .setLabel("//test:test")
+            .setKind("java_test")
+            .addDependency("//test:lib")
+            .build();
+    TargetIdeInfo lib =
+        TargetIdeInfo.builder()
+            .setBuildFile(sourceRoot("test/BUILD"))
+            .setLabel("//test:lib")
+            .setKind("java_library")
+            .addSource(sourceRoot("test/Test.java"))
+            .build();
+    addUnrelatedTargets(targetMapBuilder.addTarget(test).addTarget(lib));
+    FilteredTargetMap previous = computeTestMap(targetMapBuilder.build(), null);
+
+    TargetMapBuilder newTargetMapBuilder =
+        TargetMapBuilder.builder()
+            .addTarget(test)
+            .addTarget(lib)
+            .addTarget(
+                TargetIdeInfo.builder()
+                    .setBuildFile(sourceRoot("test/BUILD"))
+                    .setLabel("//test:test2")
+                    .setKind("java_test")
+                    .addDependency("//test:lib"));
+    addUnrelatedTargets(newTargetMapBuilder);
+    FilteredTargetMap testMap = computeTestMap(newTargetMapBuilder.build(), previous);
+
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java")))
+        .containsExactly(new Label("//test:test"), new Label("//test:test2"));
+    assertThat(testMap.targetLabelsForSourceFile(new File("/other/Other0.java")))
+        .containsExactly(new Label("//other:test0"));
+  }
+
+  @Test
+  public void testIncrementalUpdateDropsRemovedTest() throws Exception {
+    TargetIdeInfo test =
+        TargetIdeInfo.builder()
+            .setBuildFile(sourceRoot("test/BUILD"))
+            .setLabel("//test:test")
+            .setKind("java_test")
+            .addDependency("//test:lib")
+            .build();
+    TargetIdeInfo lib =
+        TargetIdeInfo.builder()
+            .setBuildFile(sourceRoot("test/BUILD"))
+            .setLabel("//test:lib")
+            .setKind("java_library")
+            .addSource(sourceRoot("test/Test.java"))
+            .build();
+    addUnrelatedTargets(targetMapBuilder.addTarget(test).addTarget(lib));
+    FilteredTargetMap previous = computeTestMap(targetMapBuilder.build(), null);
+
+    TargetMapBuilder newTargetMapBuilder = TargetMapBuilder.builder().addTarget(lib);
+    addUnrelatedTargets(newTargetMapBuilder);
+    FilteredTargetMap testMap = computeTestMap(newTargetMapBuilder.build(), previous);
+
+    assertThat(testMap.targetLabelsForSourceFile(new File("/test/Test.java"))).isEmpty();
+    assertThat(testMap.targetLabelsForSourceFile(new File("/other/Other0.java")))
+        .containsExactly(new Label("//other:test0"));
+  }
+
+  private FilteredTargetMap computeTestMap(
+      TargetMap targetMap, @Nullable FilteredTargetMap previousTestMap) {
+    return TestTargetFilterImpl.computeTestMap(
+        artifactLocationDecoder,
+        targetMap,
+        ReverseDependencyMap.createRdepsMap(targetMap),
+        previousTestMap);
+  }
+
+  /** Targets unaffected by changes to //test, so an incremental update has something to reuse. */
+  private final TargetIdeInfo[] unrelatedTargets = {
+    TargetIdeInfo.builder()
+        .setBuildFile(sourceRoot("other/BUILD"))
+        .setLabel("//other:test0")
+        .setKind("java_test")
+        .addSource(sourceRoot("other/Other0.java"))
+        .build(),
+    TargetIdeInfo.builder()
+        .setBuildFile(sourceRoot("other/BUILD"))
+        .setLabel("//other:test1")
+        .setKind("java_test")
+        .addSource(sourceRoot("other/Other1.java"))
+        .build(),
+    TargetIdeInfo.builder()
+        .setBuildFile(sourceRoot("other/BUILD"))
+        .setLabel("//other:test2")
+        .setKind("java_test")
+        .addSource(sourceRoot("other/Other2.java"))
+        .build(),
+    TargetIdeInfo.builder()
+        .setBuildFile(sourceRoot("other/BUILD"))
+        .setLabel("//other:test3")
+        .setKind("java_test")
+        .addSource(sourceRoot("other/Other3.java"))
+        .build(),
+  };
+
+  private void addUnrelatedTargets(TargetMapBuilder builder) {
+    for (TargetIdeInfo target : unrelatedTargets) {
+      builder.addTarget(target);
+    }
+  }
+
+  private static ArtifactLocation sourceRoot(String relativePath) {
     return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(true).build();
   }
 }
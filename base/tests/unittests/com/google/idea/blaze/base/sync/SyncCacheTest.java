@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataManager;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SyncCache}. */
+@RunWith(JUnit4.class)
+public class SyncCacheTest extends BlazeTestCase {
+  private SyncCache syncCache;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    projectServices.register(
+        BlazeProjectDataManager.class,
+        new MockBlazeProjectDataManager(
+            MockBlazeProjectDataBuilder.builder(new WorkspaceRoot(new File("/"))).build()));
+    syncCache = new SyncCache(project);
+  }
+
+  @Test
+  public void testValueIsComputedOnceUntilCleared() {
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> computable =
+        (project, projectData) -> computations.incrementAndGet();
+
+    assertThat(syncCache.get("key", computable)).isEqualTo(1);
+    assertThat(syncCache.get("key", computable)).isEqualTo(1);
+    syncCache.clear();
+    assertThat(syncCache.get("key", computable)).isEqualTo(2);
+
+    SyncCache.Stats stats = syncCache.getStats().get("key");
+    assertThat(stats.hits).isEqualTo(1L);
+    assertThat(stats.misses).isEqualTo(2L);
+  }
+
+  @Test
+  public void testNullValuesAreNotCached() {
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Object> computable =
+        (project, projectData) -> {
+          computations.incrementAndGet();
+          return null;
+        };
+
+    assertThat(syncCache.get("key", computable)).isNull();
+    assertThat(syncCache.get("key", computable)).isNull();
+    assertThat(computations.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testComputationReadingItsOwnKeyComputesDirectly() {
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> computable =
+        new SyncCache.SyncCacheComputable<Integer>() {
+          @Override
+          public Integer compute(Project project, BlazeProjectData projectData) {
+            if (computations.incrementAndGet() == 1) {
+              return syncCache.get("key", this) + 10;
+            }
+            return computations.get();
+          }
+        };
+
+    assertThat(syncCache.get("key", computable)).isEqualTo(12);
+    assertThat(syncCache.get("key", computable)).isEqualTo(12);
+    assertThat(computations.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testErrorsAreRethrownUnwrappedAndNotCached() {
+    AtomicInteger computations = new AtomicInteger();
+    AssertionError error = new AssertionError("computation failed");
+    SyncCache.SyncCacheComputable<Integer> computable =
+        (project, projectData) -> {
+          if (computations.incrementAndGet() == 1) {
+            throw error;
+          }
+          return computations.get();
+        };
+
+    try {
+      syncCache.get("key", computable);
+      fail("Expected the computable's error");
+    } catch (AssertionError e) {
+      assertThat(e).isSameAs(error);
+    }
+    assertThat(syncCache.get("key", computable)).isEqualTo(2);
+  }
+
+  @Test
+  public void testConcurrentReadersShareComputation() throws Exception {
+    CountDownLatch computationStarted = new CountDownLatch(1);
+    CountDownLatch finishComputation = new CountDownLatch(1);
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> slowComputable =
+        (project, projectData) -> {
+          computationStarted.countDown();
+          try {
+            finishComputation.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return computations.incrementAndGet();
+        };
+
+    Thread firstReader = new Thread(() -> syncCache.get("slow", slowComputable));
+    firstReader.start();
+    computationStarted.await();
+
+    // Other keys aren't blocked by the computation in progress
+    assertThat(syncCache.get("fast", (project, projectData) -> "value")).isEqualTo("value");
+
+    Thread secondReader = new Thread(() -> syncCache.get("slow", slowComputable));
+    secondReader.start();
+    finishComputation.countDown();
+    firstReader.join();
+    secondReader.join();
+
+    assertThat(computations.get()).isEqualTo(1);
+    assertThat(syncCache.get("slow", slowComputable)).isEqualTo(1);
+  }
+}
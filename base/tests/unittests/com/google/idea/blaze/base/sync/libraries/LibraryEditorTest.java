@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.libraries;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.sync.libraries.LibraryEditor.LibraryDiff;
+import com.intellij.openapi.roots.OrderRootType;
+import com.intellij.openapi.roots.libraries.Library;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LibraryEditor}. */
+@RunWith(JUnit4.class)
+public class LibraryEditorTest {
+  private static final ImmutableListMultimap<OrderRootType, String> FOO_ROOTS =
+      ImmutableListMultimap.of(
+          OrderRootType.CLASSES, "jar:///foo.jar!/", OrderRootType.SOURCES, "jar:///foo-src.jar!/");
+
+  @Test
+  public void testUnchangedLibraryIsNotTouched() {
+    LibraryDiff diff =
+        LibraryEditor.diffLibraries(
+            new Library[] {library("foo", FOO_ROOTS)},
+            ImmutableMap.of("foo", FOO_ROOTS),
+            library -> false);
+
+    assertThat(diff.isEmpty()).isTrue();
+    assertThat(diff.unchangedLibraries).isEqualTo(1);
+  }
+
+  @Test
+  public void testLibraryWithChangedRootsIsChanged() {
+    ImmutableListMultimap<OrderRootType, String> newRoots =
+        ImmutableListMultimap.of(OrderRootType.CLASSES, "jar:///foo2.jar!/");
+
+    LibraryDiff diff =
+        LibraryEditor.diffLibraries(
+            new Library[] {library("foo", FOO_ROOTS)},
+            ImmutableMap.of("foo", newRoots),
+            library -> false);
+
+    assertThat(diff.changedLibraries).containsExactly("foo", newRoots);
+    assertThat(diff.addedLibraries).isEmpty();
+    assertThat(diff.removedLibraries).isEmpty();
+    assertThat(diff.unchangedLibraries).isEqualTo(0);
+  }
+
+  @Test
+  public void testNewLibraryIsAdded() {
+    LibraryDiff diff =
+        LibraryEditor.diffLibraries(
+            new Library[0], ImmutableMap.of("foo", FOO_ROOTS), library -> false);
+
+    assertThat(diff.addedLibraries).containsExactly("foo", FOO_ROOTS);
+    assertThat(diff.changedLibraries).isEmpty();
+  }
+
+  @Test
+  public void testUnusedLibraryIsRemovedUnlessRetained() {
+    Library retained = library("retained", FOO_ROOTS);
+    Library unused = library("unused", FOO_ROOTS);
+
+    LibraryDiff diff =
+        LibraryEditor.diffLibraries(
+            new Library[] {retained, unused},
+            ImmutableMap.<String, ImmutableListMultimap<OrderRootType, String>>of(),
+            library -> library == retained);
+
+    assertThat(diff.removedLibraries).containsExactly("unused");
+    assertThat(diff.addedLibraries).isEmpty();
+    assertThat(diff.changedLibraries).isEmpty();
+  }
+
+  private static Library library(
+      String name, ImmutableListMultimap<OrderRootType, String> rootUrls) {
+    Library library = mock(Library.class);
+    when(library.getName()).thenReturn(name);
+    for (OrderRootType type : ImmutableList.of(OrderRootType.CLASSES, OrderRootType.SOURCES)) {
+      when(library.getUrls(type)).thenReturn(rootUrls.get(type).toArray(new String[0]));
+    }
+    return library;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectstructure;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.io.FileAttributeProvider;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DirectoryStructure}. */
+@RunWith(JUnit4.class)
+public class DirectoryStructureTest extends BlazeTestCase {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final WorkspacePath JAVA = new WorkspacePath("java");
+  private static final WorkspacePath JAVATESTS = new WorkspacePath("javatests");
+
+  private final DirectoryStructure directoryStructure = new DirectoryStructure();
+  private final CountingFileAttributeProvider fileAttributeProvider =
+      new CountingFileAttributeProvider();
+  private WorkspaceRoot workspaceRoot;
+
+  private static class CountingFileAttributeProvider extends FileAttributeProvider {
+    final AtomicInteger listings = new AtomicInteger();
+
+    @Override
+    public File[] listFiles(File file) {
+      listings.incrementAndGet();
+      return super.listFiles(file);
+    }
+  }
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    applicationServices.register(FileAttributeProvider.class, fileAttributeProvider);
+  }
+
+  @Test
+  public void testExcludedDirectoriesAreNotWalked() throws IOException {
+    createDirectories("java/com/foo", "java/com/excluded/bar", "javatests/com/foo");
+
+    ImmutableMap<WorkspacePath, DirectoryStructure.Directory> roots =
+        walk(ImmutableList.of(new WorkspacePath("java/com/excluded")));
+
+    assertThat(roots.keySet()).containsExactly(JAVA, JAVATESTS);
+    DirectoryStructure.Directory com = getChild(roots.get(JAVA), "com");
+    assertThat(childNames(com)).containsExactly("foo");
+    // The excluded directory is never listed: java, com, foo, javatests, com, foo
+    assertThat(fileAttributeProvider.listings.get()).isEqualTo(6);
+  }
+
+  @Test
+  public void testTestSourcesAreMarked() throws IOException {
+    createDirectories("java/com/foo", "javatests/com/foo");
+
+    ImmutableMap<WorkspacePath, DirectoryStructure.Directory> roots = walk(ImmutableList.of());
+
+    assertThat(getChild(roots.get(JAVA), "com").isTest).isFalse();
+    assertThat(getChild(getChild(roots.get(JAVATESTS), "com"), "foo").isTest).isTrue();
+  }
+
+  @Test
+  public void testUnmodifiedDirectoriesAreNotListedAgain() throws IOException {
+    createDirectories("java/com/foo", "java/com/bar", "javatests");
+    setOldModifiedTimes("java", "java/com", "java/com/foo", "java/com/bar", "javatests");
+    walk(ImmutableList.of());
+    fileAttributeProvider.listings.set(0);
+
+    // Add a directory, which changes its parent's modified time
+    createDirectories("java/com/baz");
+    ImmutableMap<WorkspacePath, DirectoryStructure.Directory> roots = walk(ImmutableList.of());
+
+    assertThat(childNames(getChild(roots.get(JAVA), "com"))).containsExactly("foo", "bar", "baz");
+    // Only java/com and the new java/com/baz are listed
+    assertThat(fileAttributeProvider.listings.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReusedListingsAreBounded() throws IOException {
+    DirectoryStructure boundedStructure = new DirectoryStructure(2);
+    createDirectories("java/com/foo", "java/com/bar", "javatests");
+    setOldModifiedTimes("java", "java/com", "java/com/foo", "java/com/bar", "javatests");
+    walk(boundedStructure, ImmutableList.of());
+    fileAttributeProvider.listings.set(0);
+
+    walk(boundedStructure, ImmutableList.of());
+
+    // Only two of the five listings were kept
+    assertThat(fileAttributeProvider.listings.get()).isEqualTo(3);
+  }
+
+  private ImmutableMap<WorkspacePath, DirectoryStructure.Directory> walk(
+      List<WorkspacePath> excludeDirectories) {
+    return walk(directoryStructure, excludeDirectories);
+  }
+
+  private ImmutableMap<WorkspacePath, DirectoryStructure.Directory> walk(
+      DirectoryStructure directoryStructure, List<WorkspacePath> excludeDirectories) {
+    return directoryStructure.walkRootDirectories(
+        workspaceRoot,
+        ImmutableList.of(JAVA, JAVATESTS),
+        excludeDirectories,
+        relativePath -> relativePath.startsWith("javatests"));
+  }
+
+  private void createDirectories(String... relativePaths) throws IOException {
+    if (workspaceRoot == null) {
+      workspaceRoot = new WorkspaceRoot(folder.newFolder("workspace"));
+    }
+    for (String relativePath : relativePaths) {
+      assertThat(new File(workspaceRoot.directory(), relativePath).mkdirs()).isTrue();
+    }
+  }
+
+  private void setOldModifiedTimes(String... relativePaths) {
+    long oneHourAgo = System.currentTimeMillis() - 60 * 60 * 1000;
+    for (String relativePath : relativePaths) {
+      assertThat(new File(workspaceRoot.directory(), relativePath).setLastModified(oneHourAgo))
+          .isTrue();
+    }
+  }
+
+  private static DirectoryStructure.Directory getChild(
+      DirectoryStructure.Directory directory, String name) {
+    return directory
+        .children
+        .stream()
+        .filter(child -> child.file.getName().equals(name))
+        .findFirst()
+        .orElse(null);
+  }
+
+  private static List<String> childNames(DirectoryStructure.Directory directory) {
+    return directory
+        .children
+        .stream()
+        .map(child -> child.file.getName())
+        .collect(Collectors.toList());
+  }
+}
@@ -111,6 +111,42 @@ public class ArtifactLocationDecoderTest extends BlazeTestCase {
         .isEqualTo("/path/to/third_party/other/Temp.java");
   }
 
+  @Test
+  public void testSourceResolvedAgainWhenCreatedUnderOtherPackagePath() throws Exception {
+    List<File> packagePaths =
+        ImmutableList.of(new File("/path/to"), new File("/path/to/READONLY/root"));
+
+    BlazeRoots blazeRoots =
+        new BlazeRoots(
+            new File(EXECUTION_ROOT),
+            packagePaths,
+            new ExecutionRootPath("root/blaze-out/crosstool/bin"),
+            new ExecutionRootPath("root/blaze-out/crosstool/genfiles"),
+            new File(OUTPUT_BASE));
+
+    fileChecker.addFiles(new File("/path/to/READONLY/root/com/google/Foo.java"));
+
+    ArtifactLocationDecoder decoder =
+        new ArtifactLocationDecoderImpl(
+            blazeRoots,
+            new WorkspacePathResolverImpl(
+                new WorkspaceRoot(new File("/path/to/root")), blazeRoots));
+
+    ArtifactLocation foo =
+        ArtifactLocation.builder().setRelativePath("com/google/Foo.java").setIsSource(true).build();
+    ArtifactLocation bar =
+        ArtifactLocation.builder().setRelativePath("com/google/Bar.java").setIsSource(true).build();
+
+    assertThat(decoder.decodeAll(ImmutableList.of(foo, bar)))
+        .containsExactly(
+            new File("/path/to/READONLY/root/com/google/Foo.java"),
+            new File("/path/to/com/google/Bar.java"))
+        .inOrder();
+
+    fileChecker.addFiles(new File("/path/to/com/google/Foo.java"));
+    assertThat(decoder.decode(foo)).isEqualTo(new File("/path/to/com/google/Foo.java"));
+  }
+
   @Test
   public void testGeneratedArtifact() throws Exception {
     ArtifactLocation artifactLocation =
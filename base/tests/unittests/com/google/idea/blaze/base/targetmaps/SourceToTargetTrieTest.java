@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SourceToTargetTrie}. */
+@RunWith(JUnit4.class)
+public class SourceToTargetTrieTest {
+  private static final ArtifactLocationDecoder DECODER =
+      artifactLocation ->
+          artifactLocation.isSource()
+              ? new File("/workspace", artifactLocation.getRelativePath())
+              : new File("/execroot", artifactLocation.getExecutionRootRelativePath());
+
+  private static final TargetKey FOO = TargetKey.forPlainTarget(new Label("//java/foo:foo"));
+  private static final TargetKey FOO_TEST =
+      TargetKey.forPlainTarget(new Label("//javatests/foo:test"));
+  private static final TargetKey GEN = TargetKey.forPlainTarget(new Label("//java/foo:gen"));
+
+  private final TargetMap targetMap =
+      TargetMapBuilder.builder()
+          .addTarget(
+              TargetIdeInfo.builder()
+                  .setLabel(FOO.label)
+                  .addSource(source("java/foo/Foo.java"))
+                  .addSource(source("java/foo/Bar.java"))
+                  .addSource(source("java/foo/sub/Baz.java")))
+          .addTarget(
+              TargetIdeInfo.builder()
+                  .setLabel(FOO_TEST.label)
+                  .addSource(source("javatests/foo/FooTest.java"))
+                  .addSource(source("java/foo/Foo.java")))
+          .addTarget(
+              TargetIdeInfo.builder()
+                  .setLabel(GEN.label)
+                  .addSource(
+                      ArtifactLocation.builder()
+                          .setRootExecutionPathFragment("blaze-out/genfiles")
+                          .setRelativePath("java/foo/Gen.java")
+                          .setIsSource(false)))
+          .build();
+
+  private final SourceToTargetTrie trie =
+      Futures.getUnchecked(
+          SourceToTargetTrie.build(targetMap, DECODER, MoreExecutors.newDirectExecutorService()));
+
+  @Test
+  public void testTargetsForFile() {
+    assertThat(trie.getTargets(new File("/workspace/java/foo/Foo.java")))
+        .containsExactly(FOO, FOO_TEST)
+        .inOrder();
+    assertThat(trie.getTargets(new File("/workspace/java/foo/sub/Baz.java"))).containsExactly(FOO);
+    assertThat(trie.getTargets(new File("/execroot/blaze-out/genfiles/java/foo/Gen.java")))
+        .containsExactly(GEN);
+    assertThat(trie.getTargets(new File("/workspace/java/foo/Missing.java"))).isEmpty();
+    assertThat(trie.getTargets(new File("/workspace/java/foo"))).isEmpty();
+  }
+
+  @Test
+  public void testTargetsUnderDirectory() {
+    assertThat(trie.getTargetsUnderDirectory(new File("/workspace/java/foo/sub")))
+        .containsExactly(FOO);
+    assertThat(trie.getTargetsUnderDirectory(new File("/workspace/java")))
+        .containsExactly(FOO, FOO_TEST);
+    assertThat(trie.getTargetsUnderDirectory(new File("/workspace")))
+        .containsExactly(FOO, FOO_TEST);
+    assertThat(trie.getTargetsUnderDirectory(new File("/other"))).isEmpty();
+  }
+
+  @Test
+  public void testSourcesInSameDirectoryUnderDifferentPackagePaths() {
+    ArtifactLocationDecoder decoder =
+        artifactLocation -> {
+          String relativePath = artifactLocation.getRelativePath();
+          String packagePath = relativePath.endsWith("Bar.java") ? "/readonly" : "/workspace";
+          return new File(packagePath, relativePath);
+        };
+    SourceToTargetTrie trie =
+        Futures.getUnchecked(
+            SourceToTargetTrie.build(
+                TargetMapBuilder.builder()
+                    .addTarget(
+                        TargetIdeInfo.builder()
+                            .setLabel(FOO.label)
+                            .addSource(source("java/foo/Foo.java"))
+                            .addSource(source("java/foo/Bar.java")))
+                    .build(),
+                decoder,
+                MoreExecutors.newDirectExecutorService()));
+
+    assertThat(trie.getTargets(new File("/workspace/java/foo/Foo.java"))).containsExactly(FOO);
+    assertThat(trie.getTargets(new File("/readonly/java/foo/Bar.java"))).containsExactly(FOO);
+    assertThat(trie.getTargets(new File("/workspace/java/foo/Bar.java"))).isEmpty();
+  }
+
+  @Test
+  public void testRelativePathsDontMatchAbsolutePaths() {
+    assertThat(trie.getTargets(new File("workspace/java/foo/Foo.java"))).isEmpty();
+    assertThat(trie.getTargetsUnderDirectory(new File("workspace"))).isEmpty();
+
+    ArtifactLocationDecoder relativeDecoder =
+        artifactLocation -> new File(artifactLocation.getRelativePath());
+    SourceToTargetTrie relativeTrie =
+        Futures.getUnchecked(
+            SourceToTargetTrie.build(
+                targetMap, relativeDecoder, MoreExecutors.newDirectExecutorService()));
+    assertThat(relativeTrie.getTargets(new File("java/foo/Foo.java")))
+        .containsExactly(FOO, FOO_TEST);
+    assertThat(relativeTrie.getTargets(new File("/java/foo/Foo.java"))).isEmpty();
+  }
+
+  @Test
+  public void testScanTargetsMatchesTrie() {
+    File foo = new File("/workspace/java/foo/Foo.java");
+    assertThat(SourceToTargetTrie.scanTargets(targetMap, DECODER, foo::equals))
+        .containsExactlyElementsIn(trie.getTargets(foo));
+    File java = new File("/workspace/java");
+    assertThat(
+            SourceToTargetTrie.scanTargets(
+                targetMap, DECODER, file -> file.toPath().startsWith(java.toPath())))
+        .containsExactlyElementsIn(trie.getTargetsUnderDirectory(java));
+  }
+
+  private static ArtifactLocation.Builder source(String relativePath) {
+    return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(true);
+  }
+}
@@ -35,6 +35,8 @@ import org.junit.runners.JUnit4;
 /** Unit tests for {@link TransitiveDependencyMap}. */
 @RunWith(JUnit4.class)
 public class TransitiveDependencyMapTest extends BlazeTestCase {
+  private static final int LONG_CHAIN_LENGTH = 1000;
+
   private TransitiveDependencyMap transitiveDependencyMap;
   private final WorkspaceRoot workspaceRoot = new WorkspaceRoot(new File("/"));
 
@@ -98,12 +100,60 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
     assertThat(transitiveDependencyMap.getTransitiveDependencies(diamondCCC)).isEmpty();
   }
 
+  @Test
+  public void testGetCyclicDependencies() {
+    TargetKey cycleA = TargetKey.forPlainTarget(new Label("//com/google/example/cycle:a"));
+    TargetKey cycleB = TargetKey.forPlainTarget(new Label("//com/google/example/cycle:b"));
+    TargetKey cycleC = TargetKey.forPlainTarget(new Label("//com/google/example/cycle:c"));
+    TargetKey cycleD = TargetKey.forPlainTarget(new Label("//com/google/example/cycle:d"));
+
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleA))
+        .containsExactly(cycleA, cycleB, cycleC, cycleD);
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleC))
+        .containsExactly(cycleA, cycleB, cycleC, cycleD);
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleD)).isEmpty();
+  }
+
+  @Test
+  public void testClosuresAreCached() {
+    TargetKey chainA = TargetKey.forPlainTarget(new Label("//com/google/example/chain:a"));
+    TargetKey chainB = TargetKey.forPlainTarget(new Label("//com/google/example/chain:b"));
+
+    transitiveDependencyMap.getTransitiveDependencies(chainA);
+    transitiveDependencyMap.getTransitiveDependencies(chainA);
+    transitiveDependencyMap.getTransitiveDependencies(chainB);
+    transitiveDependencyMap.getTransitiveDependencies(chainB);
+
+    assertThat(transitiveDependencyMap.getCacheStats().missCount()).isEqualTo(2L);
+    assertThat(transitiveDependencyMap.getCacheStats().hitCount()).isEqualTo(2L);
+    // Only the queried closures are cached
+    assertThat(transitiveDependencyMap.getCachedKeyCount()).isEqualTo(5L);
+  }
+
+  @Test
+  public void testCachedClosuresOfLongChainStayBounded() {
+    long maxCachedKeys = 10 * LONG_CHAIN_LENGTH;
+    TransitiveDependencyMap boundedMap = new TransitiveDependencyMap(project, maxCachedKeys);
+
+    // Every closure together holds ~length^2 / 2 keys, far more than the bound
+    for (int i = 0; i < LONG_CHAIN_LENGTH; ++i) {
+      TargetKey target = TargetKey.forPlainTarget(longChainLabel(i));
+      assertThat(boundedMap.getTransitiveDependencies(target)).hasSize(LONG_CHAIN_LENGTH - i - 1);
+      assertThat(boundedMap.getCachedKeyCount()).isAtMost(maxCachedKeys);
+    }
+    assertThat(boundedMap.getCacheStats().evictionCount()).isGreaterThan(0L);
+  }
+
   @Test
   public void testGetDependencyForNonExistentTarget() {
     TargetKey bogus = TargetKey.forPlainTarget(new Label("//com/google/fake:target"));
     assertThat(transitiveDependencyMap.getTransitiveDependencies(bogus)).isEmpty();
   }
 
+  private static Label longChainLabel(int i) {
+    return new Label("//com/google/example/longchain:" + i);
+  }
+
   private static TargetMap buildTargetMap() {
     Label simpleA = new Label("//com/google/example/simple:a");
     Label simpleB = new Label("//com/google/example/simple:b");
@@ -118,7 +168,19 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
     Label diamondC = new Label("//com/google/example/diamond:c");
     Label diamondCC = new Label("//com/google/example/diamond:cc");
     Label diamondCCC = new Label("//com/google/example/diamond:ccc");
-    return TargetMapBuilder.builder()
+    Label cycleA = new Label("//com/google/example/cycle:a");
+    Label cycleB = new Label("//com/google/example/cycle:b");
+    Label cycleC = new Label("//com/google/example/cycle:c");
+    Label cycleD = new Label("//com/google/example/cycle:d");
+    TargetMapBuilder builder = TargetMapBuilder.builder();
+    for (int i = 0; i < LONG_CHAIN_LENGTH; ++i) {
+      TargetIdeInfo.Builder target = TargetIdeInfo.builder().setLabel(longChainLabel(i));
+      if (i + 1 < LONG_CHAIN_LENGTH) {
+        target.addDependency(longChainLabel(i + 1));
+      }
+      builder.addTarget(target);
+    }
+    return builder
         .addTarget(TargetIdeInfo.builder().setLabel(simpleA).addDependency(simpleB))
         .addTarget(TargetIdeInfo.builder().setLabel(simpleB))
         .addTarget(TargetIdeInfo.builder().setLabel(chainA).addDependency(chainB))
@@ -146,6 +208,11 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
         .addTarget(TargetIdeInfo.builder().setLabel(diamondC))
         .addTarget(TargetIdeInfo.builder().setLabel(diamondCC))
         .addTarget(TargetIdeInfo.builder().setLabel(diamondCCC))
+        .addTarget(TargetIdeInfo.builder().setLabel(cycleA).addDependency(cycleB))
+        .addTarget(TargetIdeInfo.builder().setLabel(cycleB).addDependency(cycleC))
+        .addTarget(
+            TargetIdeInfo.builder().setLabel(cycleC).addDependency(cycleA).addDependency(cycleD))
+        .addTarget(TargetIdeInfo.builder().setLabel(cycleD))
         .build();
   }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.vcs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkingSetTracker} */
+@RunWith(JUnit4.class)
+public class WorkingSetTrackerTest {
+  private static final WorkingSet RECONCILED =
+      new WorkingSet(
+          ImmutableList.of(path("added/Modified.java"), path("added/Deleted.java")),
+          ImmutableList.of(path("modified/Deleted.java"), path("modified/Unchanged.java")),
+          ImmutableList.of(path("deleted/Recreated.java")));
+
+  @Test
+  public void testNoChanges() {
+    assertThat(WorkingSetTracker.applyChanges(RECONCILED, ImmutableMap.of(), path -> true))
+        .isSameAs(RECONCILED);
+  }
+
+  @Test
+  public void testChangesToFilesUnchangedUpstream() {
+    ImmutableSet<WorkspacePath> existing =
+        ImmutableSet.of(path("new/Created.java"), path("old/Modified.java"));
+
+    WorkingSet workingSet =
+        WorkingSetTracker.applyChanges(
+            RECONCILED,
+            ImmutableMap.of(
+                path("new/Created.java"), false,
+                path("new/CreatedThenDeleted.java"), false,
+                path("old/Modified.java"), true,
+                path("old/Deleted.java"), true),
+            existing::contains);
+
+    assertThat(workingSet.addedFiles)
+        .containsExactly(
+            path("added/Modified.java"), path("added/Deleted.java"), path("new/Created.java"));
+    assertThat(workingSet.modifiedFiles)
+        .containsExactly(
+            path("modified/Deleted.java"),
+            path("modified/Unchanged.java"),
+            path("old/Modified.java"));
+    assertThat(workingSet.deletedFiles)
+        .containsExactly(path("deleted/Recreated.java"), path("old/Deleted.java"));
+  }
+
+  @Test
+  public void testChangesToFilesInWorkingSet() {
+    ImmutableSet<WorkspacePath> existing =
+        ImmutableSet.of(path("added/Modified.java"), path("deleted/Recreated.java"));
+
+    WorkingSet workingSet =
+        WorkingSetTracker.applyChanges(
+            RECONCILED,
+            ImmutableMap.of(
+                path("added/Modified.java"), true,
+                path("added/Deleted.java"), true,
+                path("modified/Deleted.java"), true,
+                path("deleted/Recreated.java"), false),
+            existing::contains);
+
+    assertThat(workingSet.addedFiles).containsExactly(path("added/Modified.java"));
+    assertThat(workingSet.modifiedFiles)
+        .containsExactly(path("modified/Unchanged.java"), path("deleted/Recreated.java"));
+    assertThat(workingSet.deletedFiles).containsExactly(path("modified/Deleted.java"));
+  }
+
+  @Test
+  public void testUnchangedVcsState() {
+    assertThat(WorkingSetTracker.vcsStateChanged("abc\ndef\n", "abc\ndef\n")).isFalse();
+  }
+
+  @Test
+  public void testChangedVcsState() {
+    assertThat(WorkingSetTracker.vcsStateChanged("abc\nfed\n", "abc\ndef\n")).isTrue();
+    assertThat(WorkingSetTracker.vcsStateChanged("abc\ndef\n", null)).isTrue();
+  }
+
+  @Test
+  public void testUnknownVcsStateAlwaysChanged() {
+    assertThat(WorkingSetTracker.vcsStateChanged(null, null)).isTrue();
+  }
+
+  private static WorkspacePath path(String relativePath) {
+    return new WorkspacePath(relativePath);
+  }
+}
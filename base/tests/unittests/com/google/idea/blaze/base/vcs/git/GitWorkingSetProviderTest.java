@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.vcs.git;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GitWorkingSetProvider} */
+@RunWith(JUnit4.class)
+public class GitWorkingSetProviderTest {
+  @Rule public BlazeTestCase.IgnoreOnWindowsRule rule = new BlazeTestCase.IgnoreOnWindowsRule();
+
+  private static final WorkingSet NO_COMMITTED_CHANGES =
+      new WorkingSet(ImmutableList.of(), ImmutableList.of(), ImmutableList.of());
+
+  private static final String HASHES = "100644 100644 100644 0123abcd 0123abcd";
+
+  @Test
+  public void testUncommittedChanges() {
+    WorkingSet workingSet =
+        mergeChanges(
+            "/usr/blah",
+            NO_COMMITTED_CHANGES,
+            "1 .M N... " + HASHES + " java/com/google/Modified.java",
+            "1 A. N... " + HASHES + " java/com/google/Added file.java",
+            "1 .D N... " + HASHES + " java/com/google/Deleted.java",
+            "1 AD N... " + HASHES + " java/com/google/AddedThenDeleted.java",
+            "2 R. N... " + HASHES + " R100 java/com/google/New.java",
+            "java/com/google/Old.java",
+            "? java/com/google/Untracked.java",
+            "! java/com/google/Ignored.java");
+
+    assertThat(workingSet.addedFiles)
+        .containsExactly(
+            new WorkspacePath("java/com/google/Added file.java"),
+            new WorkspacePath("java/com/google/New.java"),
+            new WorkspacePath("java/com/google/Untracked.java"));
+    assertThat(workingSet.modifiedFiles)
+        .containsExactly(new WorkspacePath("java/com/google/Modified.java"));
+    assertThat(workingSet.deletedFiles)
+        .containsExactly(
+            new WorkspacePath("java/com/google/Deleted.java"),
+            new WorkspacePath("java/com/google/Old.java"));
+  }
+
+  @Test
+  public void testUncommittedChangesToCommittedChanges() {
+    WorkingSet committed =
+        new WorkingSet(
+            ImmutableList.of(
+                new WorkspacePath("added/Modified.java"), new WorkspacePath("added/Deleted.java")),
+            ImmutableList.of(new WorkspacePath("modified/Deleted.java")),
+            ImmutableList.of(
+                new WorkspacePath("deleted/Recreated.java"),
+                new WorkspacePath("deleted/Unchanged.java")));
+
+    WorkingSet workingSet =
+        mergeChanges(
+            "/usr/blah",
+            committed,
+            "1 .M N... " + HASHES + " added/Modified.java",
+            "1 .D N... " + HASHES + " added/Deleted.java",
+            "1 D. N... " + HASHES + " modified/Deleted.java",
+            "? deleted/Recreated.java");
+
+    assertThat(workingSet.addedFiles).containsExactly(new WorkspacePath("added/Modified.java"));
+    assertThat(workingSet.modifiedFiles)
+        .containsExactly(new WorkspacePath("deleted/Recreated.java"));
+    assertThat(workingSet.deletedFiles)
+        .containsExactly(
+            new WorkspacePath("modified/Deleted.java"),
+            new WorkspacePath("deleted/Unchanged.java"));
+  }
+
+  @Test
+  public void testFileDeletedFromIndexButStillPresent() {
+    WorkingSet workingSet =
+        mergeChanges(
+            "/usr/blah",
+            NO_COMMITTED_CHANGES,
+            "1 D. N... " + HASHES + " java/com/google/Untracked.java",
+            "? java/com/google/Untracked.java");
+
+    assertThat(workingSet.modifiedFiles)
+        .containsExactly(new WorkspacePath("java/com/google/Untracked.java"));
+    assertThat(workingSet.addedFiles).isEmpty();
+    assertThat(workingSet.deletedFiles).isEmpty();
+  }
+
+  @Test
+  public void testPathsOutsideWorkspaceRootIgnored() {
+    WorkingSet workingSet =
+        mergeChanges(
+            "/usr/blah/root",
+            NO_COMMITTED_CHANGES,
+            "1 .M N... " + HASHES + " root/Modified.java",
+            "? other/Untracked.java");
+
+    assertThat(workingSet.modifiedFiles).containsExactly(new WorkspacePath("Modified.java"));
+    assertThat(workingSet.addedFiles).isEmpty();
+  }
+
+  private static WorkingSet mergeChanges(
+      String workspaceRoot, WorkingSet committed, String... statusEntries) {
+    return GitWorkingSetProvider.mergeChanges(
+        new WorkspaceRoot(new File(workspaceRoot)),
+        "/usr/blah",
+        committed,
+        String.join("\0", statusEntries) + "\0");
+  }
+}
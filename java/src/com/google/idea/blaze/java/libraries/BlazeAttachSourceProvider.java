@@ -17,6 +17,7 @@ package com.google.idea.blaze.java.libraries;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
 import com.google.idea.blaze.base.model.BlazeLibrary;
@@ -53,7 +54,7 @@ public class BlazeAttachSourceProvider implements AttachSourcesProvider {
       return ImmutableList.of();
     }
 
-    List<BlazeLibrary> librariesToAttachSourceTo = Lists.newArrayList();
+    List<BlazeJarLibrary> librariesToAttachSourceTo = Lists.newArrayList();
     for (LibraryOrderEntry orderEntry : orderEntries) {
       Library library = orderEntry.getLibrary();
       if (library == null) {
@@ -85,11 +86,7 @@ public class BlazeAttachSourceProvider implements AttachSourcesProvider {
      * corresponding user setting is active.
      */
     if (BlazeJavaUserSettings.getInstance().getAttachSourcesOnDemand()) {
-      Transactions.submitTransaction(
-          project,
-          () -> {
-            attachSources(project, blazeProjectData, librariesToAttachSourceTo);
-          });
+      cacheAndAttachSources(project, blazeProjectData, librariesToAttachSourceTo);
       return ImmutableList.of();
     }
 
@@ -107,16 +104,38 @@ public class BlazeAttachSourceProvider implements AttachSourcesProvider {
 
           @Override
           public ActionCallback perform(List<LibraryOrderEntry> orderEntriesContainingFile) {
-            attachSources(project, blazeProjectData, librariesToAttachSourceTo);
-            return ActionCallback.DONE;
+            return cacheAndAttachSources(project, blazeProjectData, librariesToAttachSourceTo);
           }
         });
   }
 
+  /**
+   * Copies the source jars into the jar cache (if they aren't there already), then attaches them.
+   * The copying happens in the background, ahead of any source jar prefetching.
+   */
+  private static ActionCallback cacheAndAttachSources(
+      Project project,
+      BlazeProjectData blazeProjectData,
+      List<BlazeJarLibrary> librariesToAttachSourceTo) {
+    ActionCallback callback = new ActionCallback();
+    JarCache.getInstance(project)
+        .cacheSourceJars(blazeProjectData.artifactLocationDecoder, librariesToAttachSourceTo)
+        .addListener(
+            () ->
+                Transactions.submitTransaction(
+                    project,
+                    () -> {
+                      attachSources(project, blazeProjectData, librariesToAttachSourceTo);
+                      callback.setDone();
+                    }),
+            MoreExecutors.directExecutor());
+    return callback;
+  }
+
   static void attachSources(
       Project project,
       BlazeProjectData blazeProjectData,
-      Collection<BlazeLibrary> librariesToAttachSourceTo) {
+      Collection<? extends BlazeLibrary> librariesToAttachSourceTo) {
     ApplicationManager.getApplication()
         .runWriteAction(
             () -> {
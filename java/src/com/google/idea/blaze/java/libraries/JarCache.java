@@ -15,16 +15,16 @@
  */
 package com.google.idea.blaze.java.libraries;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.filecache.FileCache;
 import com.google.idea.blaze.base.filecache.FileDiffer;
-import com.google.idea.blaze.base.io.FileSizeScanner;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.prefetch.FetchExecutor;
@@ -34,38 +34,50 @@ import com.google.idea.blaze.base.scope.output.PrintOutput;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
 import com.google.idea.blaze.base.settings.BlazeImportSettingsManager;
 import com.google.idea.blaze.base.sync.BlazeSyncParams;
-import com.google.idea.blaze.base.sync.BlazeSyncParams.SyncMode;
 import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.libraries.BlazeLibraryCollector;
+import com.google.idea.blaze.base.sync.libraries.LibraryEditor;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.google.idea.blaze.java.settings.BlazeJavaUserSettings;
 import com.google.idea.blaze.java.sync.model.BlazeJarLibrary;
+import com.google.idea.sdkcompat.transactions.Transactions;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
-import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
+import com.intellij.openapi.roots.libraries.LibraryTable;
 import com.intellij.openapi.util.io.FileUtil;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
-/** Local cache of the jars referenced by the project. */
-public class JarCache {
-  private static final Logger logger = Logger.getInstance(JarCache.class);
+/**
+ * Local cache of the jars referenced by the project.
+ *
+ * <p>Jars are stored in the machine-wide {@link JarCacheStore}, keyed by content.
+ */
+public class JarCache implements Disposable {
+  private static final String JAR_SUFFIX = ".jar";
+  private static final String SOURCE_JAR_SUFFIX = "-src.jar";
 
   private final Project project;
   private final BlazeImportSettings importSettings;
-  private final File cacheDir;
   private boolean enabled;
-  @Nullable private BiMap<File, String> sourceFileToCacheKey = null;
+  /** Source file -> suffix of its cache entry, for every jar referenced by the last sync. */
+  @Nullable private volatile ImmutableMap<File, String> sourceFiles = null;
+  /** Source file -> cached file, for every jar successfully cached. */
+  private volatile ImmutableMap<File, File> cachedFiles = ImmutableMap.of();
+  /** Source file -> cached file, for source jars cached on demand since the last sync. */
+  private final Map<File, File> lazilyCachedFiles = Maps.newConcurrentMap();
+
+  private final SourceJarPrefetcher sourceJarPrefetcher =
+      new SourceJarPrefetcher(() -> JarCacheStore.getInstance().saveIndexIfChanged());
 
   public static JarCache getInstance(Project project) {
     return ServiceManager.getService(project, JarCache.class);
@@ -74,24 +86,27 @@ public class JarCache {
   public JarCache(Project project) {
     this.project = project;
     this.importSettings = BlazeImportSettingsManager.getInstance(project).getImportSettings();
-    this.cacheDir = getCacheDir();
   }
 
-  public void onSync(
-      BlazeContext context, BlazeProjectData projectData, BlazeSyncParams.SyncMode syncMode) {
+  /** Updates the cache, returning the cached files created or deleted. */
+  public Collection<File> onSync(BlazeContext context, BlazeProjectData projectData) {
     Collection<BlazeLibrary> libraries = BlazeLibraryCollector.getLibraries(projectData);
-    boolean fullRefresh = syncMode == SyncMode.FULL;
-    boolean removeMissingFiles = syncMode == SyncMode.INCREMENTAL;
     boolean enabled = updateEnabled();
+    deleteLegacyCacheDir();
 
-    if (!enabled || fullRefresh) {
-      clearCache();
-    }
+    sourceJarPrefetcher.cancelPendingBackgroundTasks();
     if (!enabled) {
-      return;
+      lazilyCachedFiles.clear();
+      sourceFiles = null;
+      cachedFiles = ImmutableMap.of();
+      JarCacheStore.getInstance().release(getOwner());
+      return ImmutableList.of();
     }
 
-    boolean attachAllSourceJars = BlazeJavaUserSettings.getInstance().getAttachSourcesByDefault();
+    BlazeJavaUserSettings settings = BlazeJavaUserSettings.getInstance();
+    boolean attachAllSourceJars = settings.getAttachSourcesByDefault();
+    // Source jars not attached yet are cached lazily, ready for when they're attached on demand
+    boolean prefetchSourceJars = !attachAllSourceJars && settings.getAttachSourcesOnDemand();
     SourceJarManager sourceJarManager = SourceJarManager.getInstance(project);
 
     List<BlazeJarLibrary> jarLibraries =
@@ -102,22 +117,83 @@ public class JarCache {
             .collect(Collectors.toList());
 
     ArtifactLocationDecoder artifactLocationDecoder = projectData.artifactLocationDecoder;
-    BiMap<File, String> sourceFileToCacheKey = HashBiMap.create(jarLibraries.size());
+    Map<File, String> sourceFiles = Maps.newHashMapWithExpectedSize(jarLibraries.size());
+    List<File> lazySourceJars = Lists.newArrayList();
     for (BlazeJarLibrary library : jarLibraries) {
       File jarFile =
           artifactLocationDecoder.decode(library.libraryArtifact.jarForIntellijLibrary());
-      sourceFileToCacheKey.put(jarFile, cacheKeyForJar(jarFile));
+      sourceFiles.put(jarFile, JAR_SUFFIX);
 
+      if (library.libraryArtifact.sourceJar == null) {
+        continue;
+      }
+      File srcJarFile = artifactLocationDecoder.decode(library.libraryArtifact.sourceJar);
       boolean attachSourceJar =
           attachAllSourceJars || sourceJarManager.hasSourceJarAttached(library.key);
-      if (attachSourceJar && library.libraryArtifact.sourceJar != null) {
-        File srcJarFile = artifactLocationDecoder.decode(library.libraryArtifact.sourceJar);
-        sourceFileToCacheKey.put(srcJarFile, cacheKeyForSourceJar(srcJarFile));
+      if (attachSourceJar) {
+        sourceFiles.put(srcJarFile, SOURCE_JAR_SUFFIX);
+      } else if (prefetchSourceJars) {
+        lazySourceJars.add(srcJarFile);
       }
     }
 
-    this.sourceFileToCacheKey = sourceFileToCacheKey;
-    refresh(context, removeMissingFiles);
+    this.sourceFiles = ImmutableMap.copyOf(sourceFiles);
+    Collection<File> changedFiles = refresh(context, true);
+    lazilyCachedFiles.clear();
+
+    for (File sourceJar : lazySourceJars) {
+      sourceJarPrefetcher.submit(() -> cacheSourceJar(sourceJar), false);
+    }
+    if (!lazySourceJars.isEmpty()) {
+      context.output(
+          PrintOutput.log(
+              String.format("Caching %d source jars in the background", lazySourceJars.size())));
+    }
+    return changedFiles;
+  }
+
+  /**
+   * Caches the source jars of the given libraries ahead of any background prefetching. The
+   * returned future completes once they're ready to be attached.
+   */
+  public ListenableFuture<?> cacheSourceJars(
+      ArtifactLocationDecoder decoder, Collection<BlazeJarLibrary> libraries) {
+    if (!enabled || sourceFiles == null) {
+      return Futures.immediateFuture(null);
+    }
+    List<ListenableFuture<Void>> futures = Lists.newArrayList();
+    for (BlazeJarLibrary library : libraries) {
+      if (library.libraryArtifact.sourceJar != null) {
+        File sourceJar = decoder.decode(library.libraryArtifact.sourceJar);
+        futures.add(sourceJarPrefetcher.submit(() -> cacheSourceJar(sourceJar), true));
+      }
+    }
+    return Futures.successfulAsList(futures);
+  }
+
+  private void cacheSourceJar(File sourceJar) {
+    if (!enabled) {
+      return;
+    }
+    if (cachedFiles.containsKey(sourceJar) || lazilyCachedFiles.containsKey(sourceJar)) {
+      return;
+    }
+    ImmutableMap<File, Long> timestamps = FileDiffer.readFileState(ImmutableList.of(sourceJar));
+    if (timestamps == null) {
+      return;
+    }
+    JarCacheStore.CacheResult result =
+        JarCacheStore.getInstance()
+            .cacheFiles(
+                getOwner(),
+                ImmutableMap.of(sourceJar, SOURCE_JAR_SUFFIX),
+                timestamps,
+                MoreExecutors.newDirectExecutorService(),
+                false,
+                ImmutableList.of());
+    if (result != null) {
+      lazilyCachedFiles.putAll(result.cachedFiles);
+    }
   }
 
   public boolean isEnabled() {
@@ -131,148 +207,163 @@ public class JarCache {
     return enabled;
   }
 
-  /** Refreshes any updated files in the cache. Does not add or removes any files */
-  public void refresh() {
-    refresh(null, false);
+  /**
+   * Refreshes any updated files in the cache, returning the cached files created or deleted. Does
+   * not add or remove any jars from the project.
+   *
+   * <p>An updated jar gets a new cache entry, so the roots of the libraries using it are pointed at
+   * the new entry.
+   */
+  public Collection<File> refresh() {
+    ImmutableMap<File, File> previousCachedFiles = cachedFiles;
+    Collection<File> changedFiles = refresh(null, false);
+    updateChangedLibraries(previousCachedFiles);
+    return changedFiles;
   }
 
-  private void refresh(@Nullable BlazeContext context, boolean removeMissingFiles) {
-    if (!enabled || sourceFileToCacheKey == null) {
-      return;
+  /**
+   * @param updatingRoots whether the library roots are about to be rebuilt from the result (i.e.
+   *     during sync). Otherwise, previously cached entries stay in use until the next sync, as
+   *     library roots may still reference them.
+   */
+  private Collection<File> refresh(@Nullable BlazeContext context, boolean updatingRoots) {
+    if (!enabled || this.sourceFiles == null) {
+      return ImmutableList.of();
     }
-
-    // Ensure the cache dir exists
-    if (!cacheDir.exists()) {
-      if (!cacheDir.mkdirs()) {
-        logger.error("Could not create jar cache directory");
-        return;
-      }
+    // Source jars cached on demand may have been attached since, so they must stay in use
+    Map<File, String> sourceFiles = Maps.newHashMap(this.sourceFiles);
+    for (File sourceJar : lazilyCachedFiles.keySet()) {
+      sourceFiles.put(sourceJar, SOURCE_JAR_SUFFIX);
     }
 
     // Discover state of source jars
-    ImmutableMap<File, Long> sourceFileTimestamps =
-        FileDiffer.readFileState(sourceFileToCacheKey.keySet());
+    ImmutableMap<File, Long> sourceFileTimestamps = FileDiffer.readFileState(sourceFiles.keySet());
     if (sourceFileTimestamps == null) {
-      return;
-    }
-    ImmutableMap.Builder<String, Long> sourceFileCacheKeyToTimestamp = ImmutableMap.builder();
-    for (Map.Entry<File, Long> entry : sourceFileTimestamps.entrySet()) {
-      String cacheKey = sourceFileToCacheKey.get(entry.getKey());
-      sourceFileCacheKeyToTimestamp.put(cacheKey, entry.getValue());
-    }
-
-    // Discover current on-disk cache state
-    File[] cacheFiles = cacheDir.listFiles();
-    assert cacheFiles != null;
-    ImmutableMap<File, Long> cacheFileTimestamps =
-        FileDiffer.readFileState(Lists.newArrayList(cacheFiles));
-    if (cacheFileTimestamps == null) {
-      return;
-    }
-    ImmutableMap.Builder<String, Long> cachedFileCacheKeyToTimestamp = ImmutableMap.builder();
-    for (Map.Entry<File, Long> entry : cacheFileTimestamps.entrySet()) {
-      String cacheKey = entry.getKey().getName(); // Cache key == file name
-      cachedFileCacheKeyToTimestamp.put(cacheKey, entry.getValue());
+      return ImmutableList.of();
     }
 
-    List<String> updatedFiles = Lists.newArrayList();
-    List<String> removedFiles = Lists.newArrayList();
-    FileDiffer.diffState(
-        cachedFileCacheKeyToTimestamp.build(),
-        sourceFileCacheKeyToTimestamp.build(),
-        updatedFiles,
-        removedFiles);
-
-    ListeningExecutorService executor = FetchExecutor.EXECUTOR;
-    List<ListenableFuture<?>> futures = Lists.newArrayList();
-    Map<String, File> cacheKeyToSourceFile = sourceFileToCacheKey.inverse();
-    for (String cacheKey : updatedFiles) {
-      File sourceFile = cacheKeyToSourceFile.get(cacheKey);
-      File cacheFile = cacheFileForKey(cacheKey);
-      futures.add(
-          executor.submit(
-              () -> {
-                try {
-                  Files.copy(
-                      Paths.get(sourceFile.getPath()),
-                      Paths.get(cacheFile.getPath()),
-                      StandardCopyOption.REPLACE_EXISTING,
-                      StandardCopyOption.COPY_ATTRIBUTES);
-                } catch (IOException e) {
-                  logger.warn(e);
-                }
-              }));
+    // The current library roots reference these until they're rebuilt, so they can't be evicted
+    List<File> rootEntries = Lists.newArrayList(cachedFiles.values());
+    rootEntries.addAll(lazilyCachedFiles.values());
+    JarCacheStore store = JarCacheStore.getInstance();
+    JarCacheStore.CacheResult result =
+        store.cacheFiles(
+            getOwner(),
+            sourceFiles,
+            sourceFileTimestamps,
+            FetchExecutor.EXECUTOR,
+            updatingRoots,
+            rootEntries);
+    if (result == null) {
+      return ImmutableList.of();
     }
+    this.cachedFiles = result.cachedFiles;
 
-    if (removeMissingFiles) {
-      for (String cacheKey : removedFiles) {
-        File cacheFile = cacheFileForKey(cacheKey);
-        futures.add(
-            executor.submit(
-                () -> {
-                  try {
-                    Files.deleteIfExists(Paths.get(cacheFile.getPath()));
-                  } catch (IOException e) {
-                    logger.warn(e);
-                  }
-                }));
-      }
-    }
+    long maxSizeBytes = BlazeJavaUserSettings.getInstance().getJarCacheMaxSizeMb() * 1024L * 1024L;
+    JarCacheStore.EvictionResult eviction = store.evict(maxSizeBytes);
+    store.saveIndexIfChanged();
 
-    try {
-      Futures.allAsList(futures).get();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      logger.warn(e);
-    } catch (ExecutionException e) {
-      logger.error(e);
+    List<File> changedFiles = Lists.newArrayList(result.newFiles);
+    if (eviction != null) {
+      changedFiles.addAll(eviction.deletedFiles);
     }
-    if (context != null && updatedFiles.size() > 0) {
-      context.output(PrintOutput.log(String.format("Copied %d jars", updatedFiles.size())));
+    if (context == null) {
+      return changedFiles;
     }
-    if (context != null && removedFiles.size() > 0 && removeMissingFiles) {
-      context.output(PrintOutput.log(String.format("Removed %d jars", removedFiles.size())));
+    if (result.linked > 0 || result.copied > 0) {
+      context.output(
+          PrintOutput.log(
+              String.format("Linked %d jars, copied %d jars", result.linked, result.copied)));
     }
-    if (context != null) {
-      try {
-        File[] finalCacheFiles = cacheDir.listFiles();
-        assert finalCacheFiles != null;
-        ImmutableMap<File, Long> cacheFileSizes =
-            FileSizeScanner.readFilesizes(Lists.newArrayList(finalCacheFiles));
-        Long total =
-            cacheFileSizes.values().stream().reduce((size1, size2) -> size1 + size2).orElse(0L);
+    context.output(PrintOutput.log(String.format("Reused %d cached jars", result.reused)));
+    if (eviction != null) {
+      if (eviction.evictedFiles > 0) {
         context.output(
             PrintOutput.log(
                 String.format(
-                    "Total Jar Cache size: %d kB (%d files)",
-                    total / 1024, finalCacheFiles.length)));
-      } catch (Exception e) {
-        logger.warn("Could not determine cache size", e);
+                    "Evicted %d jars (%d kB)",
+                    eviction.evictedFiles, eviction.evictedBytes / 1024)));
       }
+      context.output(
+          PrintOutput.log(
+              String.format(
+                  "Total Jar Cache size: %d kB (%d files)",
+                  eviction.remainingBytes / 1024, eviction.remainingFiles)));
     }
+    return changedFiles;
   }
 
-  private void clearCache() {
-    if (cacheDir.exists()) {
-      File[] cacheFiles = cacheDir.listFiles();
-      if (cacheFiles != null) {
-        FileUtil.asyncDelete(Lists.newArrayList(cacheFiles));
+  /** Points the roots of libraries whose jars were cached under a new entry at the new entry. */
+  private void updateChangedLibraries(ImmutableMap<File, File> previousCachedFiles) {
+    BlazeProjectData projectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    if (projectData == null) {
+      return;
+    }
+    ImmutableMap<File, File> cachedFiles = this.cachedFiles;
+    Set<File> changedSourceFiles = Sets.newHashSet();
+    for (Map.Entry<File, File> entry : previousCachedFiles.entrySet()) {
+      if (!entry.getValue().equals(cachedFiles.get(entry.getKey()))) {
+        changedSourceFiles.add(entry.getKey());
       }
     }
-    sourceFileToCacheKey = null;
+    if (changedSourceFiles.isEmpty()) {
+      return;
+    }
+    ArtifactLocationDecoder decoder = projectData.artifactLocationDecoder;
+    List<BlazeJarLibrary> changedLibraries =
+        BlazeLibraryCollector.getLibraries(projectData)
+            .stream()
+            .filter(library -> library instanceof BlazeJarLibrary)
+            .map(library -> (BlazeJarLibrary) library)
+            .filter(
+                library ->
+                    changedSourceFiles.contains(
+                            decoder.decode(library.libraryArtifact.jarForIntellijLibrary()))
+                        || (library.libraryArtifact.sourceJar != null
+                            && changedSourceFiles.contains(
+                                decoder.decode(library.libraryArtifact.sourceJar))))
+            .collect(Collectors.toList());
+    if (changedLibraries.isEmpty()) {
+      return;
+    }
+    Transactions.submitTransaction(
+        project,
+        () ->
+            ApplicationManager.getApplication()
+                .runWriteAction(
+                    () -> {
+                      LibraryTable libraryTable = ProjectLibraryTable.getInstance(project);
+                      LibraryTable.ModifiableModel libraryTableModel =
+                          libraryTable.getModifiableModel();
+                      for (BlazeJarLibrary library : changedLibraries) {
+                        LibraryEditor.updateLibrary(
+                            project, decoder, libraryTable, libraryTableModel, library);
+                      }
+                      libraryTableModel.commit();
+                    }));
+  }
+
+  @Override
+  public void dispose() {
+    sourceJarPrefetcher.shutdown();
+    // The closed project's entries can be evicted once no other project uses them
+    JarCacheStore.getInstance().release(getOwner());
+    JarCacheStore.getInstance().saveIndexIfChanged();
+  }
+
+  /** Jars used to be copied into a per-project directory. */
+  private void deleteLegacyCacheDir() {
+    File legacyCacheDir = new File(BlazeDataStorage.getProjectDataDir(importSettings), "libraries");
+    if (legacyCacheDir.exists()) {
+      FileUtil.asyncDelete(legacyCacheDir);
+    }
   }
 
   /** Gets the cached file for a jar. If it doesn't exist, we return the file from the library. */
   public File getCachedJar(ArtifactLocationDecoder decoder, BlazeJarLibrary library) {
     File file = decoder.decode(library.libraryArtifact.jarForIntellijLibrary());
-    if (!enabled || sourceFileToCacheKey == null) {
-      return file;
-    }
-    String cacheKey = sourceFileToCacheKey.get(file);
-    if (cacheKey == null) {
-      return file;
-    }
-    return cacheFileForKey(cacheKey);
+    return getCachedFile(file);
   }
 
   /** Gets the cached file for a source jar. */
@@ -282,35 +373,22 @@ public class JarCache {
       return null;
     }
     File file = decoder.decode(library.libraryArtifact.sourceJar);
-    if (!enabled || sourceFileToCacheKey == null) {
+    return getCachedFile(file);
+  }
+
+  private File getCachedFile(File file) {
+    if (!enabled) {
       return file;
     }
-    String cacheKey = sourceFileToCacheKey.get(file);
-    if (cacheKey == null) {
-      return file;
+    File cachedFile = cachedFiles.get(file);
+    if (cachedFile == null) {
+      cachedFile = lazilyCachedFiles.get(file);
     }
-    return cacheFileForKey(cacheKey);
-  }
-
-  private static String cacheKeyInternal(File jar) {
-    int parentHash = jar.getParent().hashCode();
-    return FileUtil.getNameWithoutExtension(jar) + "_" + Integer.toHexString(parentHash);
-  }
-
-  private static String cacheKeyForJar(File jar) {
-    return cacheKeyInternal(jar) + ".jar";
-  }
-
-  private static String cacheKeyForSourceJar(File srcjar) {
-    return cacheKeyInternal(srcjar) + "-src.jar";
-  }
-
-  private File cacheFileForKey(String key) {
-    return new File(cacheDir, key);
+    return cachedFile != null ? cachedFile : file;
   }
 
-  private File getCacheDir() {
-    return new File(BlazeDataStorage.getProjectDataDir(importSettings), "libraries");
+  private String getOwner() {
+    return project.getLocationHash();
   }
 
   static class FileCacheAdapter implements FileCache {
@@ -320,18 +398,18 @@ public class JarCache {
     }
 
     @Override
-    public void onSync(
+    public Collection<File> onSync(
         Project project,
         BlazeContext context,
         ProjectViewSet projectViewSet,
         BlazeProjectData projectData,
         BlazeSyncParams.SyncMode syncMode) {
-      getInstance(project).onSync(context, projectData, syncMode);
+      return getInstance(project).onSync(context, projectData);
     }
 
     @Override
-    public void refreshFiles(Project project) {
-      getInstance(project).refresh();
+    public Collection<File> refreshFiles(Project project) {
+      return getInstance(project).refresh();
     }
   }
 }
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.libraries;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.idea.blaze.base.filecache.FileCopyLimiter;
+import com.google.idea.blaze.base.util.SerializationUtil;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Content-addressed store of library jars, shared between all projects on this machine.
+ *
+ * <p>Each entry is named after the digest of its contents, so identical jars from different
+ * configurations or projects are only stored once, and unchanged jars are never copied twice.
+ * Entries are hardlinked from their source when possible, and copied otherwise. The store is kept
+ * under a size limit by evicting the least recently used entries not in use by any open project.
+ */
+public class JarCacheStore {
+  private static final Logger logger = Logger.getInstance(JarCacheStore.class);
+  @VisibleForTesting static final String INDEX_FILE_NAME = ".index";
+
+  /** Remembers file digests and entry usage between IDE sessions. */
+  static class Index implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /** Source file -> timestamp and digest, so unchanged files aren't hashed again. */
+    private Map<File, DigestEntry> digests = Maps.newHashMap();
+    /** Entry name -> time it was last used by any project. */
+    private Map<String, Long> lastUsed = Maps.newHashMap();
+  }
+
+  static class DigestEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long timestamp;
+    private final String digest;
+
+    DigestEntry(long timestamp, String digest) {
+      this.timestamp = timestamp;
+      this.digest = digest;
+    }
+  }
+
+  /** The outcome of caching a set of files. */
+  static class CacheResult {
+    /** Source file -> cached file. */
+    final ImmutableMap<File, File> cachedFiles;
+    /** Entries added to the store by this call. */
+    final ImmutableList<File> newFiles;
+
+    final int linked;
+    final int copied;
+    final int reused;
+
+    CacheResult(
+        ImmutableMap<File, File> cachedFiles,
+        ImmutableList<File> newFiles,
+        int linked,
+        int copied,
+        int reused) {
+      this.cachedFiles = cachedFiles;
+      this.newFiles = newFiles;
+      this.linked = linked;
+      this.copied = copied;
+      this.reused = reused;
+    }
+  }
+
+  /** The outcome of enforcing the size limit. */
+  static class EvictionResult {
+    final int evictedFiles;
+    final long evictedBytes;
+    final int remainingFiles;
+    final long remainingBytes;
+    /** Entries deleted from the store. */
+    final ImmutableList<File> deletedFiles;
+
+    EvictionResult(
+        int evictedFiles,
+        long evictedBytes,
+        int remainingFiles,
+        long remainingBytes,
+        ImmutableList<File> deletedFiles) {
+      this.evictedFiles = evictedFiles;
+      this.evictedBytes = evictedBytes;
+      this.remainingFiles = remainingFiles;
+      this.remainingBytes = remainingBytes;
+      this.deletedFiles = deletedFiles;
+    }
+  }
+
+  private final File storeDir;
+  /** Owner (e.g. project) -> entries currently referenced by it. These are never evicted. */
+  private final Map<String, ImmutableSet<String>> entriesInUse = Maps.newHashMap();
+  /**
+   * Entries being checked or materialized by {@link #cacheFiles}, before they're marked in use.
+   * These are never evicted either. Guarded by this.
+   */
+  private final Multiset<String> pendingEntries = HashMultiset.create();
+  @Nullable private Index index;
+  /** Whether the index has changed since it was last saved. Guarded by this. */
+  private boolean indexChanged;
+
+  public static JarCacheStore getInstance() {
+    return ServiceManager.getService(JarCacheStore.class);
+  }
+
+  public JarCacheStore() {
+    this(new File(PathManager.getSystemPath(), "blaze/jar_cache").getAbsoluteFile());
+  }
+
+  JarCacheStore(File storeDir) {
+    this.storeDir = storeDir;
+  }
+
+  /**
+   * Makes sure every source file is present in the store, and marks the resulting entries as in
+   * use by the given owner. The updated index isn't saved until {@link #saveIndexIfChanged}.
+   *
+   * @param sourceFiles source file -> file name suffix to use for its entry (e.g. ".jar")
+   * @param timestamps the current timestamps of the source files. Files without a timestamp are
+   *     skipped.
+   * @param replaceEntriesInUse whether these entries replace everything the owner previously used,
+   *     or are in addition to them
+   * @param retainedEntries entries the owner still references besides these (e.g. from library
+   *     roots not updated yet), which stay in use even when replacing the owner's entries
+   */
+  @Nullable
+  CacheResult cacheFiles(
+      String owner,
+      Map<File, String> sourceFiles,
+      Map<File, Long> timestamps,
+      ListeningExecutorService executor,
+      boolean replaceEntriesInUse,
+      Collection<File> retainedEntries) {
+    if (!storeDir.exists() && !storeDir.mkdirs()) {
+      logger.error("Could not create jar cache directory");
+      return null;
+    }
+    Index index = getIndex();
+
+    // Hash any file we haven't seen before, or that has changed since we last hashed it
+    Map<File, String> digests = Maps.newHashMap();
+    Map<File, ListenableFuture<String>> digestFutures = Maps.newHashMap();
+    synchronized (this) {
+      for (Map.Entry<File, Long> entry : timestamps.entrySet()) {
+        File file = entry.getKey();
+        if (!sourceFiles.containsKey(file)) {
+          continue;
+        }
+        DigestEntry digestEntry = index.digests.get(file);
+        if (digestEntry != null && digestEntry.timestamp == entry.getValue()) {
+          digests.put(file, digestEntry.digest);
+        } else {
+          digestFutures.put(file, executor.submit(() -> digest(file)));
+        }
+      }
+    }
+    if (!waitForAll(digestFutures.values())) {
+      return null;
+    }
+    synchronized (this) {
+      for (Map.Entry<File, ListenableFuture<String>> entry : digestFutures.entrySet()) {
+        String digest = Futures.getUnchecked(entry.getValue());
+        if (digest == null) {
+          continue;
+        }
+        File file = entry.getKey();
+        digests.put(file, digest);
+        index.digests.put(file, new DigestEntry(timestamps.get(file), digest));
+      }
+    }
+
+    Map<File, File> cachedFiles = Maps.newHashMap();
+    Map<String, File> entrySources = Maps.newHashMap();
+    for (Map.Entry<File, String> entry : digests.entrySet()) {
+      File sourceFile = entry.getKey();
+      String entryName = entry.getValue() + sourceFiles.get(sourceFile);
+      cachedFiles.put(sourceFile, new File(storeDir, entryName));
+      entrySources.putIfAbsent(entryName, sourceFile);
+    }
+    Set<String> entryNames = Sets.newHashSet(entrySources.keySet());
+
+    // Pin the entries first, so a concurrent eviction can't delete one found to exist here
+    synchronized (this) {
+      pendingEntries.addAll(entryNames);
+    }
+    try {
+      return cacheEntries(
+          owner, executor, replaceEntriesInUse, retainedEntries, cachedFiles, entrySources);
+    } finally {
+      synchronized (this) {
+        entryNames.forEach(pendingEntries::remove);
+      }
+    }
+  }
+
+  /** Materializes any entries that aren't in the store yet, and marks them all as in use. */
+  @Nullable
+  private CacheResult cacheEntries(
+      String owner,
+      ListeningExecutorService executor,
+      boolean replaceEntriesInUse,
+      Collection<File> retainedEntries,
+      Map<File, File> cachedFiles,
+      Map<String, File> entrySources) {
+    Set<File> failedFiles = Sets.newConcurrentHashSet();
+    Set<File> newFiles = Sets.newConcurrentHashSet();
+    List<ListenableFuture<?>> futures = Lists.newArrayList();
+    AtomicInteger linked = new AtomicInteger(0);
+    AtomicInteger copied = new AtomicInteger(0);
+    int reused = 0;
+    for (Map.Entry<String, File> entry : entrySources.entrySet()) {
+      File sourceFile = entry.getValue();
+      File cacheFile = new File(storeDir, entry.getKey());
+      if (cacheFile.exists()) {
+        reused++;
+        continue;
+      }
+      futures.add(
+          executor.submit(
+              () -> {
+                try {
+                  if (materialize(sourceFile, cacheFile)) {
+                    linked.incrementAndGet();
+                  } else {
+                    copied.incrementAndGet();
+                  }
+                  newFiles.add(cacheFile);
+                } catch (IOException e) {
+                  logger.warn(e);
+                  failedFiles.add(cacheFile);
+                }
+              }));
+    }
+    if (!waitForAll(futures)) {
+      return null;
+    }
+    cachedFiles.values().removeAll(failedFiles);
+
+    Set<String> entryNames = Sets.newHashSet(entrySources.keySet());
+    Index index = getIndex();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (String entryName : entryNames) {
+        index.lastUsed.put(entryName, now);
+      }
+      ImmutableSet<String> previousEntries = entriesInUse.get(owner);
+      if (!replaceEntriesInUse && previousEntries != null) {
+        entryNames.addAll(previousEntries);
+      }
+      for (File retainedEntry : retainedEntries) {
+        entryNames.add(retainedEntry.getName());
+      }
+      entriesInUse.put(owner, ImmutableSet.copyOf(entryNames));
+      indexChanged = true;
+    }
+    return new CacheResult(
+        ImmutableMap.copyOf(cachedFiles),
+        ImmutableList.copyOf(newFiles),
+        linked.get(),
+        copied.get(),
+        reused);
+  }
+
+  /** Stops protecting the owner's entries from eviction. */
+  synchronized void release(String owner) {
+    entriesInUse.remove(owner);
+  }
+
+  /** Evicts the least recently used entries not in use until the store is below the limit. */
+  @Nullable
+  synchronized EvictionResult evict(long maxSizeBytes) {
+    File[] files = storeDir.listFiles();
+    if (files == null) {
+      return null;
+    }
+    Index index = getIndex();
+    Set<String> inUse = Sets.newHashSet(pendingEntries.elementSet());
+    entriesInUse.values().forEach(inUse::addAll);
+
+    long totalSize = 0;
+    List<File> candidates = Lists.newArrayList();
+    Map<File, Long> sizes = Maps.newHashMap();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(".")) {
+        continue; // The index, or an entry still being written
+      }
+      long size = file.length();
+      sizes.put(file, size);
+      totalSize += size;
+      if (!inUse.contains(name)) {
+        candidates.add(file);
+      }
+    }
+    candidates.sort(
+        Comparator.comparingLong(
+            file -> index.lastUsed.getOrDefault(file.getName(), file.lastModified())));
+
+    int evictedFiles = 0;
+    long evictedBytes = 0;
+    ImmutableList.Builder<File> deletedFiles = ImmutableList.builder();
+    for (File file : candidates) {
+      if (totalSize <= maxSizeBytes) {
+        break;
+      }
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        logger.warn(e);
+        continue;
+      }
+      long size = sizes.get(file);
+      totalSize -= size;
+      evictedBytes += size;
+      evictedFiles++;
+      deletedFiles.add(file);
+      index.lastUsed.remove(file.getName());
+    }
+    if (evictedFiles > 0) {
+      // Forget digests of source files that no longer exist
+      index.digests.keySet().removeIf(file -> !file.exists());
+      indexChanged = true;
+    }
+    return new EvictionResult(
+        evictedFiles,
+        evictedBytes,
+        sizes.size() - evictedFiles,
+        totalSize,
+        deletedFiles.build());
+  }
+
+  /**
+   * Places the source file in the store under the given name, via a temporary file so other
+   * readers never see a partial entry. Returns true if the entry was hardlinked, false if copied.
+   *
+   * <p>Only read-only sources (e.g. blaze outputs) are hardlinked. A writable source could be
+   * modified in place, which would silently change the contents of the entry.
+   */
+  private boolean materialize(File sourceFile, File cacheFile) throws IOException {
+    Path source = sourceFile.toPath();
+    Path target = cacheFile.toPath();
+    Path temp = Files.createTempFile(storeDir.toPath(), ".", ".tmp");
+    boolean linked = false;
+    try {
+      if (isReadOnly(source)) {
+        try {
+          Files.delete(temp);
+          Files.createLink(temp, source);
+          linked = true;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+          // Different filesystems, or links aren't supported -- fall back to copying
+        }
+      }
+      if (!linked) {
+        FileCopyLimiter.SHARED.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return linked;
+  }
+
+  private static boolean isReadOnly(Path path) {
+    PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+    if (view == null) {
+      return !Files.isWritable(path);
+    }
+    try {
+      Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+      return !permissions.contains(PosixFilePermission.OWNER_WRITE)
+          && !permissions.contains(PosixFilePermission.GROUP_WRITE)
+          && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Nullable
+  private static String digest(File file) {
+    try {
+      return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).toString();
+    } catch (IOException e) {
+      logger.warn(e);
+      return null;
+    }
+  }
+
+  private static boolean waitForAll(Iterable<? extends ListenableFuture<?>> futures) {
+    try {
+      Futures.allAsList(futures).get();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warn(e);
+    } catch (ExecutionException e) {
+      logger.error(e);
+    }
+    return false;
+  }
+
+  private synchronized Index getIndex() {
+    if (index == null) {
+      index = loadIndex();
+    }
+    return index;
+  }
+
+  private Index loadIndex() {
+    File file = new File(storeDir, INDEX_FILE_NAME);
+    try {
+      Object loaded =
+          SerializationUtil.loadFromDisk(file, Lists.newArrayList(getClass().getClassLoader()));
+      if (loaded instanceof Index) {
+        return (Index) loaded;
+      }
+    } catch (IOException e) {
+      logger.info("Could not load jar cache index, starting from scratch", e);
+    }
+    return new Index();
+  }
+
+  /**
+   * Saves the index if it has changed. Callers caching many files one at a time (e.g. source jar
+   * prefetching) save once they're done, rather than after every file.
+   */
+  synchronized void saveIndexIfChanged() {
+    if (index == null || !indexChanged) {
+      return;
+    }
+    indexChanged = false;
+    try {
+      SerializationUtil.saveToDisk(new File(storeDir, INDEX_FILE_NAME), index);
+    } catch (IOException e) {
+      logger.warn("Could not save jar cache index", e);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.libraries;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs source jar caching tasks in the background, one at a time.
+ *
+ * <p>Urgent tasks (e.g. for a library the user just navigated into) jump ahead of any queued
+ * background prefetching. Tasks of equal priority run in submission order.
+ */
+final class SourceJarPrefetcher {
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequenceNumber = new AtomicLong(0);
+
+  private static final class Task implements Runnable, Comparable<Task> {
+    private final boolean urgent;
+    private final long sequenceNumber;
+    private final Runnable runnable;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    Task(boolean urgent, long sequenceNumber, Runnable runnable) {
+      this.urgent = urgent;
+      this.sequenceNumber = sequenceNumber;
+      this.runnable = runnable;
+    }
+
+    @Override
+    public void run() {
+      try {
+        runnable.run();
+        future.set(null);
+      } catch (RuntimeException e) {
+        future.setException(e);
+      }
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (urgent != other.urgent) {
+        return urgent ? -1 : 1;
+      }
+      return Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+  }
+
+  /** @param onIdle run after a task whenever no more tasks are queued */
+  SourceJarPrefetcher(Runnable onIdle) {
+    executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("SourceJarPrefetcher-%d")
+                .setDaemon(true)
+                .build()) {
+          @Override
+          protected void afterExecute(Runnable runnable, Throwable throwable) {
+            if (getQueue().isEmpty()) {
+              onIdle.run();
+            }
+          }
+        };
+  }
+
+  ListenableFuture<Void> submit(Runnable runnable, boolean urgent) {
+    Task task = new Task(urgent, sequenceNumber.getAndIncrement(), runnable);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.future.cancel(false);
+    }
+    return task.future;
+  }
+
+  /** Drops any background tasks which haven't started yet. Urgent tasks are kept. */
+  void cancelPendingBackgroundTasks() {
+    executor
+        .getQueue()
+        .removeIf(
+            runnable -> {
+              Task task = (Task) runnable;
+              if (task.urgent) {
+                return false;
+              }
+              task.future.cancel(false);
+              return true;
+            });
+  }
+
+  /**
+   * Cancels all tasks which haven't started yet, and stops the background thread once any running
+   * task is done.
+   */
+  void shutdown() {
+    List<Runnable> pendingTasks = Lists.newArrayList();
+    executor.getQueue().drainTo(pendingTasks);
+    executor.shutdown();
+    for (Runnable runnable : pendingTasks) {
+      ((Task) runnable).future.cancel(false);
+    }
+  }
+}
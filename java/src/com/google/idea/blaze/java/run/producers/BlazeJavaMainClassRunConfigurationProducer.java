@@ -177,9 +177,9 @@ public class BlazeJavaMainClassRunConfigurationProducer
 
   private static FilteredTargetMap computeTargetMap(Project project, BlazeProjectData projectData) {
     return new FilteredTargetMap(
-        project,
         projectData.artifactLocationDecoder,
         projectData.targetMap,
+        projectData.reverseDependencies,
         (targetIdeInfo) -> targetIdeInfo.kind == Kind.JAVA_BINARY && targetIdeInfo.isPlainTarget());
   }
 }
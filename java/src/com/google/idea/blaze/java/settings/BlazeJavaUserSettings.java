@@ -28,7 +28,10 @@ import org.jetbrains.annotations.NotNull;
 /** Java-specific user settings. */
 @State(name = "BlazeJavaUserSettings", storages = @Storage("blaze.java.user.settings.xml"))
 public class BlazeJavaUserSettings implements PersistentStateComponent<BlazeJavaUserSettings> {
+  private static final int DEFAULT_JAR_CACHE_MAX_SIZE_MB = 10 * 1024;
+
   private boolean useJarCache = getDefaultJarCacheValue();
+  private int jarCacheMaxSizeMb = DEFAULT_JAR_CACHE_MAX_SIZE_MB;
   private boolean attachSourcesByDefault = false;
   private boolean attachSourcesOnDemand = false;
   private boolean migrated;
@@ -76,6 +79,15 @@ public class BlazeJavaUserSettings implements PersistentStateComponent<BlazeJava
     this.useJarCache = useJarCache;
   }
 
+  /** The jar cache is shared between projects, and pruned down to this size after each sync. */
+  public int getJarCacheMaxSizeMb() {
+    return jarCacheMaxSizeMb;
+  }
+
+  public void setJarCacheMaxSizeMb(int jarCacheMaxSizeMb) {
+    this.jarCacheMaxSizeMb = jarCacheMaxSizeMb;
+  }
+
   public boolean getAttachSourcesByDefault() {
     return attachSourcesByDefault;
   }
@@ -47,6 +47,7 @@ import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolver;
 import com.google.idea.blaze.java.projectview.ExcludeLibrarySection;
 import com.google.idea.blaze.java.projectview.ExcludedLibrarySection;
 import com.google.idea.blaze.java.projectview.JavaLanguageLevelSection;
+import com.google.idea.blaze.java.sync.classjars.ClassJarIndexer;
 import com.google.idea.blaze.java.sync.importer.BlazeJavaWorkspaceImporter;
 import com.google.idea.blaze.java.sync.importer.JavaSourceFilter;
 import com.google.idea.blaze.java.sync.jdeps.JdepsFileReader;
@@ -73,6 +74,7 @@ import javax.annotation.Nullable;
 /** Sync support for Java. */
 public class BlazeJavaSyncPlugin extends BlazeSyncPlugin.Adapter {
   private final JdepsFileReader jdepsFileReader = new JdepsFileReader();
+  private final ClassJarIndexer classJarIndexer = new ClassJarIndexer();
 
   @Override
   public ImmutableList<WorkspaceType> getSupportedWorkspaceTypes() {
@@ -138,6 +140,12 @@ public class BlazeJavaSyncPlugin extends BlazeSyncPlugin.Adapter {
       return;
     }
 
+    classJarIndexer.updateIndex(
+        project, context, artifactLocationDecoder, targetMap, syncStateBuilder, previousSyncState);
+    if (context.isCancelled()) {
+      return;
+    }
+
     BlazeJavaWorkspaceImporter blazeJavaWorkspaceImporter =
         new BlazeJavaWorkspaceImporter(
             project,
@@ -156,6 +164,9 @@ public class BlazeJavaSyncPlugin extends BlazeSyncPlugin.Adapter {
               childContext.push(new TimingScope("JavaWorkspaceImporter"));
               return blazeJavaWorkspaceImporter.importWorkspace(childContext);
             });
+    if (importResult == null) {
+      return;
+    }
     Glob.GlobSet excludedLibraries =
         new Glob.GlobSet(
             ImmutableList.<Glob>builder()
@@ -15,10 +15,10 @@
  */
 package com.google.idea.blaze.java.sync;
 
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.scope.BlazeContext;
@@ -26,14 +26,29 @@ import com.google.idea.blaze.base.scope.output.PerformanceWarning;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** Detects and reports duplicate sources */
 public class DuplicateSourceDetector {
-  Multimap<ArtifactLocation, TargetKey> artifacts = ArrayListMultimap.create();
+  /** Source -> the first target consuming it. */
+  private final Map<ArtifactLocation, TargetKey> artifacts = Maps.newHashMap();
+  /** Source -> all targets consuming it, only for sources consumed by more than one target. */
+  private final Multimap<ArtifactLocation, TargetKey> duplicateArtifacts =
+      LinkedHashMultimap.create();
 
   public void add(TargetKey targetKey, ArtifactLocation artifactLocation) {
-    artifacts.put(artifactLocation, targetKey);
+    TargetKey firstTarget = artifacts.putIfAbsent(artifactLocation, targetKey);
+    // The same target may list a source more than once (an old aspect bug)
+    if (firstTarget != null && !firstTarget.equals(targetKey)) {
+      duplicateArtifacts.put(artifactLocation, firstTarget);
+      duplicateArtifacts.put(artifactLocation, targetKey);
+    }
+  }
+
+  /** Returns every source added so far, with each distinct source appearing once. */
+  public Set<ArtifactLocation> getSources() {
+    return Collections.unmodifiableSet(artifacts.keySet());
   }
 
   static class Duplicate {
@@ -48,16 +63,8 @@ public class DuplicateSourceDetector {
 
   public void reportDuplicates(BlazeContext context) {
     List<Duplicate> duplicates = Lists.newArrayList();
-    for (ArtifactLocation key : artifacts.keySet()) {
-      Collection<TargetKey> labels = artifacts.get(key);
-      if (labels.size() > 1) {
-
-        // Workaround for aspect bug. Can be removed after the next blaze release, as of May 27 2016
-        Set<TargetKey> labelSet = Sets.newHashSet(labels);
-        if (labelSet.size() > 1) {
-          duplicates.add(new Duplicate(key, labelSet));
-        }
-      }
+    for (ArtifactLocation key : duplicateArtifacts.keySet()) {
+      duplicates.add(new Duplicate(key, duplicateArtifacts.get(key)));
     }
 
     if (duplicates.isEmpty()) {
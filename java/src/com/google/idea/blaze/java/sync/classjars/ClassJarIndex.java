@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.classjars;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Maps class and package names to the jars defining them, over every jar produced or imported by
+ * the project's java targets.
+ *
+ * <p>Built at sync time by {@link ClassJarIndexer}, and updated incrementally whenever jars change.
+ * Lookups never touch the jars themselves.
+ */
+public final class ClassJarIndex implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Immutable state of the index. Replaced as a whole on every update. */
+  static final class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Jar -> timestamp at the time it was indexed. */
+    final ImmutableMap<File, Long> fileState;
+    /** Jar -> binary names of the classes it contains. */
+    final ImmutableMap<File, ImmutableList<String>> jarContents;
+
+    @Nullable private transient volatile Lookup lookup;
+
+    Snapshot(
+        ImmutableMap<File, Long> fileState,
+        ImmutableMap<File, ImmutableList<String>> jarContents) {
+      this.fileState = fileState;
+      this.jarContents = jarContents;
+    }
+
+    Lookup getLookup() {
+      Lookup lookup = this.lookup;
+      if (lookup == null) {
+        synchronized (this) {
+          lookup = this.lookup;
+          if (lookup == null) {
+            lookup = new Lookup(jarContents);
+            this.lookup = lookup;
+          }
+        }
+      }
+      return lookup;
+    }
+  }
+
+  /** In-memory lookup tables, keyed by jar id. */
+  private static final class Lookup {
+    final File[] jars;
+    final Map<String, int[]> classToJars;
+    final Map<String, int[]> packageToJars;
+
+    Lookup(ImmutableMap<File, ImmutableList<String>> jarContents) {
+      jars = jarContents.keySet().toArray(new File[0]);
+      classToJars = Maps.newHashMap();
+      packageToJars = Maps.newHashMap();
+      for (int jarId = 0; jarId < jars.length; ++jarId) {
+        String lastPackage = null;
+        for (String className : jarContents.get(jars[jarId])) {
+          addJar(classToJars, className, jarId);
+          String packageName = packageName(className);
+          // Class names are grouped by package, so this skips almost all duplicates
+          if (!packageName.equals(lastPackage)) {
+            addJar(packageToJars, packageName, jarId);
+            lastPackage = packageName;
+          }
+        }
+      }
+    }
+
+    private static void addJar(Map<String, int[]> map, String key, int jarId) {
+      int[] jarIds = map.get(key);
+      if (jarIds == null) {
+        map.put(key, new int[] {jarId});
+        return;
+      }
+      if (jarIds[jarIds.length - 1] == jarId) {
+        return;
+      }
+      int[] newJarIds = Arrays.copyOf(jarIds, jarIds.length + 1);
+      newJarIds[jarIds.length] = jarId;
+      map.put(key, newJarIds);
+    }
+
+    ImmutableList<File> toJars(@Nullable int[] jarIds) {
+      if (jarIds == null) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<File> builder = ImmutableList.builder();
+      for (int jarId : jarIds) {
+        builder.add(jars[jarId]);
+      }
+      return builder.build();
+    }
+  }
+
+  private volatile Snapshot snapshot;
+
+  ClassJarIndex(Snapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /** Returns the index computed during the last sync, or null if there is none. */
+  @Nullable
+  public static ClassJarIndex get(BlazeProjectData blazeProjectData) {
+    return blazeProjectData.syncState.get(ClassJarIndex.class);
+  }
+
+  /** Returns the jars defining a class, given its binary name (e.g. com.foo.Bar$Inner). */
+  public ImmutableList<File> getJarsForClass(String className) {
+    Lookup lookup = snapshot.getLookup();
+    return lookup.toJars(lookup.classToJars.get(className));
+  }
+
+  /** Returns the jars containing at least one class in the given package. */
+  public ImmutableList<File> getJarsForPackage(String packageName) {
+    Lookup lookup = snapshot.getLookup();
+    return lookup.toJars(lookup.packageToJars.get(packageName));
+  }
+
+  /**
+   * Returns true if the jar was indexed with the given timestamp, i.e. lookups are accurate for it.
+   */
+  public boolean isIndexed(File jar, long timestamp) {
+    Long indexedTimestamp = snapshot.fileState.get(jar);
+    return indexedTimestamp != null && indexedTimestamp == timestamp;
+  }
+
+  Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Replaces the contents of any updated jars, and drops any removed jars. Jars which couldn't be
+   * read should be passed as removed, so they're picked up again by the next update.
+   */
+  void update(
+      ImmutableMap<File, Long> fileState,
+      Map<File, ImmutableList<String>> updatedJars,
+      Collection<File> removedJars) {
+    Map<File, ImmutableList<String>> jarContents = Maps.newHashMap(snapshot.jarContents);
+    jarContents.keySet().removeAll(removedJars);
+    jarContents.putAll(updatedJars);
+    jarContents.keySet().retainAll(fileState.keySet());
+    Map<File, Long> indexedState = Maps.filterKeys(fileState, jarContents::containsKey);
+    snapshot = new Snapshot(ImmutableMap.copyOf(indexedState), ImmutableMap.copyOf(jarContents));
+  }
+
+  static String packageName(String className) {
+    int index = className.lastIndexOf('.');
+    return index >= 0 ? className.substring(0, index) : "";
+  }
+
+  /** Returns the binary names of the classes named in the given jar entries. */
+  static ImmutableList<String> classNames(List<String> entryNames) {
+    ImmutableList.Builder<String> classNames = ImmutableList.builder();
+    for (String entryName : entryNames) {
+      if (!entryName.endsWith(".class")) {
+        continue;
+      }
+      String className =
+          entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+      if (className.endsWith("package-info") || className.endsWith("module-info")) {
+        continue;
+      }
+      classNames.add(className);
+    }
+    return classNames.build();
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.classjars;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.idea.blaze.base.async.FutureUtil;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.filecache.FileCache;
+import com.google.idea.blaze.base.filecache.FileDiffer;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.JavaIdeInfo;
+import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.SyncState;
+import com.google.idea.blaze.base.prefetch.PrefetchService;
+import com.google.idea.blaze.base.projectview.ProjectViewSet;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.scope.Scope;
+import com.google.idea.blaze.base.scope.output.PrintOutput;
+import com.google.idea.blaze.base.scope.scopes.TimingScope;
+import com.google.idea.blaze.base.sync.BlazeSyncParams;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.annotation.Nullable;
+
+/** Builds the {@link ClassJarIndex} during sync, and keeps it up to date after builds. */
+public class ClassJarIndexer {
+  private static final Logger logger = Logger.getInstance(ClassJarIndexer.class);
+
+  /** Indexes any jars added or changed since the last sync. */
+  public void updateIndex(
+      Project project,
+      BlazeContext parentContext,
+      ArtifactLocationDecoder artifactLocationDecoder,
+      TargetMap targetMap,
+      SyncState.Builder syncStateBuilder,
+      @Nullable SyncState previousSyncState) {
+    ClassJarIndex oldIndex =
+        previousSyncState != null ? previousSyncState.get(ClassJarIndex.class) : null;
+    ClassJarIndex index =
+        new ClassJarIndex(
+            oldIndex != null
+                ? oldIndex.getSnapshot()
+                : new ClassJarIndex.Snapshot(ImmutableMap.of(), ImmutableMap.of()));
+    boolean success =
+        Scope.push(
+            parentContext,
+            (context) -> {
+              context.push(new TimingScope("IndexClassJars"));
+              return indexJars(
+                  project, context, index, collectJars(artifactLocationDecoder, targetMap));
+            });
+    if (success) {
+      syncStateBuilder.put(ClassJarIndex.class, index);
+    }
+  }
+
+  private static Set<File> collectJars(
+      ArtifactLocationDecoder artifactLocationDecoder, TargetMap targetMap) {
+    Set<File> jars = Sets.newHashSet();
+    for (TargetIdeInfo target : targetMap.targets()) {
+      JavaIdeInfo javaIdeInfo = target.javaIdeInfo;
+      if (javaIdeInfo == null) {
+        continue;
+      }
+      for (LibraryArtifact jar : javaIdeInfo.jars) {
+        jars.add(artifactLocationDecoder.decode(jarToIndex(jar)));
+      }
+      for (LibraryArtifact jar : javaIdeInfo.generatedJars) {
+        jars.add(artifactLocationDecoder.decode(jarToIndex(jar)));
+      }
+    }
+    return jars;
+  }
+
+  /** Prefer the full class jar, since interface jars may omit private classes. */
+  private static ArtifactLocation jarToIndex(LibraryArtifact jar) {
+    return jar.classJar != null ? jar.classJar : jar.interfaceJar;
+  }
+
+  /**
+   * Re-reads the contents of any jars which changed since they were last indexed. If a context is
+   * given, the jars are prefetched first.
+   */
+  private static boolean indexJars(
+      Project project, @Nullable BlazeContext context, ClassJarIndex index, Set<File> jars) {
+    ImmutableMap<File, Long> fileState = FileDiffer.readFileState(jars);
+    if (fileState == null) {
+      return false;
+    }
+    List<File> updatedFiles = Lists.newArrayList();
+    List<File> removedFiles = Lists.newArrayList();
+    FileDiffer.diffState(index.getSnapshot().fileState, fileState, updatedFiles, removedFiles);
+
+    if (context != null && !updatedFiles.isEmpty()) {
+      ListenableFuture<?> fetchFuture =
+          PrefetchService.getInstance().prefetchFiles(project, updatedFiles);
+      if (!FutureUtil.waitForFuture(context, fetchFuture)
+          .timed("FetchClassJars")
+          .withProgressMessage("Reading class jars...")
+          .run()
+          .success()) {
+        return false;
+      }
+    }
+
+    List<ListenableFuture<ImmutableList<String>>> futures = Lists.newArrayList();
+    for (File updatedFile : updatedFiles) {
+      futures.add(BlazeExecutor.getInstance().submit(() -> readClassNames(updatedFile)));
+    }
+    Map<File, ImmutableList<String>> updatedJars = Maps.newHashMap();
+    try {
+      List<ImmutableList<String>> results = Futures.allAsList(futures).get();
+      for (int i = 0; i < updatedFiles.size(); ++i) {
+        ImmutableList<String> classNames = results.get(i);
+        if (classNames != null) {
+          updatedJars.put(updatedFiles.get(i), classNames);
+        } else {
+          removedFiles.add(updatedFiles.get(i));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      logger.error(e);
+      return false;
+    }
+
+    index.update(fileState, updatedJars, removedFiles);
+    if (context != null) {
+      context.output(
+          PrintOutput.log(
+              String.format(
+                  "Indexed %d class jars (%d total)",
+                  updatedJars.size(), index.getSnapshot().fileState.size())));
+    }
+    return true;
+  }
+
+  @Nullable
+  private static ImmutableList<String> readClassNames(File jar) {
+    try (ZipFile zipFile = new ZipFile(jar)) {
+      List<String> entryNames = Lists.newArrayListWithCapacity(zipFile.size());
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        entryNames.add(entries.nextElement().getName());
+      }
+      return ClassJarIndex.classNames(entryNames);
+    } catch (IOException e) {
+      logger.info("Could not read class jar: " + jar);
+      return null;
+    }
+  }
+
+  /** Re-indexes any jars rebuilt since the last sync. */
+  static class FileCacheAdapter implements FileCache {
+    @Override
+    public String getName() {
+      return "Class Jar Index";
+    }
+
+    @Override
+    public Collection<File> onSync(
+        Project project,
+        BlazeContext context,
+        ProjectViewSet projectViewSet,
+        BlazeProjectData projectData,
+        BlazeSyncParams.SyncMode syncMode) {
+      // The index is updated as part of the sync state
+      return ImmutableList.of();
+    }
+
+    @Override
+    public Collection<File> refreshFiles(Project project) {
+      BlazeProjectData blazeProjectData =
+          BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+      if (blazeProjectData == null) {
+        return ImmutableList.of();
+      }
+      ClassJarIndex index = ClassJarIndex.get(blazeProjectData);
+      if (index == null) {
+        return ImmutableList.of();
+      }
+      Set<File> jars =
+          collectJars(blazeProjectData.artifactLocationDecoder, blazeProjectData.targetMap);
+      indexJars(project, null, index, jars);
+      // The index lives in memory and doesn't write any files
+      return ImmutableList.of();
+    }
+  }
+}
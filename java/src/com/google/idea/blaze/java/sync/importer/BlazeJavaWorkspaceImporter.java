@@ -15,15 +15,16 @@
  */
 package com.google.idea.blaze.java.sync.importer;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.Dependency;
 import com.google.idea.blaze.base.ideinfo.Dependency.DependencyType;
@@ -37,7 +38,10 @@ import com.google.idea.blaze.base.model.LibraryKey;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.scope.Scope;
+import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
+import com.google.idea.blaze.base.scope.scopes.TimingScope;
 import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.sync.projectview.ImportRoots;
 import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
@@ -56,12 +60,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /** Builds a BlazeWorkspace. */
 public final class BlazeJavaWorkspaceImporter {
+  /** Source targets are imported in batches of this size, to amortize the per-task overhead. */
+  private static final int SOURCE_TARGETS_PER_TASK = 500;
+
   private final Project project;
   private final WorkspaceRoot workspaceRoot;
   private final ImportRoots importRoots;
@@ -101,10 +110,18 @@ public final class BlazeJavaWorkspaceImporter {
     this.projectViewSet = projectViewSet;
   }
 
+  /** Returns the import result, or null if importing failed or was cancelled. */
+  @Nullable
   public BlazeJavaImportResult importWorkspace(BlazeContext context) {
-    WorkspaceBuilder workspaceBuilder = new WorkspaceBuilder();
-    for (TargetIdeInfo target : sourceFilter.sourceTargets) {
-      addTargetAsSource(workspaceBuilder, target, sourceFilter.targetToJavaSources.get(target.key));
+    WorkspaceBuilder workspaceBuilder =
+        Scope.push(
+            context,
+            (childContext) -> {
+              childContext.push(new TimingScope("ImportSourceTargets"));
+              return importSourceTargets(childContext);
+            });
+    if (workspaceBuilder == null) {
+      return null;
     }
 
     SourceDirectoryCalculator sourceDirectoryCalculator = new SourceDirectoryCalculator();
@@ -125,8 +142,16 @@ public final class BlazeJavaWorkspaceImporter {
     context.output(PrintOutput.log("Java content entry count: " + totalContentEntryCount));
 
     ImmutableMap<LibraryKey, BlazeJarLibrary> libraries =
-        buildLibraries(
-            workspaceBuilder, targetMap, sourceFilter.libraryTargets, sourceFilter.protoLibraries);
+        Scope.push(
+            context,
+            (childContext) -> {
+              childContext.push(new TimingScope("BuildLibraries"));
+              return buildLibraries(
+                  workspaceBuilder,
+                  targetMap,
+                  sourceFilter.libraryTargets,
+                  sourceFilter.protoLibraries);
+            });
 
     duplicateSourceDetector.reportDuplicates(context);
 
@@ -137,44 +162,85 @@ public final class BlazeJavaWorkspaceImporter {
         libraries,
         ImmutableList.copyOf(
             workspaceBuilder.buildOutputJars.stream().sorted().collect(Collectors.toList())),
-        ImmutableSet.copyOf(workspaceBuilder.addedSourceFiles),
+        ImmutableSet.copyOf(duplicateSourceDetector.getSources()),
         sourceVersion);
   }
 
+  /**
+   * Imports the source targets in parallel batches, then merges the results in the original target
+   * order, so the outcome doesn't depend on scheduling. Returns null if importing failed or was
+   * cancelled.
+   */
+  @Nullable
+  private WorkspaceBuilder importSourceTargets(BlazeContext context) {
+    List<ListenableFuture<List<SourceTargetImport>>> futures = Lists.newArrayList();
+    for (List<TargetIdeInfo> batch :
+        Lists.partition(sourceFilter.sourceTargets, SOURCE_TARGETS_PER_TASK)) {
+      futures.add(
+          BlazeExecutor.getInstance()
+              .submit(
+                  () ->
+                      batch
+                          .stream()
+                          .map(this::importSourceTarget)
+                          .filter(Objects::nonNull)
+                          .collect(Collectors.toList())));
+    }
+
+    WorkspaceBuilder workspaceBuilder = new WorkspaceBuilder();
+    try {
+      for (List<SourceTargetImport> batch : Futures.allAsList(futures).get()) {
+        for (SourceTargetImport targetImport : batch) {
+          addSourceTargetImport(workspaceBuilder, targetImport);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      context.setCancelled();
+      return null;
+    } catch (ExecutionException e) {
+      IssueOutput.error("Could not import source targets: " + e.getCause()).submit(context);
+      return null;
+    }
+    return workspaceBuilder;
+  }
+
+  private void addSourceTargetImport(
+      WorkspaceBuilder workspaceBuilder, SourceTargetImport targetImport) {
+    TargetKey targetKey = targetImport.targetKey;
+    if (targetImport.jdeps != null) {
+      workspaceBuilder.jdeps.addAll(targetImport.jdeps);
+    }
+    workspaceBuilder.directDeps.addAll(targetImport.directDeps);
+    for (ArtifactLocation artifactLocation : targetImport.sources) {
+      duplicateSourceDetector.add(targetKey, artifactLocation);
+      workspaceBuilder.sourceArtifacts.add(new SourceArtifact(targetKey, artifactLocation));
+    }
+    if (targetImport.packageManifest != null) {
+      workspaceBuilder.javaPackageManifests.put(targetKey, targetImport.packageManifest);
+    }
+    workspaceBuilder.buildOutputJars.addAll(targetImport.buildOutputJars);
+    for (BlazeJarLibrary library : targetImport.outputJars) {
+      workspaceBuilder.libraryCandidates.addForTarget(targetKey, library);
+    }
+    workspaceBuilder.generatedJarsFromSourceTargets.addAll(targetImport.generatedJars);
+  }
+
   private ImmutableMap<LibraryKey, BlazeJarLibrary> buildLibraries(
       WorkspaceBuilder workspaceBuilder,
       TargetMap targetMap,
       List<TargetIdeInfo> libraryTargets,
       List<TargetIdeInfo> protoLibraries) {
-    // Build library maps
-    Multimap<TargetKey, BlazeJarLibrary> targetKeyToLibrary = ArrayListMultimap.create();
-    Map<String, BlazeJarLibrary> jdepsPathToLibrary = Maps.newHashMap();
-
-    // Add any output jars from source rules
-    for (TargetKey key : workspaceBuilder.outputJarsFromSourceTargets.keySet()) {
-      Collection<BlazeJarLibrary> jars = workspaceBuilder.outputJarsFromSourceTargets.get(key);
-      targetKeyToLibrary.putAll(key, jars);
-      for (BlazeJarLibrary library : jars) {
-        addLibraryToJdeps(jdepsPathToLibrary, library);
-      }
-    }
+    // Output jars from source rules were added while importing them
+    LibraryCandidates libraryCandidates = workspaceBuilder.libraryCandidates;
 
     for (TargetIdeInfo target : libraryTargets) {
       JavaIdeInfo javaIdeInfo = target.javaIdeInfo;
       if (javaIdeInfo == null) {
         continue;
       }
-      List<LibraryArtifact> allJars = Lists.newArrayList();
-      allJars.addAll(javaIdeInfo.jars);
-      Collection<BlazeJarLibrary> libraries =
-          allJars
-              .stream()
-              .map(library -> new BlazeJarLibrary(library, target.key))
-              .collect(Collectors.toList());
-
-      targetKeyToLibrary.putAll(target.key, libraries);
-      for (BlazeJarLibrary library : libraries) {
-        addLibraryToJdeps(jdepsPathToLibrary, library);
+      for (LibraryArtifact libraryArtifact : javaIdeInfo.jars) {
+        libraryCandidates.addForTarget(target.key, libraryArtifact);
       }
     }
 
@@ -189,7 +255,7 @@ public final class BlazeJavaWorkspaceImporter {
               protoLibraryLegacyInfo.jarsV1,
               protoLibraryLegacyInfo.jarsMutable,
               protoLibraryLegacyInfo.jarsImmutable)) {
-        addLibraryToJdeps(jdepsPathToLibrary, new BlazeJarLibrary(libraryArtifact, target.key));
+        libraryCandidates.add(libraryArtifact, target.key, null);
       }
     }
 
@@ -197,7 +263,7 @@ public final class BlazeJavaWorkspaceImporter {
 
     // Collect jars from jdep references
     for (String jdepsPath : workspaceBuilder.jdeps) {
-      BlazeJarLibrary library = jdepsPathToLibrary.get(jdepsPath);
+      BlazeJarLibrary library = libraryCandidates.getForJdepsPath(jdepsPath);
       if (library != null) {
         result.put(library.key, library);
       }
@@ -205,7 +271,7 @@ public final class BlazeJavaWorkspaceImporter {
 
     // Collect jars referenced by direct deps from your working set
     for (TargetKey deps : workspaceBuilder.directDeps) {
-      for (BlazeJarLibrary library : targetKeyToLibrary.get(deps)) {
+      for (BlazeJarLibrary library : libraryCandidates.getForTarget(deps)) {
         result.put(library.key, library);
       }
     }
@@ -316,72 +382,50 @@ public final class BlazeJavaWorkspaceImporter {
     }
   }
 
-  private void addLibraryToJdeps(
-      Map<String, BlazeJarLibrary> jdepsPathToLibrary, BlazeJarLibrary library) {
-    LibraryArtifact libraryArtifact = library.libraryArtifact;
-    ArtifactLocation interfaceJar = libraryArtifact.interfaceJar;
-    if (interfaceJar != null) {
-      jdepsPathToLibrary.put(interfaceJar.getExecutionRootRelativePath(), library);
-    }
-    ArtifactLocation classJar = libraryArtifact.classJar;
-    if (classJar != null) {
-      jdepsPathToLibrary.put(classJar.getExecutionRootRelativePath(), library);
-    }
-  }
-
-  private void addTargetAsSource(
-      WorkspaceBuilder workspaceBuilder,
-      TargetIdeInfo target,
-      Collection<ArtifactLocation> javaSources) {
+  /**
+   * Computes everything a single source target contributes to the workspace. Runs in parallel, so
+   * must not touch any shared state.
+   */
+  @Nullable
+  private SourceTargetImport importSourceTarget(TargetIdeInfo target) {
     JavaIdeInfo javaIdeInfo = target.javaIdeInfo;
     if (javaIdeInfo == null) {
-      return;
+      return null;
     }
 
     TargetKey targetKey = target.key;
-    Collection<String> jars = jdepsMap.getDependenciesForTarget(targetKey);
-    if (jars != null) {
-      workspaceBuilder.jdeps.addAll(jars);
-    }
+    SourceTargetImport targetImport =
+        new SourceTargetImport(targetKey, jdepsMap.getDependenciesForTarget(targetKey));
 
     // Add all deps if this rule is in the current working set
     if (workingSet == null || workingSet.isTargetInWorkingSet(target)) {
       // Add self, so we pick up our own gen jars if in working set
-      workspaceBuilder.directDeps.add(targetKey);
+      targetImport.directDeps.add(targetKey);
       for (Dependency dep : target.dependencies) {
         if (dep.dependencyType == DependencyType.COMPILE_TIME) {
-          workspaceBuilder.directDeps.add(dep.targetKey);
+          targetImport.directDeps.add(dep.targetKey);
         }
       }
     }
 
-    for (ArtifactLocation artifactLocation : javaSources) {
+    for (ArtifactLocation artifactLocation : sourceFilter.targetToJavaSources.get(targetKey)) {
       if (artifactLocation.isSource()) {
-        duplicateSourceDetector.add(targetKey, artifactLocation);
-        workspaceBuilder.sourceArtifacts.add(new SourceArtifact(targetKey, artifactLocation));
-        workspaceBuilder.addedSourceFiles.add(artifactLocation);
+        targetImport.sources.add(artifactLocation);
       }
     }
 
-    ArtifactLocation manifest = javaIdeInfo.packageManifest;
-    if (manifest != null) {
-      workspaceBuilder.javaPackageManifests.put(targetKey, manifest);
-    }
+    targetImport.packageManifest = javaIdeInfo.packageManifest;
     for (LibraryArtifact libraryArtifact : javaIdeInfo.jars) {
       ArtifactLocation classJar = libraryArtifact.classJar;
       if (classJar != null) {
-        workspaceBuilder.buildOutputJars.add(classJar);
+        targetImport.buildOutputJars.add(classJar);
       }
     }
-    workspaceBuilder.generatedJarsFromSourceTargets.addAll(
-        javaIdeInfo
-            .generatedJars
-            .stream()
-            .map(libraryArtifact -> new BlazeJarLibrary(libraryArtifact, targetKey))
-            .collect(Collectors.toList()));
+    for (LibraryArtifact libraryArtifact : javaIdeInfo.generatedJars) {
+      targetImport.generatedJars.add(new BlazeJarLibrary(libraryArtifact, targetKey));
+    }
     if (javaIdeInfo.filteredGenJar != null) {
-      workspaceBuilder.generatedJarsFromSourceTargets.add(
-          new BlazeJarLibrary(javaIdeInfo.filteredGenJar, targetKey));
+      targetImport.generatedJars.add(new BlazeJarLibrary(javaIdeInfo.filteredGenJar, targetKey));
     }
 
     for (BlazeJavaSyncAugmenter augmenter : augmenters) {
@@ -389,9 +433,10 @@ public final class BlazeJavaWorkspaceImporter {
           workspaceLanguageSettings,
           projectViewSet,
           target,
-          workspaceBuilder.outputJarsFromSourceTargets.get(targetKey),
-          workspaceBuilder.generatedJarsFromSourceTargets);
+          targetImport.outputJars,
+          targetImport.generatedJars);
     }
+    return targetImport;
   }
 
   @Nullable
@@ -404,11 +449,104 @@ public final class BlazeJavaWorkspaceImporter {
     return null;
   }
 
+  /** Everything a single source target contributes to the workspace. */
+  private static class SourceTargetImport {
+    final TargetKey targetKey;
+    @Nullable final Collection<String> jdeps;
+    final List<TargetKey> directDeps = Lists.newArrayList();
+    final List<ArtifactLocation> sources = Lists.newArrayList();
+    @Nullable ArtifactLocation packageManifest;
+    final List<ArtifactLocation> buildOutputJars = Lists.newArrayList();
+    final List<BlazeJarLibrary> outputJars = Lists.newArrayList();
+    final List<BlazeJarLibrary> generatedJars = Lists.newArrayList();
+
+    SourceTargetImport(TargetKey targetKey, @Nullable Collection<String> jdeps) {
+      this.targetKey = targetKey;
+      this.jdeps = jdeps;
+    }
+  }
+
+  /**
+   * Every jar which could end up as a library, interned by id. Each jar is only turned into a
+   * {@link BlazeJarLibrary} (and has its {@link LibraryKey} computed) once it's actually used.
+   */
+  private static class LibraryCandidates {
+    private final List<LibraryArtifact> libraryArtifacts = Lists.newArrayList();
+    private final List<TargetKey> originatingTargets = Lists.newArrayList();
+    private final List<BlazeJarLibrary> libraries = Lists.newArrayList();
+    private final Map<String, Integer> jdepsPathToId = Maps.newHashMap();
+    private final Map<TargetKey, int[]> targetKeyToIds = Maps.newHashMap();
+
+    int add(
+        LibraryArtifact libraryArtifact,
+        TargetKey originatingTarget,
+        @Nullable BlazeJarLibrary library) {
+      int id = libraryArtifacts.size();
+      libraryArtifacts.add(libraryArtifact);
+      originatingTargets.add(originatingTarget);
+      libraries.add(library);
+      ArtifactLocation interfaceJar = libraryArtifact.interfaceJar;
+      if (interfaceJar != null) {
+        jdepsPathToId.put(interfaceJar.getExecutionRootRelativePath(), id);
+      }
+      ArtifactLocation classJar = libraryArtifact.classJar;
+      if (classJar != null) {
+        jdepsPathToId.put(classJar.getExecutionRootRelativePath(), id);
+      }
+      return id;
+    }
+
+    void addForTarget(TargetKey targetKey, LibraryArtifact libraryArtifact) {
+      addId(targetKey, add(libraryArtifact, targetKey, null));
+    }
+
+    void addForTarget(TargetKey targetKey, BlazeJarLibrary library) {
+      addId(targetKey, add(library.libraryArtifact, library.originatingTarget, library));
+    }
+
+    private void addId(TargetKey targetKey, int id) {
+      int[] ids = targetKeyToIds.get(targetKey);
+      if (ids == null) {
+        targetKeyToIds.put(targetKey, new int[] {id});
+        return;
+      }
+      int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+      newIds[ids.length] = id;
+      targetKeyToIds.put(targetKey, newIds);
+    }
+
+    private BlazeJarLibrary get(int id) {
+      BlazeJarLibrary library = libraries.get(id);
+      if (library == null) {
+        library = new BlazeJarLibrary(libraryArtifacts.get(id), originatingTargets.get(id));
+        libraries.set(id, library);
+      }
+      return library;
+    }
+
+    @Nullable
+    BlazeJarLibrary getForJdepsPath(String jdepsPath) {
+      Integer id = jdepsPathToId.get(jdepsPath);
+      return id != null ? get(id) : null;
+    }
+
+    List<BlazeJarLibrary> getForTarget(TargetKey targetKey) {
+      int[] ids = targetKeyToIds.get(targetKey);
+      if (ids == null) {
+        return ImmutableList.of();
+      }
+      List<BlazeJarLibrary> result = Lists.newArrayListWithCapacity(ids.length);
+      for (int id : ids) {
+        result.add(get(id));
+      }
+      return result;
+    }
+  }
+
   private static class WorkspaceBuilder {
     Set<String> jdeps = Sets.newHashSet();
     Set<TargetKey> directDeps = Sets.newHashSet();
-    Set<ArtifactLocation> addedSourceFiles = Sets.newHashSet();
-    Multimap<TargetKey, BlazeJarLibrary> outputJarsFromSourceTargets = ArrayListMultimap.create();
+    LibraryCandidates libraryCandidates = new LibraryCandidates();
     List<BlazeJarLibrary> generatedJarsFromSourceTargets = Lists.newArrayList();
     List<ArtifactLocation> buildOutputJars = Lists.newArrayList();
     List<SourceArtifact> sourceArtifacts = Lists.newArrayList();
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.jdeps;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.repackaged.devtools.build.lib.view.proto.Deps;
+import com.google.repackaged.protobuf.CodedInputStream;
+import com.google.repackaged.protobuf.WireFormat;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Streaming decoder for {@link Deps.Dependencies} protos.
+ *
+ * <p>Only the path and kind of each dependency are read. Everything else (locations, rule label,
+ * contained packages), as well as the path of any dependency we don't want, is skipped over
+ * without being decoded.
+ *
+ * <p>The kind is a required field, so a dependency without a recognized kind is skipped (with a
+ * warning) rather than read as the default, as it means the file is corrupt or in an old format.
+ */
+final class JdepsDecoder {
+  private static final Logger logger = Logger.getInstance(JdepsDecoder.class);
+
+  private static final int DEPENDENCY_TAG =
+      makeTag(Deps.Dependencies.DEPENDENCY_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int PATH_TAG =
+      makeTag(Deps.Dependency.PATH_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int KIND_TAG =
+      makeTag(Deps.Dependency.KIND_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+  private final byte[] bytes;
+  private int invalidDependencies;
+
+  private JdepsDecoder(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns the paths of all explicit or implicit dependencies, i.e. the ones actually resolved by
+   * the compiler, in the order they appear in the jdeps file.
+   */
+  static List<String> readResolvedDependencies(File jdepsFile) throws IOException {
+    try (InputStream inputStream = new FileInputStream(jdepsFile)) {
+      return readResolvedDependencies(ByteStreams.toByteArray(inputStream), jdepsFile.getPath());
+    }
+  }
+
+  /** @param source names the jdeps file in warnings */
+  @VisibleForTesting
+  static List<String> readResolvedDependencies(byte[] bytes, String source) throws IOException {
+    JdepsDecoder decoder = new JdepsDecoder(bytes);
+    List<String> dependencies = decoder.read();
+    if (decoder.invalidDependencies > 0) {
+      logger.warn(
+          String.format(
+              "Skipped %d dependencies without a valid kind in jdeps file %s",
+              decoder.invalidDependencies, source));
+    }
+    return dependencies;
+  }
+
+  private List<String> read() throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(bytes);
+    List<String> dependencies = Lists.newArrayList();
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      if (tag != DEPENDENCY_TAG) {
+        if (!input.skipField(tag)) {
+          break;
+        }
+        continue;
+      }
+      int length = input.readRawVarint32();
+      int oldLimit = input.pushLimit(length);
+      String path = readDependency(input);
+      input.popLimit(oldLimit);
+      if (path != null) {
+        dependencies.add(path);
+      }
+    }
+    return dependencies;
+  }
+
+  /**
+   * Reads a single dependency message, returning its path if it is an explicit or implicit
+   * dependency and null otherwise (including if it has no recognized kind). The path bytes are
+   * only decoded once the kind is known.
+   */
+  @Nullable
+  private String readDependency(CodedInputStream input) throws IOException {
+    int pathOffset = -1;
+    int pathLength = 0;
+    Deps.Dependency.Kind kind = null;
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      if (tag == PATH_TAG) {
+        pathLength = input.readRawVarint32();
+        pathOffset = input.getTotalBytesRead();
+        input.skipRawBytes(pathLength);
+      } else if (tag == KIND_TAG) {
+        Deps.Dependency.Kind value = Deps.Dependency.Kind.forNumber(input.readEnum());
+        if (value != null) {
+          kind = value;
+        }
+      } else if (!input.skipField(tag)) {
+        break;
+      }
+    }
+    if (kind == null) {
+      invalidDependencies++;
+      return null;
+    }
+    if (pathOffset < 0) {
+      return null;
+    }
+    if (kind != Deps.Dependency.Kind.EXPLICIT && kind != Deps.Dependency.Kind.IMPLICIT) {
+      return null;
+    }
+    return new String(bytes, pathOffset, pathLength, StandardCharsets.UTF_8);
+  }
+
+  /** Mirrors WireFormat.makeTag, which isn't public. */
+  private static int makeTag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+}
@@ -34,13 +34,10 @@ import com.google.idea.blaze.base.scope.Scope;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
 import com.google.idea.blaze.base.scope.scopes.TimingScope;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
-import com.google.repackaged.devtools.build.lib.view.proto.Deps;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
@@ -156,22 +153,14 @@ public class JdepsFileReader {
           submit(
               () -> {
                 totalSizeLoaded.addAndGet(updatedFile.length());
-                try (InputStream inputStream = new FileInputStream(updatedFile)) {
-                  Deps.Dependencies dependencies = Deps.Dependencies.parseFrom(inputStream);
-                  if (dependencies != null) {
-                    List<String> dependencyStringList = Lists.newArrayList();
-                    for (Deps.Dependency dependency : dependencies.getDependencyList()) {
-                      // We only want explicit or implicit deps that were
-                      // actually resolved by the compiler, not ones that are
-                      // available for use in the same package
-                      if (dependency.getKind() == Deps.Dependency.Kind.EXPLICIT
-                          || dependency.getKind() == Deps.Dependency.Kind.IMPLICIT) {
-                        dependencyStringList.add(dependency.getPath());
-                      }
-                    }
-                    TargetKey targetKey = fileToTargetMap.get(updatedFile);
-                    return new Result(updatedFile, targetKey, dependencyStringList);
-                  }
+                try {
+                  // We only want explicit or implicit deps that were
+                  // actually resolved by the compiler, not ones that are
+                  // available for use in the same package
+                  List<String> dependencyStringList =
+                      JdepsDecoder.readResolvedDependencies(updatedFile);
+                  TargetKey targetKey = fileToTargetMap.get(updatedFile);
+                  return new Result(updatedFile, targetKey, dependencyStringList);
                 } catch (FileNotFoundException e) {
                   logger.info("Could not open jdeps file: " + updatedFile);
                 }
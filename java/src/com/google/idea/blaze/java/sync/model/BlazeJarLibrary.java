@@ -16,6 +16,7 @@
 package com.google.idea.blaze.java.sync.model;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.model.BlazeLibrary;
@@ -26,7 +27,6 @@ import com.google.idea.blaze.java.libraries.SourceJarManager;
 import com.google.idea.blaze.java.settings.BlazeJavaUserSettings;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.OrderRootType;
-import com.intellij.openapi.roots.libraries.Library;
 import java.io.File;
 import javax.annotation.concurrent.Immutable;
 
@@ -46,13 +46,13 @@ public final class BlazeJarLibrary extends BlazeLibrary {
   }
 
   @Override
-  public void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      Library.ModifiableModel libraryModel) {
+  public ImmutableListMultimap<OrderRootType, String> getRootUrls(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder) {
+    ImmutableListMultimap.Builder<OrderRootType, String> rootUrls =
+        ImmutableListMultimap.builder();
     JarCache jarCache = JarCache.getInstance(project);
     File jar = jarCache.getCachedJar(artifactLocationDecoder, this);
-    libraryModel.addRoot(pathToUrl(jar), OrderRootType.CLASSES);
+    rootUrls.put(OrderRootType.CLASSES, pathToUrl(jar));
 
     boolean attachSourcesByDefault =
         BlazeJavaUserSettings.getInstance().getAttachSourcesByDefault();
@@ -61,9 +61,10 @@ public final class BlazeJarLibrary extends BlazeLibrary {
     if (attachSourceJar && libraryArtifact.sourceJar != null) {
       File sourceJar = jarCache.getCachedSourceJar(artifactLocationDecoder, this);
       if (sourceJar != null) {
-        libraryModel.addRoot(pathToUrl(sourceJar), OrderRootType.SOURCES);
+        rootUrls.put(OrderRootType.SOURCES, pathToUrl(sourceJar));
       }
     }
+    return rootUrls.build();
   }
 
   @Override
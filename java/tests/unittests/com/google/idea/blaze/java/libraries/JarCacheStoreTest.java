@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.libraries;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JarCacheStore}. */
+@RunWith(JUnit4.class)
+public class JarCacheStoreTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+  private File storeDir;
+  private JarCacheStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    storeDir = folder.newFolder("store");
+    store = new JarCacheStore(storeDir);
+  }
+
+  @Test
+  public void testIdenticalJarsAreStoredOnce() throws IOException {
+    File jar1 = createFile("config1/foo.jar", "contents");
+    File jar2 = createFile("config2/foo.jar", "contents");
+    File jar3 = createFile("config2/bar.jar", "other contents");
+
+    JarCacheStore.CacheResult result =
+        store.cacheFiles(
+            "project",
+            ImmutableMap.of(jar1, ".jar", jar2, ".jar", jar3, ".jar"),
+            timestamps(jar1, jar2, jar3),
+            executor,
+            true,
+            ImmutableList.of());
+
+    assertThat(result).isNotNull();
+    assertThat(result.cachedFiles.get(jar1)).isEqualTo(result.cachedFiles.get(jar2));
+    assertThat(result.cachedFiles.get(jar1)).isNotEqualTo(result.cachedFiles.get(jar3));
+    assertThat(result.linked + result.copied).isEqualTo(2);
+    assertThat(result.newFiles)
+        .containsExactly(result.cachedFiles.get(jar1), result.cachedFiles.get(jar3));
+    assertThat(contents(result.cachedFiles.get(jar3))).isEqualTo("other contents");
+  }
+
+  @Test
+  public void testReadOnlyJarsAreLinked() throws IOException {
+    File jar = createFile("foo.jar", "contents");
+    assertThat(jar.setWritable(false, false)).isTrue();
+
+    JarCacheStore.CacheResult result = cacheJar(store, jar);
+
+    assertThat(result).isNotNull();
+    assertThat(result.linked).isEqualTo(1);
+    assertThat(contents(result.cachedFiles.get(jar))).isEqualTo("contents");
+  }
+
+  @Test
+  public void testUnchangedJarsAreNotCopiedAgain() throws IOException {
+    File jar = createFile("foo.jar", "contents");
+
+    cacheJar(store, jar);
+    store.saveIndexIfChanged();
+    JarCacheStore.CacheResult result = cacheJar(new JarCacheStore(storeDir), jar);
+
+    assertThat(result).isNotNull();
+    assertThat(result.linked + result.copied).isEqualTo(0);
+    assertThat(result.reused).isEqualTo(1);
+    assertThat(result.newFiles).isEmpty();
+  }
+
+  @Test
+  public void testIndexOnlySavedWhenRequested() throws IOException {
+    File jar1 = createFile("foo.jar", "contents");
+    File jar2 = createFile("bar.jar", "other contents");
+    File indexFile = new File(storeDir, JarCacheStore.INDEX_FILE_NAME);
+
+    cacheJar(store, jar1);
+    cacheJar(store, jar2);
+    assertThat(indexFile.exists()).isFalse();
+
+    store.saveIndexIfChanged();
+    assertThat(indexFile.exists()).isTrue();
+  }
+
+  @Test
+  public void testChangedJarGetsNewEntry() throws IOException {
+    File jar = createFile("foo.jar", "contents");
+    JarCacheStore.CacheResult before = cacheJar(store, jar);
+
+    Files.write("new contents", jar, StandardCharsets.UTF_8);
+    jar.setLastModified(jar.lastModified() + 1000);
+    JarCacheStore.CacheResult after = cacheJar(store, jar);
+
+    assertThat(before.cachedFiles.get(jar)).isNotEqualTo(after.cachedFiles.get(jar));
+    assertThat(contents(after.cachedFiles.get(jar))).isEqualTo("new contents");
+  }
+
+  @Test
+  public void testEvictionSkipsEntriesInUse() throws IOException {
+    File oldJar = createFile("old.jar", "0123456789");
+    File usedJar = createFile("used.jar", "abcdefghij");
+
+    JarCacheStore.CacheResult oldResult =
+        store.cacheFiles(
+            "project1",
+            ImmutableMap.of(oldJar, ".jar"),
+            timestamps(oldJar),
+            executor,
+            true,
+            ImmutableList.of());
+    store.release("project1");
+    JarCacheStore.CacheResult usedResult =
+        store.cacheFiles(
+            "project2",
+            ImmutableMap.of(usedJar, ".jar"),
+            timestamps(usedJar),
+            executor,
+            true,
+            ImmutableList.of());
+
+    JarCacheStore.EvictionResult eviction = store.evict(0);
+
+    assertThat(eviction).isNotNull();
+    assertThat(eviction.evictedFiles).isEqualTo(1);
+    assertThat(eviction.deletedFiles).containsExactly(oldResult.cachedFiles.get(oldJar));
+    assertThat(oldResult.cachedFiles.get(oldJar).exists()).isFalse();
+    assertThat(usedResult.cachedFiles.get(usedJar).exists()).isTrue();
+  }
+
+  @Test
+  public void testAdditionalEntriesKeepPreviousEntriesInUse() throws IOException {
+    File jar = createFile("foo.jar", "0123456789");
+    File sourceJar = createFile("foo-src.jar", "abcdefghij");
+
+    JarCacheStore.CacheResult jarResult = cacheJar(store, jar);
+    JarCacheStore.CacheResult sourceJarResult =
+        store.cacheFiles(
+            "project",
+            ImmutableMap.of(sourceJar, "-src.jar"),
+            timestamps(sourceJar),
+            executor,
+            false,
+            ImmutableList.of());
+
+    JarCacheStore.EvictionResult eviction = store.evict(0);
+
+    assertThat(eviction.evictedFiles).isEqualTo(0);
+    assertThat(jarResult.cachedFiles.get(jar).exists()).isTrue();
+    assertThat(sourceJarResult.cachedFiles.get(sourceJar).exists()).isTrue();
+  }
+
+  @Test
+  public void testRetainedEntriesStayInUseWhenReplaced() throws IOException {
+    File jar = createFile("foo.jar", "0123456789");
+    File cachedJar = cacheJar(store, jar).cachedFiles.get(jar);
+
+    Files.write("abcdefghij", jar, StandardCharsets.UTF_8);
+    jar.setLastModified(jar.lastModified() + 1000);
+    JarCacheStore.CacheResult result =
+        store.cacheFiles(
+            "project",
+            ImmutableMap.of(jar, ".jar"),
+            timestamps(jar),
+            executor,
+            true,
+            ImmutableList.of(cachedJar));
+    JarCacheStore.EvictionResult eviction = store.evict(0);
+
+    assertThat(eviction.evictedFiles).isEqualTo(0);
+    assertThat(cachedJar.exists()).isTrue();
+    assertThat(result.cachedFiles.get(jar).exists()).isTrue();
+
+    cacheJar(store, jar);
+    eviction = store.evict(0);
+
+    assertThat(eviction.deletedFiles).containsExactly(cachedJar);
+  }
+
+  @Test
+  public void testConcurrentEvictionKeepsEntriesBeingCached() throws IOException {
+    File reusedJar = createFile("reused.jar", "0123456789");
+    File newJar = createFile("new.jar", "abcdefghij");
+    cacheJar(store, reusedJar);
+    store.release("project");
+
+    // Another project evicts everything it can before each task this call runs
+    ThreadPoolExecutor evictingPool =
+        new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+          @Override
+          protected void beforeExecute(Thread thread, Runnable task) {
+            store.evict(0);
+          }
+        };
+    JarCacheStore.CacheResult result;
+    try {
+      result =
+          store.cacheFiles(
+              "project",
+              ImmutableMap.of(reusedJar, ".jar", newJar, ".jar"),
+              timestamps(reusedJar, newJar),
+              MoreExecutors.listeningDecorator(evictingPool),
+              true,
+              ImmutableList.of());
+    } finally {
+      evictingPool.shutdown();
+    }
+
+    assertThat(result).isNotNull();
+    assertThat(result.cachedFiles.get(reusedJar).exists()).isTrue();
+    assertThat(result.cachedFiles.get(newJar).exists()).isTrue();
+  }
+
+  @Test
+  public void testEvictionNotNeededUnderLimit() throws IOException {
+    File jar = createFile("foo.jar", "contents");
+    cacheJar(store, jar);
+    store.release("project");
+
+    JarCacheStore.EvictionResult eviction = store.evict(1024 * 1024);
+
+    assertThat(eviction).isNotNull();
+    assertThat(eviction.evictedFiles).isEqualTo(0);
+    assertThat(eviction.remainingFiles).isEqualTo(1);
+  }
+
+  private JarCacheStore.CacheResult cacheJar(JarCacheStore cacheStore, File jar) {
+    return cacheStore.cacheFiles(
+        "project",
+        ImmutableMap.of(jar, ".jar"),
+        timestamps(jar),
+        executor,
+        true,
+        ImmutableList.of());
+  }
+
+  private File createFile(String path, String contents) throws IOException {
+    File file = new File(folder.getRoot(), path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, StandardCharsets.UTF_8);
+    return file;
+  }
+
+  private static String contents(File file) throws IOException {
+    return Files.toString(file, StandardCharsets.UTF_8);
+  }
+
+  private static Map<File, Long> timestamps(File... files) {
+    ImmutableMap.Builder<File, Long> builder = ImmutableMap.builder();
+    for (File file : files) {
+      builder.put(file, file.lastModified());
+    }
+    return builder.build();
+  }
+}
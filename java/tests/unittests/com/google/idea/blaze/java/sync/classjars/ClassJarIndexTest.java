@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.classjars;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ClassJarIndex}. */
+@RunWith(JUnit4.class)
+public class ClassJarIndexTest {
+  private static final File FOO_JAR = new File("/out/foo.jar");
+  private static final File BAR_JAR = new File("/out/bar.jar");
+
+  @Test
+  public void testClassNamesFromJarEntries() {
+    assertThat(
+            ClassJarIndex.classNames(
+                ImmutableList.of(
+                    "META-INF/MANIFEST.MF",
+                    "com/foo/",
+                    "com/foo/Foo.class",
+                    "com/foo/Foo$Inner.class",
+                    "com/foo/package-info.class",
+                    "Root.class")))
+        .containsExactly("com.foo.Foo", "com.foo.Foo$Inner", "Root")
+        .inOrder();
+  }
+
+  @Test
+  public void testLookupByClassAndPackage() {
+    ClassJarIndex index = emptyIndex();
+    index.update(
+        ImmutableMap.of(FOO_JAR, 1L, BAR_JAR, 1L),
+        ImmutableMap.of(
+            FOO_JAR, ImmutableList.of("com.foo.Foo", "com.foo.Foo$Inner", "com.common.Util"),
+            BAR_JAR, ImmutableList.of("com.bar.Bar", "com.common.Util")),
+        ImmutableList.of());
+
+    assertThat(index.getJarsForClass("com.foo.Foo")).containsExactly(FOO_JAR);
+    assertThat(index.getJarsForClass("com.foo.Foo$Inner")).containsExactly(FOO_JAR);
+    assertThat(index.getJarsForClass("com.common.Util")).containsExactly(FOO_JAR, BAR_JAR);
+    assertThat(index.getJarsForClass("com.foo.Missing")).isEmpty();
+    assertThat(index.getJarsForPackage("com.foo")).containsExactly(FOO_JAR);
+    assertThat(index.getJarsForPackage("com.common")).containsExactly(FOO_JAR, BAR_JAR);
+    assertThat(index.getJarsForPackage("com")).isEmpty();
+  }
+
+  @Test
+  public void testIncrementalUpdate() {
+    ClassJarIndex index = emptyIndex();
+    index.update(
+        ImmutableMap.of(FOO_JAR, 1L, BAR_JAR, 1L),
+        ImmutableMap.of(
+            FOO_JAR, ImmutableList.of("com.foo.Foo"), BAR_JAR, ImmutableList.of("com.bar.Bar")),
+        ImmutableList.of());
+
+    index.update(
+        ImmutableMap.of(FOO_JAR, 2L),
+        ImmutableMap.of(FOO_JAR, ImmutableList.of("com.foo.NewFoo")),
+        ImmutableList.of(BAR_JAR));
+
+    assertThat(index.getJarsForClass("com.foo.Foo")).isEmpty();
+    assertThat(index.getJarsForClass("com.foo.NewFoo")).containsExactly(FOO_JAR);
+    assertThat(index.getJarsForClass("com.bar.Bar")).isEmpty();
+    assertThat(index.isIndexed(FOO_JAR, 2L)).isTrue();
+    assertThat(index.isIndexed(FOO_JAR, 1L)).isFalse();
+    assertThat(index.isIndexed(BAR_JAR, 1L)).isFalse();
+  }
+
+  @Test
+  public void testUnreadableJarIsNotMarkedIndexed() {
+    ClassJarIndex index = emptyIndex();
+    index.update(
+        ImmutableMap.of(FOO_JAR, 1L),
+        ImmutableMap.of(FOO_JAR, ImmutableList.of("com.foo.Foo")),
+        ImmutableList.of());
+
+    // The jar changed, but couldn't be read
+    index.update(ImmutableMap.of(FOO_JAR, 2L), ImmutableMap.of(), ImmutableList.of(FOO_JAR));
+
+    assertThat(index.isIndexed(FOO_JAR, 2L)).isFalse();
+    assertThat(index.getJarsForClass("com.foo.Foo")).isEmpty();
+  }
+
+  private static ClassJarIndex emptyIndex() {
+    return new ClassJarIndex(new ClassJarIndex.Snapshot(ImmutableMap.of(), ImmutableMap.of()));
+  }
+}
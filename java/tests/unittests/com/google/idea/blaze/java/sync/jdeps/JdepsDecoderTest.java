@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.jdeps;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.repackaged.devtools.build.lib.view.proto.Deps;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JdepsDecoder}. */
+@RunWith(JUnit4.class)
+public class JdepsDecoderTest {
+
+  @Test
+  public void testOnlyExplicitAndImplicitDepsAreReturned() throws Exception {
+    Deps.Dependencies dependencies =
+        Deps.Dependencies.newBuilder()
+            .setRuleLabel("//foo:bar")
+            .addDependency(dependency("a.jar", Deps.Dependency.Kind.EXPLICIT))
+            .addDependency(dependency("b.jar", Deps.Dependency.Kind.UNUSED))
+            .addDependency(dependency("c.jar", Deps.Dependency.Kind.IMPLICIT))
+            .addDependency(dependency("d.jar", Deps.Dependency.Kind.INCOMPLETE))
+            .addContainedPackage("com.foo")
+            .setSuccess(true)
+            .build();
+
+    assertThat(JdepsDecoder.readResolvedDependencies(dependencies.toByteArray(), "test.jdeps"))
+        .containsExactly("a.jar", "c.jar")
+        .inOrder();
+  }
+
+  @Test
+  public void testLocationsAreSkipped() throws Exception {
+    Deps.Dependencies dependencies =
+        Deps.Dependencies.newBuilder()
+            .addDependency(
+                dependency("a.jar", Deps.Dependency.Kind.EXPLICIT)
+                    .addLocation(
+                        Deps.SourceLocation.newBuilder().setPath("Foo.java").setLine(3).build()))
+            .addDependency(
+                dependency("b.jar", Deps.Dependency.Kind.UNUSED)
+                    .addLocation(
+                        Deps.SourceLocation.newBuilder().setPath("Bar.java").setLine(5).build()))
+            .build();
+
+    assertThat(JdepsDecoder.readResolvedDependencies(dependencies.toByteArray(), "test.jdeps"))
+        .containsExactly("a.jar");
+  }
+
+  @Test
+  public void testDependencyWithoutKindIsSkipped() throws Exception {
+    Deps.Dependencies dependencies =
+        Deps.Dependencies.newBuilder()
+            .addDependency(Deps.Dependency.newBuilder().setPath("a.jar").buildPartial())
+            .addDependency(dependency("b.jar", Deps.Dependency.Kind.EXPLICIT))
+            .buildPartial();
+
+    assertThat(JdepsDecoder.readResolvedDependencies(dependencies.toByteArray(), "test.jdeps"))
+        .containsExactly("b.jar");
+  }
+
+  @Test
+  public void testNonAsciiPathsAreDecoded() throws Exception {
+    Deps.Dependencies dependencies =
+        Deps.Dependencies.newBuilder()
+            .addDependency(dependency("\u00fcber/\u4e2d.jar", Deps.Dependency.Kind.IMPLICIT))
+            .build();
+
+    assertThat(JdepsDecoder.readResolvedDependencies(dependencies.toByteArray(), "test.jdeps"))
+        .containsExactly("\u00fcber/\u4e2d.jar");
+  }
+
+  @Test
+  public void testEmptyInput() throws Exception {
+    assertThat(JdepsDecoder.readResolvedDependencies(new byte[0], "test.jdeps")).isEmpty();
+  }
+
+  private static Deps.Dependency.Builder dependency(String path, Deps.Dependency.Kind kind) {
+    return Deps.Dependency.newBuilder().setPath(path).setKind(kind);
+  }
+}